@@ -2,9 +2,16 @@ package org.ohdsi.usagi;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.IntConsumer;
 
 import org.ohdsi.utilities.DirectoryUtilities;
 
@@ -14,6 +21,7 @@ import com.sleepycat.je.EnvironmentConfig;
 import com.sleepycat.persist.EntityCursor;
 import com.sleepycat.persist.EntityIndex;
 import com.sleepycat.persist.EntityStore;
+import com.sleepycat.persist.IndexNotAvailableException;
 import com.sleepycat.persist.PrimaryIndex;
 import com.sleepycat.persist.SecondaryIndex;
 import com.sleepycat.persist.StoreConfig;
@@ -25,6 +33,7 @@ public class BerkeleyDbEngine {
 	private ConceptDataAccessor					conceptDataAccessor;
 	private MapsToRelationshipDataAccessor		mapsToRelationshipDataAccessor;
 	private AtcToRxNormDataAccessor				atcToRxNormDataAccessor;
+	private ConceptCodeDataAccessor				conceptCodeDataAccessor;
 	private ParentChildRelationshipDataAccessor	parentChildRelationshipDataAccessor;
 	private String								databaseFolder;
 	private boolean								isOpenForReading	= false;
@@ -64,6 +73,12 @@ public class BerkeleyDbEngine {
 			conceptDataAccessor = new ConceptDataAccessor();
 			mapsToRelationshipDataAccessor = new MapsToRelationshipDataAccessor();
 			atcToRxNormDataAccessor = new AtcToRxNormDataAccessor();
+			try {
+				conceptCodeDataAccessor = new ConceptCodeDataAccessor();
+			} catch (IndexNotAvailableException e) {
+				// Databases built by older versions do not have the concept codes:
+				conceptCodeDataAccessor = null;
+			}
 			parentChildRelationshipDataAccessor = new ParentChildRelationshipDataAccessor();
 		} catch (DatabaseException dbe) {
 			throw new RuntimeException(dbe);
@@ -101,6 +116,17 @@ public class BerkeleyDbEngine {
 		atcToRxNormDataAccessor.primaryIndex.putNoReturn(atcToRxNorm);
 	}
 
+	public void putConceptCode(String vocabularyId, String conceptCode, int conceptId) {
+		ConceptCode key = new ConceptCode(vocabularyId, conceptCode);
+		if (key.normalizedCode.length() == 0)
+			return;
+		ConceptCode existing = conceptCodeDataAccessor.primaryIndex.get(key.key);
+		if (existing != null)
+			key = existing;
+		key.conceptIds.add(conceptId);
+		conceptCodeDataAccessor.primaryIndex.putNoReturn(key);
+	}
+
 	public void put(ParentChildRelationShip parentChildRelationship) {
 		parentChildRelationshipDataAccessor.primaryIndex.putNoReturn(parentChildRelationship);
 	}
@@ -134,6 +160,115 @@ public class BerkeleyDbEngine {
 			return atcToRxNorm.conceptIds;
 	}
 
+	/**
+	 * @return True if the database has the concept codes. Databases built by older versions of Usagi do not
+	 */
+	public boolean hasConceptCodes() {
+		return conceptCodeDataAccessor != null;
+	}
+
+	/**
+	 * Looks up the concepts having a concept code, like {@link #getConceptIdsByCodes(String, Collection)}.
+	 *
+	 * @param vocabularyId
+	 *            The vocabulary of the code, or null to look in all vocabularies
+	 * @return The concept IDs, or an empty set if no concept has the code
+	 */
+	public Set<Integer> getConceptIdsByCode(String vocabularyId, String conceptCode) {
+		return getConceptIdsByCodes(vocabularyId, Collections.singleton(conceptCode)).getOrDefault(conceptCode, Collections.emptySet());
+	}
+
+	/**
+	 * Looks up the concepts of many codes at once. Codes are matched exactly, except in the vocabularies where punctuation carries no meaning, see
+	 * {@link ConceptCode#normalize(String, String)}. The codes are looked up in code order, so consecutive lookups hit neighbouring pages of the database.
+	 *
+	 * @param vocabularyId
+	 *            The vocabulary of the codes, or null to look in all vocabularies
+	 * @return A map from code (as given) to the concept IDs having that code. Codes that are not found are not in the map
+	 */
+	public Map<String, Set<Integer>> getConceptIdsByCodes(String vocabularyId, Collection<String> conceptCodes) {
+		Map<String, Set<Integer>> codeToConceptIds = new HashMap<String, Set<Integer>>();
+		if (conceptCodeDataAccessor == null)
+			return codeToConceptIds;
+		for (String conceptCode : new TreeSet<String>(conceptCodes)) {
+			String trimmedCode = conceptCode.trim();
+			if (trimmedCode.length() == 0)
+				continue;
+			Set<Integer> conceptIds = new HashSet<Integer>();
+			if (vocabularyId == null) {
+				// The codes of other vocabularies only match exactly:
+				addConceptIds(trimmedCode, null, conceptIds);
+				String normalizedCode = ConceptCode.normalize(trimmedCode);
+				if (!normalizedCode.equals(trimmedCode))
+					addConceptIds(normalizedCode, ConceptCode.NORMALIZED_VOCABULARIES, conceptIds);
+			} else if (ConceptCode.NORMALIZED_VOCABULARIES.contains(vocabularyId))
+				addConceptIds(ConceptCode.normalize(trimmedCode), Collections.singleton(vocabularyId), conceptIds);
+			else {
+				ConceptCode code = conceptCodeDataAccessor.primaryIndex.get(ConceptCode.createKey(vocabularyId, trimmedCode));
+				if (code != null)
+					conceptIds.addAll(code.conceptIds);
+			}
+			if (conceptIds.size() > 0)
+				codeToConceptIds.put(conceptCode, conceptIds);
+		}
+		return codeToConceptIds;
+	}
+
+	/**
+	 * Looks up the codes of a vocabulary that start with a prefix, in code order. The prefix is matched exactly, except in the vocabularies where punctuation
+	 * carries no meaning, where it is matched against the normalized codes, see {@link ConceptCode#normalize(String, String)}.
+	 *
+	 * @param vocabularyId
+	 *            The vocabulary of the codes. Unlike the code lookups, a prefix lookup is always scoped to one vocabulary
+	 * @param maxCount
+	 *            The maximum number of codes to return
+	 * @return The matching codes, each with the concept IDs having that code
+	 */
+	public List<ConceptCode> getConceptCodesByPrefix(String vocabularyId, String prefix, int maxCount) {
+		List<ConceptCode> conceptCodes = new ArrayList<ConceptCode>();
+		if (conceptCodeDataAccessor == null || maxCount < 1)
+			return conceptCodes;
+		EntityCursor<ConceptCode> cursor;
+		if (ConceptCode.NORMALIZED_VOCABULARIES.contains(vocabularyId)) {
+			// The normalized codes of all vocabularies share the secondary key, so codes of other vocabularies are skipped:
+			String fromKey = ConceptCode.normalize(prefix.trim());
+			cursor = conceptCodeDataAccessor.secondaryIndex.entities(fromKey, true, fromKey + Character.MAX_VALUE, false);
+		} else {
+			String fromKey = ConceptCode.createKey(vocabularyId, prefix.trim());
+			// All keys starting with the prefix sort before the prefix followed by the highest character:
+			cursor = conceptCodeDataAccessor.primaryIndex.entities(fromKey, true, fromKey + Character.MAX_VALUE, false);
+		}
+		try {
+			for (ConceptCode conceptCode : cursor) {
+				if (!conceptCode.vocabularyId.equals(vocabularyId))
+					continue;
+				conceptCodes.add(conceptCode);
+				if (conceptCodes.size() >= maxCount)
+					break;
+			}
+		} finally {
+			cursor.close();
+		}
+		return conceptCodes;
+	}
+
+	/**
+	 * Adds the concepts of the codes having the normalized code.
+	 *
+	 * @param vocabularyIds
+	 *            The vocabularies of the codes to add, or null for all vocabularies
+	 */
+	private void addConceptIds(String normalizedCode, Set<String> vocabularyIds, Set<Integer> conceptIds) {
+		EntityCursor<ConceptCode> cursor = conceptCodeDataAccessor.secondaryIndex.subIndex(normalizedCode).entities();
+		try {
+			for (ConceptCode conceptCode : cursor)
+				if (vocabularyIds == null || vocabularyIds.contains(conceptCode.vocabularyId))
+					conceptIds.addAll(conceptCode.conceptIds);
+		} finally {
+			cursor.close();
+		}
+	}
+
 	public List<ParentChildRelationShip> getParentChildRelationshipsByParentConceptId(int conceptId) {
 		EntityIndex<Integer, ParentChildRelationShip> subIndex = parentChildRelationshipDataAccessor.secondaryIndexParent.subIndex(conceptId);
 		EntityCursor<ParentChildRelationShip> cursor = subIndex.entities();
@@ -164,6 +299,41 @@ public class BerkeleyDbEngine {
 		return conceptDataAccessor.primaryIndex.get(conceptId);
 	}
 
+	/**
+	 * Fetches several concepts at once. The concept IDs are looked up in key order, so consecutive lookups hit neighbouring pages of the database.
+	 *
+	 * @return A map from concept ID to concept. Concept IDs that are not in the database are not in the map
+	 */
+	public Map<Integer, Concept> getConcepts(Collection<Integer> conceptIds) {
+		Map<Integer, Concept> conceptIdToConcept = new HashMap<Integer, Concept>();
+		for (int conceptId : new TreeSet<Integer>(conceptIds)) {
+			Concept concept = conceptDataAccessor.primaryIndex.get(conceptId);
+			if (concept != null)
+				conceptIdToConcept.put(conceptId, concept);
+		}
+		return conceptIdToConcept;
+	}
+
+	/**
+	 * Reads all concepts once, so the database pages are in the cache when the concepts of the first search results are fetched.
+	 * 
+	 * @param progress
+	 *            Receives the progress as a percentage
+	 */
+	public void warmUp(IntConsumer progress) {
+		long conceptCount = Math.max(1, conceptDataAccessor.primaryIndex.count());
+		long count = 0;
+		EntityCursor<Concept> cursor = getConceptCursor();
+		try {
+			for (Iterator<Concept> iterator = cursor.iterator(); iterator.hasNext(); iterator.next())
+				if (++count % 10000 == 0)
+					progress.accept((int) Math.min(100, (100 * count) / conceptCount));
+		} finally {
+			cursor.close();
+		}
+		progress.accept(100);
+	}
+
 	public void shutdown() throws DatabaseException {
 		try {
 			if (isOpenForReading || isOpenForWriting) {
@@ -201,6 +371,16 @@ public class BerkeleyDbEngine {
 		}
 	}
 
+	private class ConceptCodeDataAccessor {
+		public PrimaryIndex<String, ConceptCode>			primaryIndex;
+		public SecondaryIndex<String, String, ConceptCode>	secondaryIndex;
+
+		public ConceptCodeDataAccessor() throws DatabaseException {
+			primaryIndex = store.getPrimaryIndex(String.class, ConceptCode.class);
+			secondaryIndex = store.getSecondaryIndex(primaryIndex, String.class, "normalizedCode");
+		}
+	}
+
 	private class ParentChildRelationshipDataAccessor {
 		public PrimaryIndex<Integer, ParentChildRelationShip>				primaryIndex;
 		public SecondaryIndex<Integer, Integer, ParentChildRelationShip>	secondaryIndexParent;
@@ -0,0 +1,64 @@
+package org.ohdsi.usagi;
+
+import static com.sleepycat.persist.model.Relationship.MANY_TO_ONE;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import com.sleepycat.persist.model.Entity;
+import com.sleepycat.persist.model.PrimaryKey;
+import com.sleepycat.persist.model.SecondaryKey;
+
+/**
+ * The concepts having a concept code in a vocabulary. The primary key is the vocabulary ID, a tab and the code exactly as in the vocabulary. The secondary key
+ * is the normalized code alone, for lookups in all vocabularies. Only codes of vocabularies where punctuation carries no meaning are normalized, see
+ * {@link #normalize(String, String)}.
+ */
+@Entity
+public class ConceptCode {
+	/**
+	 * The vocabularies whose codes are also found when written with or without punctuation. In other vocabularies punctuation distinguishes codes, for instance
+	 * NDC codes 1234-5678-90 and 12345-678-90 are different products.
+	 */
+	public static Set<String>	NORMALIZED_VOCABULARIES	= new HashSet<String>(Arrays.asList("ICD9CM", "ICD10CM"));
+
+	@PrimaryKey
+	public String				key;
+	@SecondaryKey(relate = MANY_TO_ONE)
+	public String				normalizedCode;
+	public String				vocabularyId;
+	public String				conceptCode;
+	public Set<Integer>			conceptIds				= new HashSet<Integer>();
+
+	public ConceptCode() {
+	}
+
+	public ConceptCode(String vocabularyId, String conceptCode) {
+		this.vocabularyId = vocabularyId;
+		this.conceptCode = conceptCode;
+		this.normalizedCode = normalize(vocabularyId, conceptCode);
+		this.key = createKey(vocabularyId, conceptCode);
+	}
+
+	/**
+	 * Normalizes a code of a vocabulary: codes of the {@link #NORMALIZED_VOCABULARIES} are normalized, see {@link #normalize(String)}, other codes are kept as
+	 * they are.
+	 */
+	public static String normalize(String vocabularyId, String conceptCode) {
+		return NORMALIZED_VOCABULARIES.contains(vocabularyId) ? normalize(conceptCode) : conceptCode;
+	}
+
+	/**
+	 * Normalizes a code, so codes written with or without punctuation match: case is folded, and whitespace, dots and hyphens are removed. "E11.9" and "e119"
+	 * both become "E119".
+	 */
+	public static String normalize(String conceptCode) {
+		return conceptCode.replaceAll("[\\s.\\-]", "").toUpperCase(Locale.ROOT);
+	}
+
+	public static String createKey(String vocabularyId, String conceptCode) {
+		return vocabularyId + "\t" + conceptCode;
+	}
+}
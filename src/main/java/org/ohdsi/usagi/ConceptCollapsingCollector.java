@@ -0,0 +1,453 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.util.ArrayUtil;
+import org.ohdsi.usagi.MaxScoreQuery.MaxScoreScorer;
+
+/**
+ * Collects the top k distinct concepts of a search. A concept can have many terms in the index (its name, synonyms and source terms), so instead of collecting
+ * the top k documents, the collector keeps the best scoring document per concept, and only the k best concepts. Concepts are kept in a min-heap on score, and
+ * the concepts currently in the heap are indexed by concept ID so a better scoring term of a concept replaces the earlier one.
+ * <p>
+ * Documents are collected in order, so when a concept has several terms with the same score, the first one is kept. Concept names are indexed before their
+ * synonyms. Concepts tied with the k-th concept are all kept as well, so the caller can break the ties the same way regardless of k. As a result, more than k
+ * concepts can be returned.
+ * <p>
+ * The entries are kept in primitive arrays, indexed by slot, and the collector can be reset and reused for the next search, so collecting allocates nothing
+ * once the arrays have grown to the size a search needs.
+ */
+public class ConceptCollapsingCollector extends Collector {
+
+	private static Set<String>	CONCEPT_ID_FIELD			= Collections.singleton("CONCEPT_ID");
+	public static int			CANCELLATION_CHECK_INTERVAL	= 1024;
+
+	private int					k;
+	// The entries, indexed by slot:
+	private int[]				conceptIds;
+	private float[]				scores;
+	private int[]				docs;
+	// The position of the entry in the heap, or -1 if the entry is a tie:
+	private int[]				heapIndexes;
+	private int[]				freeSlots;
+	private int					freeSlotCount;
+	private int					slotCount;
+	// Min-heap of slots:
+	private int[]				heap;
+	private int					size;
+	private int[]				ties;
+	private int					tieCount;
+	private ConceptIdMap		conceptIdToSlot;
+	private Scorer				scorer;
+	private MaxScoreScorer		maxScoreScorer;
+	private AtomicReader		reader;
+	private int					docBase;
+	private NumericDocValues	conceptIdValues;
+	private BooleanSupplier		cancelled;
+	private int					collectedCount;
+
+	/**
+	 * @param k
+	 *            The maximum number of distinct concepts to collect. Must be at least 1
+	 */
+	public ConceptCollapsingCollector(int k) {
+		this(k, null);
+	}
+
+	/**
+	 * @param k
+	 *            The maximum number of distinct concepts to collect. Must be at least 1
+	 * @param cancelled
+	 *            Checked every {@link #CANCELLATION_CHECK_INTERVAL} documents. When it returns true, the search is abandoned by throwing a
+	 *            {@link UsagiSearchEngine.SearchCancelledException}. Set to null if the search cannot be cancelled
+	 */
+	public ConceptCollapsingCollector(int k, BooleanSupplier cancelled) {
+		checkK(k);
+		int capacity = k * 2;
+		conceptIds = new int[capacity];
+		scores = new float[capacity];
+		docs = new int[capacity];
+		heapIndexes = new int[capacity];
+		freeSlots = new int[capacity];
+		ties = new int[16];
+		conceptIdToSlot = new ConceptIdMap(capacity);
+		reset(k, cancelled);
+	}
+
+	/**
+	 * Empties the collector, so it can be used for another search. The arrays are kept.
+	 */
+	public void reset(int k, BooleanSupplier cancelled) {
+		checkK(k);
+		this.k = k;
+		this.cancelled = cancelled;
+		if (heap == null || heap.length < k)
+			heap = new int[k];
+		size = 0;
+		tieCount = 0;
+		slotCount = 0;
+		freeSlotCount = 0;
+		conceptIdToSlot.clear();
+		scorer = null;
+		maxScoreScorer = null;
+		reader = null;
+		conceptIdValues = null;
+		collectedCount = 0;
+	}
+
+	private static void checkK(int k) {
+		if (k < 1)
+			throw new IllegalArgumentException("The number of concepts to collect must be at least 1: " + k);
+	}
+
+	@Override
+	public void setScorer(Scorer scorer) throws IOException {
+		this.scorer = scorer;
+		maxScoreScorer = MaxScoreQuery.findScorer(scorer);
+		updateMinCompetitiveScore();
+	}
+
+	@Override
+	public void setNextReader(AtomicReaderContext context) throws IOException {
+		reader = context.reader();
+		docBase = context.docBase;
+		conceptIdValues = reader.getNumericDocValues("CONCEPT_ID");
+	}
+
+	@Override
+	public boolean acceptsDocsOutOfOrder() {
+		return false;
+	}
+
+	@Override
+	public void collect(int doc) throws IOException {
+		if (cancelled != null && ++collectedCount % CANCELLATION_CHECK_INTERVAL == 0)
+			UsagiSearchEngine.checkCancelled(cancelled);
+		float score = scorer.score();
+		// A document scoring lower than the worst concept in a full heap cannot enter it, and cannot improve a concept already in it:
+		if (size == k && score < scores[heap[0]])
+			return;
+		int conceptId;
+		if (conceptIdValues == null) {
+			// Indexes created before the doc values were added:
+			String value = reader.document(doc, CONCEPT_ID_FIELD).get("CONCEPT_ID");
+			if (value == null)
+				return;
+			conceptId = Integer.parseInt(value);
+		} else
+			conceptId = (int) conceptIdValues.get(doc);
+		offer(conceptId, score, docBase + doc);
+	}
+
+	/**
+	 * Adds the concepts collected by another collector, for instance one that searched a different set of segments. The result is the same as if this
+	 * collector had collected the documents of both.
+	 */
+	public void addAll(ConceptCollapsingCollector other) {
+		addAll(other, 1f);
+	}
+
+	/**
+	 * Adds the concepts collected by another collector, with their scores multiplied by a factor. Used to merge the results of a different query for the same
+	 * search, such as the search term with misspellings corrected.
+	 */
+	public void addAll(ConceptCollapsingCollector other, float scoreFactor) {
+		for (int i = 0; i < other.size; i++)
+			offer(other.conceptIds[other.heap[i]], scoreFactor * other.scores[other.heap[i]], other.docs[other.heap[i]]);
+		for (int i = 0; i < other.tieCount; i++)
+			offer(other.conceptIds[other.ties[i]], scoreFactor * other.scores[other.ties[i]], other.docs[other.ties[i]]);
+	}
+
+	/**
+	 * Adds a document found without running a query, for instance by a nearest-neighbour search. Documents can be added in any order.
+	 *
+	 * @param doc
+	 *            The document number in the top-level reader
+	 */
+	public void add(int conceptId, float score, int doc) {
+		offer(conceptId, score, doc);
+	}
+
+	private void offer(int conceptId, float score, int doc) {
+		if (size == k && score < scores[heap[0]])
+			return;
+		int slot = conceptIdToSlot.get(conceptId);
+		if (slot != -1) {
+			// Of two terms of a concept with the same score, the first is kept. Documents are collected in order, but merged collectors may not be:
+			if (score > scores[slot] || (score == scores[slot] && doc < docs[slot])) {
+				boolean improved = score > scores[slot];
+				scores[slot] = score;
+				docs[slot] = doc;
+				if (heapIndexes[slot] == -1) {
+					if (improved) {
+						removeTie(slot);
+						insertInFullHeap(slot);
+					}
+				} else {
+					downHeap(heapIndexes[slot]);
+					if (tieCount > 0 && scores[ties[0]] < scores[heap[0]])
+						clearTies();
+				}
+			}
+		} else {
+			slot = allocateSlot(conceptId, score, doc);
+			conceptIdToSlot.put(conceptId, slot);
+			if (size < k) {
+				heapIndexes[slot] = size;
+				heap[size++] = slot;
+				upHeap(heapIndexes[slot]);
+			} else if (score == scores[heap[0]])
+				addTie(slot);
+			else
+				insertInFullHeap(slot);
+		}
+		updateMinCompetitiveScore();
+	}
+
+	/**
+	 * Once the heap is full, documents scoring lower than the worst concept in the heap are no longer of interest. This allows a max-score scorer to skip them.
+	 */
+	private void updateMinCompetitiveScore() {
+		if (maxScoreScorer != null && size == k)
+			maxScoreScorer.setMinCompetitiveScore(scores[heap[0]]);
+	}
+
+	/**
+	 * Replaces the worst concept in the heap. The replaced concept becomes a tie if its score equals the new worst score, otherwise it and the ties are dropped.
+	 */
+	private void insertInFullHeap(int slot) {
+		int worst = heap[0];
+		heap[0] = slot;
+		heapIndexes[slot] = 0;
+		downHeap(0);
+		if (scores[worst] == scores[heap[0]])
+			addTie(worst);
+		else {
+			freeSlot(worst);
+			clearTies();
+		}
+	}
+
+	private void addTie(int slot) {
+		heapIndexes[slot] = -1;
+		if (tieCount == ties.length)
+			ties = ArrayUtil.grow(ties, tieCount + 1);
+		ties[tieCount++] = slot;
+	}
+
+	private void removeTie(int slot) {
+		for (int i = 0; i < tieCount; i++)
+			if (ties[i] == slot) {
+				ties[i] = ties[--tieCount];
+				return;
+			}
+	}
+
+	private void clearTies() {
+		for (int i = 0; i < tieCount; i++)
+			freeSlot(ties[i]);
+		tieCount = 0;
+	}
+
+	private int allocateSlot(int conceptId, float score, int doc) {
+		int slot;
+		if (freeSlotCount > 0)
+			slot = freeSlots[--freeSlotCount];
+		else {
+			slot = slotCount++;
+			if (slot == conceptIds.length) {
+				conceptIds = ArrayUtil.grow(conceptIds, slot + 1);
+				scores = ArrayUtil.grow(scores, conceptIds.length);
+				docs = ArrayUtil.grow(docs, conceptIds.length);
+				heapIndexes = ArrayUtil.grow(heapIndexes, conceptIds.length);
+				freeSlots = ArrayUtil.grow(freeSlots, conceptIds.length);
+			}
+		}
+		conceptIds[slot] = conceptId;
+		scores[slot] = score;
+		docs[slot] = doc;
+		return slot;
+	}
+
+	private void freeSlot(int slot) {
+		conceptIdToSlot.remove(conceptIds[slot]);
+		freeSlots[freeSlotCount++] = slot;
+	}
+
+	/**
+	 * @return The best scoring document of each of the top concepts, ordered by descending score. Ties are ordered by document
+	 */
+	public ScoreDoc[] getScoreDocs() {
+		int[] slots = Arrays.copyOf(heap, size + tieCount);
+		System.arraycopy(ties, 0, slots, size, tieCount);
+		// Insertion sort, most of the slots are already in heap order:
+		for (int i = 1; i < slots.length; i++)
+			for (int j = i; j > 0 && lessThan(slots[j - 1], slots[j]); j--) {
+				int slot = slots[j];
+				slots[j] = slots[j - 1];
+				slots[j - 1] = slot;
+			}
+		ScoreDoc[] scoreDocs = new ScoreDoc[slots.length];
+		for (int i = 0; i < slots.length; i++)
+			scoreDocs[i] = new ScoreDoc(docs[slots[i]], scores[slots[i]]);
+		return scoreDocs;
+	}
+
+	private boolean lessThan(int a, int b) {
+		if (scores[a] == scores[b])
+			return docs[a] > docs[b];
+		else
+			return scores[a] < scores[b];
+	}
+
+	private void upHeap(int i) {
+		int slot = heap[i];
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (!lessThan(slot, heap[parent]))
+				break;
+			heap[i] = heap[parent];
+			heapIndexes[heap[i]] = i;
+			i = parent;
+		}
+		heap[i] = slot;
+		heapIndexes[slot] = i;
+	}
+
+	private void downHeap(int i) {
+		int slot = heap[i];
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size && lessThan(heap[child + 1], heap[child]))
+				child++;
+			if (!lessThan(heap[child], slot))
+				break;
+			heap[i] = heap[child];
+			heapIndexes[heap[i]] = i;
+			i = child;
+		}
+		heap[i] = slot;
+		heapIndexes[slot] = i;
+	}
+
+	/**
+	 * Open addressing hash map from concept ID to slot, with linear probing. Removed keys are filled by shifting back the keys that follow them, so there are
+	 * no tombstones and the map can be cleared and reused indefinitely.
+	 */
+	private static class ConceptIdMap {
+		private static int	EMPTY	= Integer.MIN_VALUE;
+
+		private int[]		keys;
+		private int[]		values;
+		private int			mask;
+		private int			count;
+
+		public ConceptIdMap(int expectedSize) {
+			int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2) - 1) << 1;
+			keys = new int[capacity];
+			values = new int[capacity];
+			mask = capacity - 1;
+			Arrays.fill(keys, EMPTY);
+		}
+
+		public void clear() {
+			if (count > 0) {
+				Arrays.fill(keys, EMPTY);
+				count = 0;
+			}
+		}
+
+		/**
+		 * @return The slot of the concept, or -1 if the concept is not in the map
+		 */
+		public int get(int key) {
+			for (int i = hash(key);; i = (i + 1) & mask) {
+				if (keys[i] == key)
+					return values[i];
+				if (keys[i] == EMPTY)
+					return -1;
+			}
+		}
+
+		public void put(int key, int value) {
+			if (2 * (count + 1) > keys.length)
+				rehash(keys.length * 2);
+			int i = hash(key);
+			while (keys[i] != EMPTY && keys[i] != key)
+				i = (i + 1) & mask;
+			if (keys[i] == EMPTY)
+				count++;
+			keys[i] = key;
+			values[i] = value;
+		}
+
+		public void remove(int key) {
+			int i = hash(key);
+			while (keys[i] != key) {
+				if (keys[i] == EMPTY)
+					return;
+				i = (i + 1) & mask;
+			}
+			count--;
+			// Shift back the following keys that would no longer be found:
+			int j = i;
+			while (true) {
+				j = (j + 1) & mask;
+				if (keys[j] == EMPTY)
+					break;
+				int home = hash(keys[j]);
+				if (((j - home) & mask) >= ((j - i) & mask)) {
+					keys[i] = keys[j];
+					values[i] = values[j];
+					i = j;
+				}
+			}
+			keys[i] = EMPTY;
+		}
+
+		private int hash(int key) {
+			int hash = key * 0x9E3779B9;
+			return (hash ^ (hash >>> 16)) & mask;
+		}
+
+		private void rehash(int capacity) {
+			int[] oldKeys = keys;
+			int[] oldValues = values;
+			keys = new int[capacity];
+			values = new int[capacity];
+			mask = capacity - 1;
+			Arrays.fill(keys, EMPTY);
+			count = 0;
+			for (int i = 0; i < oldKeys.length; i++)
+				if (oldKeys[i] != EMPTY)
+					put(oldKeys[i], oldValues[i]);
+		}
+	}
+}
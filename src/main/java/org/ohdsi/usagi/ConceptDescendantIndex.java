@@ -0,0 +1,335 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.InputStreamDataInput;
+import org.apache.lucene.store.OutputStreamDataOutput;
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * All descendants of every concept, from the full CONCEPT_ANCESTOR table, for restricting a search to the descendants of chosen concepts. The table has tens
+ * of millions of rows, so the index is kept on disk: the descendants of each ancestor are stored as one run of sorted, delta-encoded concept IDs, mostly one
+ * or two bytes each, and only the directory (the ancestor IDs and the positions of their runs) is held in memory. Looking up an ancestor reads its run with
+ * one positional read, so lookups can be made from several threads at once.
+ * <p>
+ * A concept is not stored as its own descendant.
+ */
+public class ConceptDescendantIndex implements Closeable {
+
+	public static String	FILE_NAME			= "ConceptDescendants.bin";
+	private static int		FILE_FORMAT_VERSION	= 1;
+
+	private RandomAccessFile	file;
+	private FileChannel			channel;
+	private int[]				ancestorIds;
+	// The run of ancestor i runs from offsets[i] to offsets[i + 1]:
+	private long[]				offsets;
+	private int[]				descendantCounts;
+
+	private ConceptDescendantIndex() {
+	}
+
+	/**
+	 * Opens an index written by the {@link Builder}.
+	 *
+	 * @return The index, or null if the file does not exist or has a different format
+	 */
+	public static ConceptDescendantIndex open(File file) {
+		if (!file.exists())
+			return null;
+		ConceptDescendantIndex index = new ConceptDescendantIndex();
+		try {
+			index.file = new RandomAccessFile(file, "r");
+			index.channel = index.file.getChannel();
+			if (index.file.readInt() != FILE_FORMAT_VERSION) {
+				index.close();
+				return null;
+			}
+			index.file.seek(index.file.length() - 8);
+			long directoryPosition = index.file.readLong();
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(index.read(directoryPosition, index.file.length() - 8)));
+			int ancestorCount = in.readInt();
+			index.ancestorIds = new int[ancestorCount];
+			index.descendantCounts = new int[ancestorCount];
+			index.offsets = new long[ancestorCount + 1];
+			for (int i = 0; i < ancestorCount; i++) {
+				index.ancestorIds[i] = in.readInt();
+				index.descendantCounts[i] = in.readInt();
+				index.offsets[i] = in.readLong();
+			}
+			index.offsets[ancestorCount] = directoryPosition;
+			return index;
+		} catch (IOException e) {
+			System.err.println("Unable to read concept descendants: " + e.getMessage());
+			try {
+				index.close();
+			} catch (IOException e2) {
+				// Already reporting the first error
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * @return The sorted IDs of the descendants of the concept, not including the concept itself. Empty if the concept has no descendants
+	 */
+	public int[] getDescendants(int ancestorId) throws IOException {
+		int i = Arrays.binarySearch(ancestorIds, ancestorId);
+		if (i < 0)
+			return new int[0];
+		ByteArrayDataInput in = new ByteArrayDataInput(read(offsets[i], offsets[i + 1]));
+		int[] descendants = new int[descendantCounts[i]];
+		int previous = 0;
+		for (int j = 0; j < descendants.length; j++) {
+			previous += in.readVInt();
+			descendants[j] = previous;
+		}
+		return descendants;
+	}
+
+	/**
+	 * Reads a part of the file with a positional read, which does not move the file pointer, so parts can be read by several threads at once.
+	 */
+	private byte[] read(long start, long end) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+		while (buffer.hasRemaining())
+			if (channel.read(buffer, start + buffer.position()) == -1)
+				throw new IOException("Unexpected end of file " + FILE_NAME);
+		return buffer.array();
+	}
+
+	/**
+	 * @return The sorted, distinct IDs of the given concepts and all their descendants
+	 */
+	public int[] getDescendantsAndSelf(Collection<Integer> ancestorIds) throws IOException {
+		int[] result = new int[0];
+		for (int ancestorId : ancestorIds) {
+			int[] descendants = getDescendants(ancestorId);
+			int[] merged = new int[result.length + descendants.length + 1];
+			System.arraycopy(result, 0, merged, 0, result.length);
+			System.arraycopy(descendants, 0, merged, result.length, descendants.length);
+			merged[merged.length - 1] = ancestorId;
+			result = merged;
+		}
+		Arrays.sort(result);
+		int count = 0;
+		for (int i = 0; i < result.length; i++)
+			if (i == 0 || result[i] != result[i - 1])
+				result[count++] = result[i];
+		return Arrays.copyOf(result, count);
+	}
+
+	public int getAncestorCount() {
+		return ancestorIds.length;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (file != null)
+			file.close();
+	}
+
+	/**
+	 * Writes the index from ancestor-descendant pairs added in any order. The pairs are collected in sorted runs of bounded size, which are spilled to
+	 * temporary files and merged when the index is written, so the memory used does not depend on the size of the ancestor table.
+	 */
+	public static class Builder {
+
+		static int	RUN_SIZE	= 1 << 22;
+
+		private long[]		pairs		= new long[1024];
+		private int			pairCount	= 0;
+		private List<File>	runFiles	= new ArrayList<File>();
+
+		/**
+		 * Adds a pair. Pairs of a concept with itself are ignored.
+		 */
+		public void add(int ancestorId, int descendantId) throws IOException {
+			if (ancestorId == descendantId)
+				return;
+			if (pairCount == pairs.length) {
+				if (pairCount >= RUN_SIZE)
+					spillRun();
+				else
+					pairs = ArrayUtil.grow(pairs, pairCount + 1);
+			}
+			// Concept IDs are positive, so the packed pairs sort by ancestor ID, then by descendant ID:
+			pairs[pairCount++] = ((long) ancestorId << 32) | (descendantId & 0xFFFFFFFFL);
+		}
+
+		private void spillRun() throws IOException {
+			Arrays.sort(pairs, 0, pairCount);
+			File runFile = File.createTempFile("usagiDescendants", ".run");
+			runFile.deleteOnExit();
+			try (OutputStreamDataOutput dataOutput = new OutputStreamDataOutput(new BufferedOutputStream(new FileOutputStream(runFile)))) {
+				dataOutput.writeVInt(pairCount);
+				long previous = 0;
+				for (int i = 0; i < pairCount; i++) {
+					dataOutput.writeVLong(pairs[i] - previous);
+					previous = pairs[i];
+				}
+			}
+			runFiles.add(runFile);
+			pairCount = 0;
+		}
+
+		/**
+		 * Writes the index, and deletes the temporary files.
+		 */
+		public void write(File file) throws IOException {
+			Arrays.sort(pairs, 0, pairCount);
+			List<Run> runs = new ArrayList<Run>();
+			try {
+				runs.add(new MemoryRun(pairs, pairCount));
+				for (File runFile : runFiles)
+					runs.add(new FileRun(runFile));
+				PriorityQueue<Run> queue = new PriorityQueue<Run>((a, b) -> Long.compare(a.current, b.current));
+				for (Run run : runs)
+					if (run.next())
+						queue.add(run);
+
+				int[] ancestorIds = new int[1024];
+				int[] descendantCounts = new int[1024];
+				long[] offsets = new long[1024];
+				int ancestorCount = 0;
+				try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+					OutputStreamDataOutput dataOutput = new OutputStreamDataOutput(out);
+					out.writeInt(FILE_FORMAT_VERSION);
+					long previousPair = -1;
+					int previousDescendant = 0;
+					while (!queue.isEmpty()) {
+						Run run = queue.poll();
+						long pair = run.current;
+						if (run.next())
+							queue.add(run);
+						if (pair == previousPair)
+							continue;
+						int ancestorId = (int) (pair >>> 32);
+						int descendantId = (int) pair;
+						if (ancestorCount == 0 || ancestorIds[ancestorCount - 1] != ancestorId) {
+							ancestorIds = ArrayUtil.grow(ancestorIds, ancestorCount + 1);
+							descendantCounts = ArrayUtil.grow(descendantCounts, ancestorCount + 1);
+							offsets = ArrayUtil.grow(offsets, ancestorCount + 1);
+							ancestorIds[ancestorCount] = ancestorId;
+							offsets[ancestorCount] = out.size();
+							ancestorCount++;
+							previousDescendant = 0;
+						}
+						dataOutput.writeVInt(descendantId - previousDescendant);
+						descendantCounts[ancestorCount - 1]++;
+						previousDescendant = descendantId;
+						previousPair = pair;
+					}
+					long directoryPosition = out.size();
+					out.writeInt(ancestorCount);
+					for (int i = 0; i < ancestorCount; i++) {
+						out.writeInt(ancestorIds[i]);
+						out.writeInt(descendantCounts[i]);
+						out.writeLong(offsets[i]);
+					}
+					out.writeLong(directoryPosition);
+				}
+			} finally {
+				for (Run run : runs)
+					run.close();
+				for (File runFile : runFiles)
+					runFile.delete();
+				runFiles.clear();
+				pairs = new long[1024];
+				pairCount = 0;
+			}
+		}
+
+		private static abstract class Run implements Closeable {
+			protected long current;
+
+			/**
+			 * Moves to the next pair of the run.
+			 *
+			 * @return false if the run has no more pairs
+			 */
+			public abstract boolean next() throws IOException;
+
+			@Override
+			public void close() throws IOException {
+			}
+		}
+
+		private static class MemoryRun extends Run {
+			private long[]	pairs;
+			private int		count;
+			private int		index	= 0;
+
+			public MemoryRun(long[] pairs, int count) {
+				this.pairs = pairs;
+				this.count = count;
+			}
+
+			@Override
+			public boolean next() {
+				if (index == count)
+					return false;
+				current = pairs[index++];
+				return true;
+			}
+		}
+
+		private static class FileRun extends Run {
+			private InputStreamDataInput	dataInput;
+			private int						remaining;
+
+			public FileRun(File file) throws IOException {
+				dataInput = new InputStreamDataInput(new BufferedInputStream(new FileInputStream(file)));
+				remaining = dataInput.readVInt();
+				current = 0;
+			}
+
+			@Override
+			public boolean next() throws IOException {
+				if (remaining == 0)
+					return false;
+				current += dataInput.readVLong();
+				remaining--;
+				return true;
+			}
+
+			@Override
+			public void close() throws IOException {
+				dataInput.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,205 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BitsFilteredDocIdSet;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+
+/**
+ * Non-scoring filter restricting a search to concept terms matching the domain, concept class, vocabulary, standard concept, term type and ancestor
+ * restrictions selected by the user. The filter is immutable and implements equals and hashCode, so it can be used as the signature of a filter combination.
+ * The doc-id bitset of each index segment is computed once and kept in a {@link FilterBitSetCache}.
+ */
+public class ConceptFilter extends Filter {
+
+	private FilterBitSetCache	cache;
+	private Set<String>			domains;
+	private Set<String>			conceptClasses;
+	private Set<String>			vocabularies;
+	private boolean				filterStandard;
+	private boolean				includeSourceConcepts;
+	private Set<Integer>		ancestorConceptIds;
+	private int[]				descendantConceptIds;
+
+	public ConceptFilter(FilterBitSetCache cache, Collection<String> domains, Collection<String> conceptClasses, Collection<String> vocabularies,
+			boolean filterStandard, boolean includeSourceConcepts) {
+		this(cache, domains, conceptClasses, vocabularies, filterStandard, includeSourceConcepts, null, null);
+	}
+
+	/**
+	 * @param ancestorConceptIds
+	 *            The concepts to whose descendants the search is restricted. Set to null if not restricting by ancestor
+	 * @param descendantConceptIds
+	 *            The sorted IDs of the ancestor concepts and all their descendants, see {@link ConceptDescendantIndex#getDescendantsAndSelf(Collection)}.
+	 *            Ignored if not restricting by ancestor
+	 */
+	public ConceptFilter(FilterBitSetCache cache, Collection<String> domains, Collection<String> conceptClasses, Collection<String> vocabularies,
+			boolean filterStandard, boolean includeSourceConcepts, Collection<Integer> ancestorConceptIds, int[] descendantConceptIds) {
+		this.cache = cache;
+		this.domains = toSortedSet(domains);
+		this.conceptClasses = toSortedSet(conceptClasses);
+		this.vocabularies = toSortedSet(vocabularies);
+		this.filterStandard = filterStandard;
+		this.includeSourceConcepts = includeSourceConcepts;
+		if (ancestorConceptIds == null || ancestorConceptIds.size() == 0)
+			this.ancestorConceptIds = Collections.emptySet();
+		else {
+			this.ancestorConceptIds = Collections.unmodifiableSet(new TreeSet<Integer>(ancestorConceptIds));
+			this.descendantConceptIds = descendantConceptIds;
+		}
+	}
+
+	private static Set<String> toSortedSet(Collection<String> values) {
+		if (values == null || values.size() == 0)
+			return Collections.emptySet();
+		else
+			return Collections.unmodifiableSet(new TreeSet<String>(values));
+	}
+
+	/**
+	 * @return The domains the search is restricted to, sorted. Empty if not restricting by domain
+	 */
+	public Set<String> getDomains() {
+		return domains;
+	}
+
+	@Override
+	public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+		AtomicReader reader = context.reader();
+		FixedBitSet bitSet = null;
+		if (cache != null)
+			bitSet = cache.get(reader.getCoreCacheKey(), this);
+		if (bitSet == null) {
+			bitSet = createBitSet(reader);
+			if (cache != null)
+				cache.put(reader.getCoreCacheKey(), this, bitSet);
+		}
+		return BitsFilteredDocIdSet.wrap(bitSet, acceptDocs);
+	}
+
+	/**
+	 * Checks a concept term against the filter without using the index, for instance for terms found in the {@link ExactMatchDictionary}.
+	 */
+	public boolean accepts(Concept concept, String termType) {
+		if (domains.size() != 0 && !domains.contains(concept.domainId))
+			return false;
+		if (conceptClasses.size() != 0 && !conceptClasses.contains(concept.conceptClassId))
+			return false;
+		if (vocabularies.size() != 0 && !vocabularies.contains(concept.vocabularyId))
+			return false;
+		if (filterStandard && !concept.standardConcept.equals("S"))
+			return false;
+		if (!includeSourceConcepts && !termType.equals(UsagiSearchEngine.CONCEPT_TERM))
+			return false;
+		if (descendantConceptIds != null && Arrays.binarySearch(descendantConceptIds, concept.conceptId) < 0)
+			return false;
+		return true;
+	}
+
+	private FixedBitSet createBitSet(AtomicReader reader) throws IOException {
+		FixedBitSet bitSet = createBitSet(reader, "TYPE", Collections.singleton(UsagiSearchEngine.CONCEPT_TYPE_STRING));
+		if (domains.size() != 0)
+			bitSet.and(createBitSet(reader, "DOMAIN_ID", domains));
+		if (conceptClasses.size() != 0)
+			bitSet.and(createBitSet(reader, "CONCEPT_CLASS_ID", conceptClasses));
+		if (vocabularies.size() != 0)
+			bitSet.and(createBitSet(reader, "VOCABULARY_ID", vocabularies));
+		if (filterStandard)
+			bitSet.and(createBitSet(reader, "STANDARD_CONCEPT", Collections.singleton("S")));
+		if (!includeSourceConcepts)
+			bitSet.and(createBitSet(reader, "TERM_TYPE", Collections.singleton(UsagiSearchEngine.CONCEPT_TERM)));
+		if (descendantConceptIds != null)
+			filterDescendants(reader, bitSet);
+		return bitSet;
+	}
+
+	/**
+	 * Clears the documents of concepts that are not descendants of the ancestors. An ancestor can have hundreds of thousands of descendants, so rather than
+	 * seeking every descendant in the CONCEPT_ID terms, the concept ID of every document still in the bitset is looked up in the sorted descendants.
+	 */
+	private void filterDescendants(AtomicReader reader, FixedBitSet bitSet) throws IOException {
+		NumericDocValues conceptIdValues = reader.getNumericDocValues("CONCEPT_ID");
+		if (conceptIdValues == null) {
+			// Indexes built before the concept IDs were stored as doc values:
+			List<String> conceptIds = new ArrayList<String>(descendantConceptIds.length);
+			for (int conceptId : descendantConceptIds)
+				conceptIds.add(Integer.toString(conceptId));
+			bitSet.and(createBitSet(reader, "CONCEPT_ID", conceptIds));
+			return;
+		}
+		int doc = bitSet.length() == 0 ? -1 : bitSet.nextSetBit(0);
+		while (doc != -1) {
+			if (Arrays.binarySearch(descendantConceptIds, (int) conceptIdValues.get(doc)) < 0)
+				bitSet.clear(doc);
+			doc = doc + 1 < bitSet.length() ? bitSet.nextSetBit(doc + 1) : -1;
+		}
+	}
+
+	private FixedBitSet createBitSet(AtomicReader reader, String field, Collection<String> values) throws IOException {
+		FixedBitSet bitSet = new FixedBitSet(reader.maxDoc());
+		for (String value : values) {
+			DocsEnum docsEnum = reader.termDocsEnum(new Term(field, value));
+			if (docsEnum != null)
+				bitSet.or(docsEnum);
+		}
+		return bitSet;
+	}
+
+	@Override
+	public int hashCode() {
+		int result = domains.hashCode();
+		result = 31 * result + conceptClasses.hashCode();
+		result = 31 * result + vocabularies.hashCode();
+		result = 31 * result + (filterStandard ? 1 : 0);
+		result = 31 * result + (includeSourceConcepts ? 1 : 0);
+		result = 31 * result + ancestorConceptIds.hashCode();
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof ConceptFilter))
+			return false;
+		ConceptFilter other = (ConceptFilter) obj;
+		return filterStandard == other.filterStandard && includeSourceConcepts == other.includeSourceConcepts && domains.equals(other.domains)
+				&& conceptClasses.equals(other.conceptClasses) && vocabularies.equals(other.vocabularies) && ancestorConceptIds.equals(other.ancestorConceptIds);
+	}
+
+	@Override
+	public String toString() {
+		return "ConceptFilter(domains=" + domains + ", conceptClasses=" + conceptClasses + ", vocabularies=" + vocabularies + ", standard=" + filterStandard
+				+ ", includeSourceConcepts=" + includeSourceConcepts + ", ancestorConceptIds=" + ancestorConceptIds + ")";
+	}
+}
@@ -0,0 +1,228 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.lucene.store.InputStreamDataInput;
+import org.apache.lucene.store.OutputStreamDataOutput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.OfflineSorter;
+import org.apache.lucene.util.OfflineSorter.ByteSequencesReader;
+import org.apache.lucene.util.OfflineSorter.ByteSequencesWriter;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.PositiveIntOutputs;
+import org.apache.lucene.util.fst.Util;
+
+/**
+ * Suggests concept names and synonyms that start with a prefix, for type-ahead in the query field. The terms are stored in an FST, keyed on the normalized
+ * term followed by the term as written, so the suggestions keep their original case. The output of each term is its cost: the lower the cost, the higher the
+ * term is suggested. Completing a prefix only walks the FST, so it takes microseconds and does not touch the search index.
+ */
+public class ConceptSuggester {
+
+	/**
+	 * The highest weight a term can be given when it is added.
+	 */
+	public static int					MAX_WEIGHT			= 255;
+	private static int					FILE_FORMAT_VERSION	= 1;
+	private static int					MAX_TERM_LENGTH		= 255;
+	private static Comparator<Long>		COST_COMPARATOR		= Comparator.naturalOrder();
+
+	private FST<Long>					fst;
+
+	private ConceptSuggester(FST<Long> fst) {
+		this.fst = fst;
+	}
+
+	/**
+	 * Normalizes a prefix the same way terms are normalized in the FST. Unlike {@link ExactMatchDictionary#normalize(String)}, trailing whitespace is kept, so
+	 * "heart " only matches terms where "heart" is a whole word.
+	 */
+	private static String normalizePrefix(String prefix) {
+		return prefix.replaceAll("\\s+", " ").replaceFirst("^ ", "").toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Finds the best terms starting with the prefix.
+	 *
+	 * @param prefix
+	 *            The prefix as typed by the user. Case and runs of whitespace are ignored
+	 * @param count
+	 *            The maximum number of suggestions
+	 * @return The suggestions as written in the vocabulary, best first. Terms that differ only in case or whitespace are suggested once
+	 */
+	public List<String> suggest(String prefix, int count) throws IOException {
+		BytesRef prefixBytes = new BytesRef(normalizePrefix(prefix));
+		if (fst == null || prefixBytes.length == 0 || count <= 0)
+			return Collections.emptyList();
+		FST.BytesReader bytesReader = fst.getBytesReader();
+		FST.Arc<Long> arc = fst.getFirstArc(new FST.Arc<Long>());
+		Long prefixOutput = fst.outputs.getNoOutput();
+		for (int i = 0; i < prefixBytes.length; i++) {
+			if (fst.findTargetArc(prefixBytes.bytes[prefixBytes.offset + i] & 0xFF, arc, arc, bytesReader) == null)
+				return Collections.emptyList();
+			prefixOutput = fst.outputs.add(prefixOutput, arc.output);
+		}
+		Util.TopResults<Long> completions = Util.shortestPaths(fst, arc, prefixOutput, COST_COMPARATOR, count, false);
+		List<String> suggestions = new ArrayList<String>(completions.topN.size());
+		BytesRef suffix = new BytesRef();
+		for (Util.Result<Long> completion : completions) {
+			Util.toBytesRef(completion.input, suffix);
+			// The key is the normalized term, a zero byte and the term as written. The prefix cannot contain the zero byte, so it is in the suffix:
+			int separator = indexOf(suffix, (byte) 0);
+			if (separator != -1)
+				suggestions.add(new String(suffix.bytes, separator + 1, suffix.length - separator - 1, StandardCharsets.UTF_8));
+		}
+		return suggestions;
+	}
+
+	private static int indexOf(BytesRef bytes, byte value) {
+		for (int i = bytes.offset; i < bytes.offset + bytes.length; i++)
+			if (bytes.bytes[i] == value)
+				return i;
+		return -1;
+	}
+
+	public long ramBytesUsed() {
+		return fst == null ? 0 : fst.ramBytesUsed();
+	}
+
+	public void save(File file) throws IOException {
+		try (OutputStreamDataOutput out = new OutputStreamDataOutput(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(FILE_FORMAT_VERSION);
+			out.writeByte((byte) (fst == null ? 0 : 1));
+			if (fst != null)
+				fst.save(out);
+		}
+	}
+
+	/**
+	 * Loads a suggester saved earlier.
+	 *
+	 * @return The suggester, or null if the file does not exist or has an unknown format
+	 */
+	public static ConceptSuggester load(File file) {
+		if (!file.exists())
+			return null;
+		try (InputStreamDataInput in = new InputStreamDataInput(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != FILE_FORMAT_VERSION)
+				return null;
+			FST<Long> fst = null;
+			if (in.readByte() == 1)
+				fst = new FST<Long>(in, PositiveIntOutputs.getSingleton());
+			return new ConceptSuggester(fst);
+		} catch (IOException e) {
+			System.err.println("Unable to read concept suggester: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Collects the terms while the index is built. Like the {@link ExactMatchDictionary.Builder}, the terms are written to a temporary file that is sorted on
+	 * disk.
+	 */
+	public static class Builder {
+		private File				unsortedFile;
+		private ByteSequencesWriter	writer;
+		private BytesRef			entry	= new BytesRef();
+
+		public Builder() throws IOException {
+			unsortedFile = File.createTempFile("suggestions", ".unsorted", OfflineSorter.defaultTempDir());
+			writer = new ByteSequencesWriter(unsortedFile);
+		}
+
+		/**
+		 * Adds a term. Entries consist of the normalized term, a zero byte, the cost of the term (two bytes) and the term as written. Entries of the same
+		 * normalized term therefore sort cheapest first. Among terms of equal weight, shorter terms cost less, so a prefix is completed to the most general
+		 * terms first.
+		 *
+		 * @param weight
+		 *            The weight of the term, between 0 and {@link #MAX_WEIGHT}
+		 */
+		public void add(String term, int weight) throws IOException {
+			String trimmedTerm = term.trim();
+			if (trimmedTerm.isEmpty() || trimmedTerm.length() > MAX_TERM_LENGTH || trimmedTerm.indexOf(0) != -1)
+				return;
+			BytesRef termBytes = new BytesRef(ExactMatchDictionary.normalize(trimmedTerm));
+			BytesRef originalBytes = new BytesRef(trimmedTerm);
+			int cost = (MAX_WEIGHT - Math.max(0, Math.min(MAX_WEIGHT, weight))) * (MAX_TERM_LENGTH + 1) + trimmedTerm.length();
+			entry.grow(termBytes.length + 3 + originalBytes.length);
+			System.arraycopy(termBytes.bytes, termBytes.offset, entry.bytes, 0, termBytes.length);
+			int position = termBytes.length;
+			entry.bytes[position++] = 0;
+			entry.bytes[position++] = (byte) (cost >>> 8);
+			entry.bytes[position++] = (byte) cost;
+			System.arraycopy(originalBytes.bytes, originalBytes.offset, entry.bytes, position, originalBytes.length);
+			entry.length = position + originalBytes.length;
+			writer.write(entry);
+		}
+
+		public ConceptSuggester build() throws IOException {
+			writer.close();
+			File sortedFile = File.createTempFile("suggestions", ".sorted", OfflineSorter.defaultTempDir());
+			try {
+				new OfflineSorter().sort(unsortedFile, sortedFile);
+				unsortedFile.delete();
+
+				org.apache.lucene.util.fst.Builder<Long> fstBuilder = new org.apache.lucene.util.fst.Builder<Long>(FST.INPUT_TYPE.BYTE1,
+						PositiveIntOutputs.getSingleton());
+				IntsRef scratchInts = new IntsRef();
+				BytesRef previousTerm = new BytesRef();
+				BytesRef term = new BytesRef();
+				BytesRef key = new BytesRef();
+				boolean first = true;
+				try (ByteSequencesReader reader = new ByteSequencesReader(sortedFile)) {
+					BytesRef entry = new BytesRef();
+					while (reader.read(entry)) {
+						term.bytes = entry.bytes;
+						term.offset = entry.offset;
+						term.length = indexOf(entry, (byte) 0) - entry.offset;
+						// Only the cheapest entry of a normalized term is kept:
+						if (!first && term.bytesEquals(previousTerm))
+							continue;
+						first = false;
+						previousTerm.copyBytes(term);
+						int position = entry.offset + term.length + 1;
+						long cost = ((entry.bytes[position] & 0xFF) << 8) | (entry.bytes[position + 1] & 0xFF);
+						int originalLength = entry.length - term.length - 3;
+						key.grow(term.length + 1 + originalLength);
+						System.arraycopy(term.bytes, term.offset, key.bytes, 0, term.length);
+						key.bytes[term.length] = 0;
+						System.arraycopy(entry.bytes, position + 2, key.bytes, term.length + 1, originalLength);
+						key.length = term.length + 1 + originalLength;
+						fstBuilder.add(Util.toIntsRef(key, scratchInts), cost);
+					}
+				}
+				return new ConceptSuggester(fstBuilder.finish());
+			} finally {
+				sortedFile.delete();
+			}
+		}
+	}
+}
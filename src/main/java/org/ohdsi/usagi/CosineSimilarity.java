@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.FieldInvertState;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Lucene similarity that scores documents with the plain TF*IDF cosine used by Usagi: both the query and the document are represented as vectors of the IDFs
+ * of their distinct terms (term frequency is ignored), and the score is the cosine of the angle between the two vectors. Because the score is normalized it
+ * lies between 0 and 1, and the top documents collected by Lucene are directly the best cosine matches.
+ * <p>
+ * Each query term contributes idf^2 / (|q| * |d|). The query length |q| is applied through the query norm, and the document length |d| is taken from the
+ * precomputed {@link DocumentNorms}. Both the IDF table and the norms must have been computed over the reader being searched.
+ */
+public class CosineSimilarity extends Similarity {
+
+	private IdfTable		idfTable;
+	private DocumentNorms	documentNorms;
+
+	public CosineSimilarity(IdfTable idfTable, DocumentNorms documentNorms) {
+		this.idfTable = idfTable;
+		this.documentNorms = documentNorms;
+	}
+
+	@Override
+	public float queryNorm(float sumOfSquaredWeights) {
+		if (sumOfSquaredWeights == 0)
+			return 1f;
+		else
+			return (float) (1d / Math.sqrt(sumOfSquaredWeights));
+	}
+
+	@Override
+	public long computeNorm(FieldInvertState state) {
+		// Document norms are computed over the whole index afterwards, see DocumentNorms
+		return 1;
+	}
+
+	@Override
+	public SimWeight computeWeight(float queryBoost, CollectionStatistics collectionStats, TermStatistics... termStats) {
+		double idf = 0;
+		for (TermStatistics termStatistics : termStats)
+			idf += idfTable.idf(termStatistics.term());
+		return new CosineWeight(queryBoost, idf);
+	}
+
+	@Override
+	public SimScorer simScorer(SimWeight weight, AtomicReaderContext context) {
+		return new CosineScorer((CosineWeight) weight, context.docBase);
+	}
+
+	private static class CosineWeight extends SimWeight {
+		private double	queryWeight;
+		private double	idf;
+		private double	value;
+
+		public CosineWeight(float queryBoost, double idf) {
+			this.queryWeight = queryBoost * idf;
+			this.idf = idf;
+		}
+
+		@Override
+		public float getValueForNormalization() {
+			return (float) (queryWeight * queryWeight);
+		}
+
+		@Override
+		public void normalize(float queryNorm, float topLevelBoost) {
+			value = queryWeight * queryNorm * topLevelBoost * idf;
+		}
+	}
+
+	private class CosineScorer extends SimScorer {
+		private double	value;
+		private int		docBase;
+
+		public CosineScorer(CosineWeight weight, int docBase) {
+			this.value = weight.value;
+			this.docBase = docBase;
+		}
+
+		@Override
+		public float score(int doc, float freq) {
+			float norm = documentNorms.get(docBase + doc);
+			if (norm == 0)
+				return 0;
+			else
+				return (float) (value / norm);
+		}
+
+		@Override
+		public float computeSlopFactor(int distance) {
+			return 1;
+		}
+
+		@Override
+		public float computePayloadFactor(int doc, int start, int end, BytesRef payload) {
+			return 1;
+		}
+	}
+}
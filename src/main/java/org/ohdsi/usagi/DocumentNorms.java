@@ -0,0 +1,268 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * The length of the IDF vector of every document: the square root of the sum of the squared IDFs of the distinct terms in the document. This is the
+ * denominator of the document side of the cosine computed by {@link CosineSimilarity}. Because the IDFs depend on the whole index, the norms are computed
+ * after all documents have been added, and can be saved next to the index so they do not have to be recomputed when the index is opened.
+ * <p>
+ * Adding the source terms to the main index changes the IDFs, and so the norms of all documents. The norms of the main index together with the source terms
+ * are derived from statistics of the main index saved with its norms, see {@link #overlay}, so only the postings of the terms of the source terms have to be
+ * walked.
+ */
+public class DocumentNorms {
+
+	private static int	FILE_FORMAT_VERSION				= 1;
+	private static int	STATISTICS_FILE_FORMAT_VERSION	= 1;
+
+	private float[]		norms;
+	private long		indexVersion;
+
+	private DocumentNorms(float[] norms, long indexVersion) {
+		this.norms = norms;
+		this.indexVersion = indexVersion;
+	}
+
+	/**
+	 * Computes the norms by walking the postings of every term in the field once.
+	 *
+	 * @param reader
+	 *            The index reader
+	 * @param field
+	 *            The name of the field
+	 * @param idfTable
+	 *            The IDF table computed over the same reader
+	 * @param indexVersion
+	 *            The version of the index, used to detect stale norm files. Set to -1 if the norms will not be saved
+	 * @return The norms
+	 */
+	public static DocumentNorms compute(IndexReader reader, String field, IdfTable idfTable, long indexVersion) throws IOException {
+		return compute(reader, field, idfTable, indexVersion, null);
+	}
+
+	/**
+	 * Computes the norms, and saves the statistics needed to derive the norms of the index together with other documents, see {@link #overlay}.
+	 *
+	 * @param statisticsFile
+	 *            The file to save the statistics in, or null if they are not needed
+	 */
+	public static DocumentNorms compute(IndexReader reader, String field, IdfTable idfTable, long indexVersion, File statisticsFile) throws IOException {
+		double[] sumOfSquares = new double[reader.maxDoc()];
+		double[] sumOfIdfs = statisticsFile == null ? null : new double[reader.maxDoc()];
+		int[] termCounts = statisticsFile == null ? null : new int[reader.maxDoc()];
+		addWeights(reader, field, idfTable, 0, sumOfSquares, sumOfIdfs, termCounts);
+		if (statisticsFile != null)
+			saveStatistics(statisticsFile, indexVersion, sumOfSquares, sumOfIdfs, termCounts);
+		return new DocumentNorms(toNorms(sumOfSquares), indexVersion);
+	}
+
+	/**
+	 * Adds the squared IDFs of the terms of the documents of the reader to their sums, and optionally the IDFs and the number of terms.
+	 *
+	 * @param docOffset
+	 *            The number of the first document of the reader in the arrays
+	 */
+	private static void addWeights(IndexReader reader, String field, IdfTable idfTable, int docOffset, double[] sumOfSquares, double[] sumOfIdfs,
+			int[] termCounts) throws IOException {
+		DocsEnum docsEnum = null;
+		for (AtomicReaderContext context : reader.leaves()) {
+			AtomicReader atomicReader = context.reader();
+			Terms terms = atomicReader.terms(field);
+			if (terms == null)
+				continue;
+			TermsEnum termsEnum = terms.iterator(null);
+			BytesRef term;
+			while ((term = termsEnum.next()) != null) {
+				double idf = idfTable.idf(term);
+				double weight = idf * idf;
+				docsEnum = termsEnum.docs(atomicReader.getLiveDocs(), docsEnum, DocsEnum.FLAG_NONE);
+				int doc;
+				while ((doc = docsEnum.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+					int index = docOffset + context.docBase + doc;
+					sumOfSquares[index] += weight;
+					if (sumOfIdfs != null) {
+						sumOfIdfs[index] += idf;
+						termCounts[index]++;
+					}
+				}
+			}
+		}
+	}
+
+	private static float[] toNorms(double[] sumOfSquares) {
+		float[] norms = new float[sumOfSquares.length];
+		for (int i = 0; i < norms.length; i++)
+			norms[i] = (float) Math.sqrt(sumOfSquares[i]);
+		return norms;
+	}
+
+	private static void saveStatistics(File file, long indexVersion, double[] sumOfSquares, double[] sumOfIdfs, int[] termCounts) {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(STATISTICS_FILE_FORMAT_VERSION);
+			out.writeLong(indexVersion);
+			out.writeInt(sumOfSquares.length);
+			for (int i = 0; i < sumOfSquares.length; i++) {
+				out.writeDouble(sumOfSquares[i]);
+				out.writeDouble(sumOfIdfs[i]);
+				out.writeInt(termCounts[i]);
+			}
+		} catch (IOException e) {
+			System.err.println("Unable to write document norm statistics: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Derives the norms of the main index together with other documents from the statistics saved with the norms of the main index. The other documents come
+	 * after the documents of the main index, as in a MultiReader over both.
+	 * <p>
+	 * The other documents add N' - N documents, which shifts the IDF log(N / df) of every term not occurring in them by log(N' / N). So the new sum of squares
+	 * of a document follows from its old sum of squares, its sum of IDFs and its number of terms. Only the postings of the terms that do occur in the other
+	 * documents are walked, to correct for their changed document frequencies.
+	 *
+	 * @param statisticsFile
+	 *            The statistics saved by {@link #compute(IndexReader, String, IdfTable, long, File)}
+	 * @param mainIdfTable
+	 *            The IDF table of the main index
+	 * @param otherReader
+	 *            The reader of the other documents
+	 * @param idfTable
+	 *            The IDF table of the main index together with the other documents
+	 * @return The norms, or null if the statistics file does not exist or was created for a different version of the index
+	 */
+	public static DocumentNorms overlay(File statisticsFile, long indexVersion, IndexReader mainReader, IdfTable mainIdfTable, IndexReader otherReader,
+			IdfTable idfTable, String field) throws IOException {
+		if (!statisticsFile.exists())
+			return null;
+		int mainMaxDoc = mainReader.maxDoc();
+		double[] sumOfSquares = new double[mainMaxDoc + otherReader.maxDoc()];
+		double shift = Math.log(idfTable.getNumDocs() / (double) mainIdfTable.getNumDocs());
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(statisticsFile)))) {
+			if (in.readInt() != STATISTICS_FILE_FORMAT_VERSION || in.readLong() != indexVersion || in.readInt() != mainMaxDoc)
+				return null;
+			for (int i = 0; i < mainMaxDoc; i++) {
+				double oldSumOfSquares = in.readDouble();
+				double sumOfIdfs = in.readDouble();
+				int termCount = in.readInt();
+				sumOfSquares[i] = oldSumOfSquares + 2 * shift * sumOfIdfs + termCount * shift * shift;
+			}
+		} catch (IOException e) {
+			System.err.println("Unable to read document norm statistics: " + e.getMessage());
+			return null;
+		}
+
+		Terms otherTerms = MultiFields.getTerms(otherReader, field);
+		if (otherTerms != null) {
+			List<AtomicReaderContext> mainLeaves = mainReader.leaves();
+			TermsEnum[] mainTermsEnums = new TermsEnum[mainLeaves.size()];
+			for (int i = 0; i < mainTermsEnums.length; i++) {
+				Terms terms = mainLeaves.get(i).reader().terms(field);
+				mainTermsEnums[i] = terms == null ? null : terms.iterator(null);
+			}
+			DocsEnum docsEnum = null;
+			TermsEnum termsEnum = otherTerms.iterator(null);
+			BytesRef term;
+			while ((term = termsEnum.next()) != null) {
+				if (mainIdfTable.docFreq(term) == 0)
+					continue;
+				double idf = idfTable.idf(term);
+				double shiftedIdf = mainIdfTable.idf(term) + shift;
+				double correction = idf * idf - shiftedIdf * shiftedIdf;
+				for (int i = 0; i < mainTermsEnums.length; i++) {
+					if (mainTermsEnums[i] == null || !mainTermsEnums[i].seekExact(term))
+						continue;
+					AtomicReaderContext context = mainLeaves.get(i);
+					docsEnum = mainTermsEnums[i].docs(context.reader().getLiveDocs(), docsEnum, DocsEnum.FLAG_NONE);
+					int doc;
+					while ((doc = docsEnum.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS)
+						sumOfSquares[context.docBase + doc] += correction;
+				}
+			}
+		}
+		addWeights(otherReader, field, idfTable, mainMaxDoc, sumOfSquares, null, null);
+		return new DocumentNorms(toNorms(sumOfSquares), -1);
+	}
+
+	/**
+	 * Loads norms saved earlier.
+	 *
+	 * @return The norms, or null if the file does not exist or was created for a different version of the index
+	 */
+	public static DocumentNorms load(File file, int maxDoc, long indexVersion) {
+		if (!file.exists())
+			return null;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != FILE_FORMAT_VERSION || in.readLong() != indexVersion || in.readInt() != maxDoc)
+				return null;
+			float[] norms = new float[maxDoc];
+			for (int i = 0; i < maxDoc; i++)
+				norms[i] = in.readFloat();
+			return new DocumentNorms(norms, indexVersion);
+		} catch (IOException e) {
+			System.err.println("Unable to read document norms: " + e.getMessage());
+			return null;
+		}
+	}
+
+	public void save(File file) {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(FILE_FORMAT_VERSION);
+			out.writeLong(indexVersion);
+			out.writeInt(norms.length);
+			for (float norm : norms)
+				out.writeFloat(norm);
+		} catch (IOException e) {
+			System.err.println("Unable to write document norms: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @param doc
+	 *            The document number in the top-level reader
+	 */
+	public float get(int doc) {
+		return norms[doc];
+	}
+
+	public int size() {
+		return norms.length;
+	}
+
+	public long ramBytesUsed() {
+		return RamUsageEstimator.sizeOf(norms);
+	}
+}
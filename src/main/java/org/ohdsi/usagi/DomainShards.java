@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Version;
+
+/**
+ * The main index written as one sub-index (shard) per domain, see {@link IndexSettings#domainShards}. The shards are the folders
+ * {@value #SHARD_FOLDER_PREFIX}0, {@value #SHARD_FOLDER_PREFIX}1, ... in the main index folder, and are opened together as one reader, so the IDF tables and
+ * document norms are computed over all shards and scores do not depend on the sharding. A search restricted to some domains only scores the segments holding
+ * those domains, see {@link IndexGeneration#getLeaves(Set)}; an unrestricted search scores all segments of all shards, and the concepts found in the shards
+ * are merged by the collector as they are for the segments of an unsharded index.
+ */
+public class DomainShards {
+
+	public static String	SHARD_FOLDER_PREFIX	= "shard";
+	// Every shard has its own indexing buffer, but most domains are small, so their buffers never fill up:
+	private static double	SHARD_RAM_BUFFER_MB	= 16.0;
+
+	/**
+	 * @return The shard folders of the index, in shard order. Empty if the index is not sharded
+	 */
+	public static List<File> getShardFolders(File indexFolder) {
+		List<File> shardFolders = new ArrayList<File>();
+		File[] files = indexFolder.listFiles();
+		if (files == null)
+			return shardFolders;
+		for (File file : files)
+			if (file.isDirectory() && file.getName().matches(SHARD_FOLDER_PREFIX + "[0-9]+"))
+				shardFolders.add(file);
+		Collections.sort(shardFolders,
+				(a, b) -> Integer.compare(Integer.parseInt(a.getName().substring(SHARD_FOLDER_PREFIX.length())),
+						Integer.parseInt(b.getName().substring(SHARD_FOLDER_PREFIX.length()))));
+		return shardFolders;
+	}
+
+	/**
+	 * Opens the main index for reading, using the directory implementation of the settings. A sharded index is opened as one reader over all shards.
+	 */
+	public static IndexReader open(File indexFolder, IndexSettings indexSettings) throws IOException {
+		List<File> shardFolders = getShardFolders(indexFolder);
+		if (shardFolders.size() == 0)
+			return DirectoryReader.open(indexSettings.openDirectory(indexFolder));
+		IndexReader[] shardReaders = new IndexReader[shardFolders.size()];
+		try {
+			for (int i = 0; i < shardReaders.length; i++)
+				shardReaders[i] = DirectoryReader.open(indexSettings.openDirectory(shardFolders.get(i)));
+		} catch (IOException e) {
+			for (IndexReader shardReader : shardReaders)
+				if (shardReader != null)
+					shardReader.close();
+			throw e;
+		}
+		// Closing the reader closes the shards:
+		return new MultiReader(shardReaders);
+	}
+
+	/**
+	 * Opens the main index for reading with the default directory implementation.
+	 */
+	public static IndexReader open(File indexFolder) throws IOException {
+		return open(indexFolder, new IndexSettings());
+	}
+
+	/**
+	 * @return The version of the index, which changes whenever the index or one of its shards is rewritten. Used to check that files computed from the index,
+	 *         such as the document norms, are still up to date
+	 */
+	public static long getVersion(IndexReader reader) {
+		if (reader instanceof DirectoryReader)
+			return ((DirectoryReader) reader).getVersion();
+		List<IndexReaderContext> children = reader.getContext().children();
+		if (children == null)
+			return 0;
+		long version = 0;
+		for (IndexReaderContext child : children)
+			version = 31 * version + getVersion(child.reader());
+		return version;
+	}
+
+	/**
+	 * @return For every segment of the reader, by segment ordinal, the domains of the concept terms in the segment. Segments of a sharded index hold one
+	 *         domain, segments of an unsharded index usually all of them, and segments of source terms none
+	 */
+	public static List<Set<String>> getLeafDomains(IndexReader reader) throws IOException {
+		List<Set<String>> leafDomains = new ArrayList<Set<String>>(reader.leaves().size());
+		TermsEnum termsEnum = null;
+		for (AtomicReaderContext leaf : reader.leaves()) {
+			Set<String> domains = new TreeSet<String>();
+			Terms terms = leaf.reader().terms("DOMAIN_ID");
+			if (terms != null) {
+				termsEnum = terms.iterator(termsEnum);
+				BytesRef text;
+				while ((text = termsEnum.next()) != null)
+					domains.add(text.utf8ToString());
+			}
+			leafDomains.add(Collections.unmodifiableSet(domains));
+		}
+		return leafDomains;
+	}
+
+	/**
+	 * Writes the documents of each domain to the shard of that domain. A shard is created when the first document of its domain is added.
+	 */
+	public static class Writer implements Closeable {
+
+		private File						indexFolder;
+		private Map<String, IndexWriter>	writers	= new HashMap<String, IndexWriter>();
+
+		/**
+		 * @param indexFolder
+		 *            The folder of the main index. Must be empty or not exist
+		 */
+		public Writer(File indexFolder) {
+			this.indexFolder = indexFolder;
+			indexFolder.mkdirs();
+		}
+
+		public void addDocument(String domainId, Document document) throws IOException {
+			IndexWriter writer = writers.get(domainId);
+			if (writer == null) {
+				IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_4_9, new UsagiAnalyzer());
+				iwc.setOpenMode(OpenMode.CREATE);
+				iwc.setRAMBufferSizeMB(SHARD_RAM_BUFFER_MB);
+				writer = new IndexWriter(FSDirectory.open(new File(indexFolder, SHARD_FOLDER_PREFIX + writers.size())), iwc);
+				writers.put(domainId, writer);
+			}
+			writer.addDocument(document);
+		}
+
+		/**
+		 * Merges each shard into at most the given number of segments.
+		 */
+		public void forceMerge(int maxSegmentCount) throws IOException {
+			for (IndexWriter writer : writers.values())
+				writer.forceMerge(maxSegmentCount);
+		}
+
+		@Override
+		public void close() throws IOException {
+			IOException exception = null;
+			for (IndexWriter writer : writers.values())
+				try {
+					writer.close();
+				} catch (IOException e) {
+					if (exception == null)
+						exception = e;
+				}
+			writers.clear();
+			if (exception != null)
+				throw exception;
+		}
+	}
+}
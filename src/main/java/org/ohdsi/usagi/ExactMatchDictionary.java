@@ -0,0 +1,296 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.store.InputStreamDataInput;
+import org.apache.lucene.store.OutputStreamDataOutput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.OfflineSorter;
+import org.apache.lucene.util.OfflineSorter.ByteSequencesReader;
+import org.apache.lucene.util.OfflineSorter.ByteSequencesWriter;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.PositiveIntOutputs;
+import org.apache.lucene.util.fst.Util;
+
+/**
+ * Dictionary from normalized terms (concept names and synonyms) to the concepts having that term. The terms are stored in an FST that maps each term to its
+ * ordinal, and the ordinal points into a flat array of (concept ID, term type) postings. The dictionary is built while the main index is built, and allows
+ * source terms that exactly match a concept name or synonym to be mapped without running a Lucene query. Each posting also keeps the term as it was indexed,
+ * so matches can report the indexed term rather than the search term.
+ */
+public class ExactMatchDictionary {
+
+	private static int		FILE_FORMAT_VERSION	= 2;
+	private static byte		CONCEPT_TERM_BYTE	= 'C';
+	private static byte		SOURCE_TERM_BYTE	= 'S';
+
+	private FST<Long>		fst;
+	private int[]			postingStarts;
+	private int[]			conceptIds;
+	private byte[]			termTypes;
+	// The indexed term of posting i is termPool[termStarts[i]] to termPool[termStarts[i + 1] - 1]:
+	private byte[]			termPool;
+	private int[]			termStarts;
+
+	private ExactMatchDictionary(FST<Long> fst, int[] postingStarts, int[] conceptIds, byte[] termTypes, byte[] termPool, int[] termStarts) {
+		this.fst = fst;
+		this.postingStarts = postingStarts;
+		this.conceptIds = conceptIds;
+		this.termTypes = termTypes;
+		this.termPool = termPool;
+		this.termStarts = termStarts;
+	}
+
+	/**
+	 * Normalizes a term for exact matching: case is folded, leading and trailing whitespace is removed, and runs of whitespace are replaced by a single space.
+	 */
+	public static String normalize(String term) {
+		return term.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Looks up the concepts having the term. The matches are returned in the order in which they were added to the dictionary.
+	 *
+	 * @param term
+	 *            The term. The term is normalized before the lookup
+	 * @return The matches, or an empty list if the term is not in the dictionary
+	 */
+	public List<Match> lookup(String term) throws IOException {
+		if (fst == null)
+			return Collections.emptyList();
+		Long ordinal = Util.get(fst, new BytesRef(normalize(term)));
+		if (ordinal == null)
+			return Collections.emptyList();
+		int start = postingStarts[ordinal.intValue()];
+		int end = postingStarts[ordinal.intValue() + 1];
+		List<Match> matches = new ArrayList<Match>(end - start);
+		for (int i = start; i < end; i++)
+			matches.add(new Match(conceptIds[i], termTypes[i] == SOURCE_TERM_BYTE ? UsagiSearchEngine.SOURCE_TERM : UsagiSearchEngine.CONCEPT_TERM,
+					new BytesRef(termPool, termStarts[i], termStarts[i + 1] - termStarts[i]).utf8ToString()));
+		return matches;
+	}
+
+	public int getTermCount() {
+		return postingStarts.length - 1;
+	}
+
+	public long ramBytesUsed() {
+		return (fst == null ? 0 : fst.ramBytesUsed()) + RamUsageEstimator.sizeOf(postingStarts) + RamUsageEstimator.sizeOf(conceptIds)
+				+ RamUsageEstimator.sizeOf(termTypes) + RamUsageEstimator.sizeOf(termPool) + RamUsageEstimator.sizeOf(termStarts);
+	}
+
+	public void save(File file) throws IOException {
+		try (OutputStreamDataOutput out = new OutputStreamDataOutput(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(FILE_FORMAT_VERSION);
+			out.writeByte((byte) (fst == null ? 0 : 1));
+			if (fst != null)
+				fst.save(out);
+			writeInts(out, postingStarts, postingStarts.length);
+			writeInts(out, conceptIds, conceptIds.length);
+			out.writeVInt(termTypes.length);
+			out.writeBytes(termTypes, termTypes.length);
+			out.writeVInt(termPool.length);
+			out.writeBytes(termPool, termPool.length);
+			writeInts(out, termStarts, termStarts.length);
+		}
+	}
+
+	/**
+	 * Loads a dictionary saved earlier.
+	 *
+	 * @return The dictionary, or null if the file does not exist or has an unknown format
+	 */
+	public static ExactMatchDictionary load(File file) {
+		if (!file.exists())
+			return null;
+		try (InputStreamDataInput in = new InputStreamDataInput(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != FILE_FORMAT_VERSION)
+				return null;
+			FST<Long> fst = null;
+			if (in.readByte() == 1)
+				fst = new FST<Long>(in, PositiveIntOutputs.getSingleton());
+			int[] postingStarts = readInts(in);
+			int[] conceptIds = readInts(in);
+			byte[] termTypes = new byte[in.readVInt()];
+			in.readBytes(termTypes, 0, termTypes.length);
+			byte[] termPool = new byte[in.readVInt()];
+			in.readBytes(termPool, 0, termPool.length);
+			int[] termStarts = readInts(in);
+			return new ExactMatchDictionary(fst, postingStarts, conceptIds, termTypes, termPool, termStarts);
+		} catch (IOException e) {
+			System.err.println("Unable to read exact match dictionary: " + e.getMessage());
+			return null;
+		}
+	}
+
+	private static void writeInts(DataOutput out, int[] values, int length) throws IOException {
+		out.writeVInt(length);
+		for (int i = 0; i < length; i++)
+			out.writeInt(values[i]);
+	}
+
+	private static int[] readInts(DataInput in) throws IOException {
+		int[] values = new int[in.readVInt()];
+		for (int i = 0; i < values.length; i++)
+			values[i] = in.readInt();
+		return values;
+	}
+
+	public static class Match {
+		public int		conceptId;
+		public String	termType;
+		public String	term;
+
+		public Match(int conceptId, String termType, String term) {
+			this.conceptId = conceptId;
+			this.termType = termType;
+			this.term = term;
+		}
+	}
+
+	/**
+	 * Collects the terms while the index is built. Because the vocabulary has millions of terms, the terms are first written to a temporary file, which is then
+	 * sorted on disk.
+	 */
+	public static class Builder {
+		private File				unsortedFile;
+		private ByteSequencesWriter	writer;
+		private int					sequenceNumber	= 0;
+		private BytesRef			entry			= new BytesRef();
+
+		public Builder() throws IOException {
+			unsortedFile = File.createTempFile("exactMatches", ".unsorted", OfflineSorter.defaultTempDir());
+			writer = new ByteSequencesWriter(unsortedFile);
+		}
+
+		/**
+		 * Adds a term. Entries consist of the normalized term, a zero byte, the sequence number (so entries of the same term keep the order in which they were
+		 * added), the concept ID, the term type, the term as it was indexed, and the length of the indexed term.
+		 */
+		public void add(String term, int conceptId, String termType) throws IOException {
+			BytesRef termBytes = new BytesRef(normalize(term));
+			if (termBytes.length == 0)
+				return;
+			BytesRef indexedTermBytes = new BytesRef(term);
+			entry.grow(termBytes.length + indexedTermBytes.length + 14);
+			System.arraycopy(termBytes.bytes, termBytes.offset, entry.bytes, 0, termBytes.length);
+			int position = termBytes.length;
+			entry.bytes[position++] = 0;
+			position = writeInt(entry.bytes, position, sequenceNumber++);
+			position = writeInt(entry.bytes, position, conceptId);
+			entry.bytes[position++] = termType.equals(UsagiSearchEngine.SOURCE_TERM) ? SOURCE_TERM_BYTE : CONCEPT_TERM_BYTE;
+			System.arraycopy(indexedTermBytes.bytes, indexedTermBytes.offset, entry.bytes, position, indexedTermBytes.length);
+			position += indexedTermBytes.length;
+			position = writeInt(entry.bytes, position, indexedTermBytes.length);
+			entry.length = position;
+			writer.write(entry);
+		}
+
+		private static int writeInt(byte[] bytes, int position, int value) {
+			bytes[position++] = (byte) (value >>> 24);
+			bytes[position++] = (byte) (value >>> 16);
+			bytes[position++] = (byte) (value >>> 8);
+			bytes[position++] = (byte) value;
+			return position;
+		}
+
+		private static int readInt(byte[] bytes, int position) {
+			return ((bytes[position] & 0xFF) << 24) | ((bytes[position + 1] & 0xFF) << 16) | ((bytes[position + 2] & 0xFF) << 8) | (bytes[position + 3] & 0xFF);
+		}
+
+		public ExactMatchDictionary build() throws IOException {
+			writer.close();
+			File sortedFile = File.createTempFile("exactMatches", ".sorted", OfflineSorter.defaultTempDir());
+			try {
+				new OfflineSorter().sort(unsortedFile, sortedFile);
+				unsortedFile.delete();
+
+				org.apache.lucene.util.fst.Builder<Long> fstBuilder = new org.apache.lucene.util.fst.Builder<Long>(FST.INPUT_TYPE.BYTE1,
+						PositiveIntOutputs.getSingleton());
+				IntsRef scratchInts = new IntsRef();
+				int[] postingStarts = new int[16];
+				int[] conceptIds = new int[16];
+				byte[] termTypes = new byte[16];
+				byte[] termPool = new byte[1024];
+				int[] termStarts = new int[16];
+				int termPoolSize = 0;
+				int termCount = 0;
+				int postingCount = 0;
+				BytesRef previousTerm = new BytesRef();
+				BytesRef term = new BytesRef();
+				try (ByteSequencesReader reader = new ByteSequencesReader(sortedFile)) {
+					BytesRef entry = new BytesRef();
+					while (reader.read(entry)) {
+						int indexedTermLength = readInt(entry.bytes, entry.offset + entry.length - 4);
+						int termLength = entry.length - 14 - indexedTermLength;
+						term.bytes = entry.bytes;
+						term.offset = entry.offset;
+						term.length = termLength;
+						int conceptId = readInt(entry.bytes, entry.offset + termLength + 5);
+						byte termType = entry.bytes[entry.offset + termLength + 9];
+						if (termCount == 0 || !term.bytesEquals(previousTerm)) {
+							fstBuilder.add(Util.toIntsRef(term, scratchInts), (long) termCount);
+							postingStarts = ArrayUtil.grow(postingStarts, termCount + 2);
+							postingStarts[termCount++] = postingCount;
+							previousTerm.copyBytes(term);
+						} else if (containsPosting(conceptIds, termTypes, postingStarts[termCount - 1], postingCount, conceptId, termType))
+							continue;
+						conceptIds = ArrayUtil.grow(conceptIds, postingCount + 1);
+						termTypes = ArrayUtil.grow(termTypes, postingCount + 1);
+						conceptIds[postingCount] = conceptId;
+						termTypes[postingCount] = termType;
+						termPool = ArrayUtil.grow(termPool, termPoolSize + indexedTermLength);
+						System.arraycopy(entry.bytes, entry.offset + termLength + 10, termPool, termPoolSize, indexedTermLength);
+						termStarts = ArrayUtil.grow(termStarts, postingCount + 2);
+						termStarts[postingCount] = termPoolSize;
+						termPoolSize += indexedTermLength;
+						postingCount++;
+					}
+				}
+				postingStarts[termCount] = postingCount;
+				termStarts[postingCount] = termPoolSize;
+				return new ExactMatchDictionary(fstBuilder.finish(), Arrays.copyOf(postingStarts, termCount + 1), Arrays.copyOf(conceptIds, postingCount),
+						Arrays.copyOf(termTypes, postingCount), Arrays.copyOf(termPool, termPoolSize), Arrays.copyOf(termStarts, postingCount + 1));
+			} finally {
+				sortedFile.delete();
+			}
+		}
+
+		private static boolean containsPosting(int[] conceptIds, byte[] termTypes, int start, int end, int conceptId, byte termType) {
+			for (int i = start; i < end; i++)
+				if (conceptIds[i] == conceptId && termTypes[i] == termType)
+					return true;
+			return false;
+		}
+	}
+}
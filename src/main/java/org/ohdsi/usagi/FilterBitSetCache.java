@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.lucene.util.FixedBitSet;
+
+/**
+ * Least-recently-used cache of the doc-id bitsets computed by {@link ConceptFilter}. Bitsets are stored per index segment (identified by the segment's core
+ * cache key) and per filter combination. The cache is bounded by the total number of bytes held by the bitsets, and should be cleared whenever the index
+ * reader is reopened.
+ */
+public class FilterBitSetCache {
+
+	public static long						DEFAULT_MAX_BYTES	= 64 * 1024 * 1024;
+
+	private long							maxBytes;
+	private long							bytes				= 0;
+	private LinkedHashMap<Key, FixedBitSet>	map					= new LinkedHashMap<Key, FixedBitSet>(16, 0.75f, true);
+
+	public FilterBitSetCache() {
+		this(DEFAULT_MAX_BYTES);
+	}
+
+	public FilterBitSetCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	public synchronized FixedBitSet get(Object coreCacheKey, ConceptFilter filter) {
+		return map.get(new Key(coreCacheKey, filter));
+	}
+
+	public synchronized void put(Object coreCacheKey, ConceptFilter filter, FixedBitSet bitSet) {
+		FixedBitSet old = map.put(new Key(coreCacheKey, filter), bitSet);
+		if (old != null)
+			bytes -= old.ramBytesUsed();
+		bytes += bitSet.ramBytesUsed();
+		Iterator<Map.Entry<Key, FixedBitSet>> iterator = map.entrySet().iterator();
+		while (bytes > maxBytes && map.size() > 1 && iterator.hasNext()) {
+			Map.Entry<Key, FixedBitSet> eldest = iterator.next();
+			if (eldest.getValue() == bitSet)
+				continue;
+			bytes -= eldest.getValue().ramBytesUsed();
+			iterator.remove();
+		}
+	}
+
+	public synchronized void clear() {
+		map.clear();
+		bytes = 0;
+	}
+
+	public synchronized int size() {
+		return map.size();
+	}
+
+	private static class Key {
+		private Object			coreCacheKey;
+		private ConceptFilter	filter;
+
+		public Key(Object coreCacheKey, ConceptFilter filter) {
+			this.coreCacheKey = coreCacheKey;
+			this.filter = filter;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(coreCacheKey) + filter.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return coreCacheKey == other.coreCacheKey && filter.equals(other.filter);
+		}
+	}
+}
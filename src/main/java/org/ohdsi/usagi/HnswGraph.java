@@ -0,0 +1,506 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * Hierarchical navigable small world graph, for approximate nearest-neighbour search (Malkov and Yashunin, 2016). Every node is linked to its most similar
+ * nodes. A search starts at the entry point on the top layer, greedily descends through the sparse upper layers, and then runs a beam search on the bottom
+ * layer, which contains all nodes.
+ * <p>
+ * The graph only stores the links. The similarity between nodes, and between a query and a node, is computed by the caller, so the graph does not depend on
+ * how the vectors are stored. Higher similarities mean closer nodes.
+ */
+public class HnswGraph {
+
+	/**
+	 * The similarity between two nodes, used while building the graph.
+	 */
+	public interface NodeSimilarity {
+		float similarity(int node1, int node2);
+	}
+
+	/**
+	 * The similarity between the query and a node, used while searching the graph.
+	 */
+	public interface QuerySimilarity {
+		float similarity(int node);
+	}
+
+	private int		size;
+	private int		maxConnections;
+	private int		entryPoint;
+	private int		maxLevel;
+	// The links on the bottom layer, maxConnections * 2 slots per node:
+	private int[]	neighbors0;
+	private int[]	neighborCounts0;
+	// The links on the upper layers of nodes that have them. For each layer from 1 up, a count followed by maxConnections slots:
+	private int[][]	upperNeighbors;
+
+	private HnswGraph(int size, int maxConnections) {
+		this.size = size;
+		this.maxConnections = maxConnections;
+		neighbors0 = new int[size * maxConnections * 2];
+		neighborCounts0 = new int[size];
+		upperNeighbors = new int[size][];
+		entryPoint = -1;
+		maxLevel = -1;
+	}
+
+	/**
+	 * Builds a graph by inserting the nodes one by one.
+	 *
+	 * @param size
+	 *            The number of nodes
+	 * @param similarity
+	 *            The similarity between nodes
+	 * @param maxConnections
+	 *            The maximum number of links per node on the upper layers. Nodes on the bottom layer have up to twice as many links
+	 * @param beamWidth
+	 *            The number of candidate neighbours considered when inserting a node. Higher values give a better graph but take longer to build
+	 * @param seed
+	 *            The seed used to draw the layers of the nodes, so the same input gives the same graph
+	 */
+	public static HnswGraph build(int size, NodeSimilarity similarity, int maxConnections, int beamWidth, long seed) {
+		HnswGraph graph = new HnswGraph(size, maxConnections);
+		Random random = new Random(seed);
+		double levelMultiplier = 1 / Math.log(maxConnections);
+		SearchState state = new SearchState();
+		for (int node = 0; node < size; node++) {
+			int level = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+			graph.insert(node, level, similarity, beamWidth, state);
+			if ((node + 1) % 100000 == 0)
+				System.out.println("Added " + (node + 1) + " nodes to the nearest-neighbour graph");
+		}
+		return graph;
+	}
+
+	private void insert(int node, int level, NodeSimilarity similarity, int beamWidth, SearchState state) {
+		if (level > 0)
+			upperNeighbors[node] = new int[level * (maxConnections + 1)];
+		if (entryPoint == -1) {
+			entryPoint = node;
+			maxLevel = level;
+			return;
+		}
+		QuerySimilarity querySimilarity = other -> similarity.similarity(node, other);
+		int nearest = entryPoint;
+		float nearestSimilarity = querySimilarity.similarity(nearest);
+		for (int layer = maxLevel; layer > level; layer--) {
+			nearest = greedySearch(querySimilarity, nearest, nearestSimilarity, layer);
+			nearestSimilarity = querySimilarity.similarity(nearest);
+		}
+		int[] entryPoints = { nearest };
+		for (int layer = Math.min(level, maxLevel); layer >= 0; layer--) {
+			state.clear(size);
+			searchLayer(querySimilarity, entryPoints, beamWidth, layer, null, Integer.MAX_VALUE, state);
+			NodeHeap results = state.results;
+			int[] found = new int[results.size()];
+			float[] foundSimilarities = new float[results.size()];
+			for (int i = found.length - 1; i >= 0; i--) {
+				foundSimilarities[i] = results.topScore();
+				found[i] = results.pop();
+			}
+			// All nodes found on this layer are the entry points to the next layer, not only the selected neighbours:
+			entryPoints = found.clone();
+			int maxLinks = layer == 0 ? maxConnections * 2 : maxConnections;
+			int count = selectNeighbors(found, foundSimilarities, found.length, maxLinks, similarity);
+			for (int i = 0; i < count; i++) {
+				addLink(node, found[i], layer);
+				addReverseLink(found[i], node, foundSimilarities[i], layer, similarity);
+			}
+		}
+		if (level > maxLevel) {
+			entryPoint = node;
+			maxLevel = level;
+		}
+	}
+
+	/**
+	 * Selects up to maxLinks diverse neighbours from the candidates, which must be sorted on similarity, best first. A candidate is only selected if it is more
+	 * similar to the base node than to any neighbour selected before it, so the links point in different directions instead of into one cluster. The selected
+	 * candidates are moved to the front of the arrays.
+	 *
+	 * @return The number of selected neighbours
+	 */
+	private static int selectNeighbors(int[] candidates, float[] similarities, int count, int maxLinks, NodeSimilarity similarity) {
+		int selected = 0;
+		for (int i = 0; i < count && selected < maxLinks; i++) {
+			boolean diverse = true;
+			for (int j = 0; j < selected && diverse; j++)
+				if (similarity.similarity(candidates[i], candidates[j]) > similarities[i])
+					diverse = false;
+			if (diverse) {
+				candidates[selected] = candidates[i];
+				similarities[selected] = similarities[i];
+				selected++;
+			}
+		}
+		return selected;
+	}
+
+	private void addLink(int node, int neighbor, int layer) {
+		if (layer == 0) {
+			neighbors0[node * maxConnections * 2 + neighborCounts0[node]++] = neighbor;
+		} else {
+			int[] links = upperNeighbors[node];
+			int start = (layer - 1) * (maxConnections + 1);
+			links[start + 1 + links[start]++] = neighbor;
+		}
+	}
+
+	/**
+	 * Links the neighbour back to the new node. If the neighbour already has the maximum number of links, its links are selected again from the old links and
+	 * the new node.
+	 */
+	private void addReverseLink(int neighbor, int node, float nodeSimilarity, int layer, NodeSimilarity similarity) {
+		int maxLinks = layer == 0 ? maxConnections * 2 : maxConnections;
+		int[] links;
+		int start;
+		int count;
+		if (layer == 0) {
+			links = neighbors0;
+			start = neighbor * maxConnections * 2;
+			count = neighborCounts0[neighbor];
+		} else {
+			links = upperNeighbors[neighbor];
+			start = (layer - 1) * (maxConnections + 1) + 1;
+			count = links[start - 1];
+		}
+		if (count < maxLinks) {
+			addLink(neighbor, node, layer);
+			return;
+		}
+		int[] candidates = new int[count + 1];
+		float[] similarities = new float[count + 1];
+		for (int i = 0; i < count; i++) {
+			candidates[i] = links[start + i];
+			similarities[i] = similarity.similarity(neighbor, candidates[i]);
+		}
+		candidates[count] = node;
+		similarities[count] = nodeSimilarity;
+		sortBySimilarity(candidates, similarities);
+		int selected = selectNeighbors(candidates, similarities, count + 1, maxLinks, similarity);
+		System.arraycopy(candidates, 0, links, start, selected);
+		if (layer == 0)
+			neighborCounts0[neighbor] = selected;
+		else
+			links[start - 1] = selected;
+	}
+
+	private static void sortBySimilarity(int[] nodes, float[] similarities) {
+		for (int i = 1; i < nodes.length; i++) {
+			int node = nodes[i];
+			float nodeSimilarity = similarities[i];
+			int j = i - 1;
+			for (; j >= 0 && similarities[j] < nodeSimilarity; j--) {
+				nodes[j + 1] = nodes[j];
+				similarities[j + 1] = similarities[j];
+			}
+			nodes[j + 1] = node;
+			similarities[j + 1] = nodeSimilarity;
+		}
+	}
+
+	/**
+	 * Walks to the most similar neighbour until no neighbour is more similar. Used on the upper layers, where only the entry point to the next layer is needed.
+	 */
+	private int greedySearch(QuerySimilarity similarity, int start, float startSimilarity, int layer) {
+		int current = start;
+		float currentSimilarity = startSimilarity;
+		boolean improved = true;
+		while (improved) {
+			improved = false;
+			int[] links = upperNeighbors[current];
+			int linkStart = (layer - 1) * (maxConnections + 1);
+			for (int i = 0; i < links[linkStart]; i++) {
+				int neighbor = links[linkStart + 1 + i];
+				float neighborSimilarity = similarity.similarity(neighbor);
+				if (neighborSimilarity > currentSimilarity) {
+					current = neighbor;
+					currentSimilarity = neighborSimilarity;
+					improved = true;
+				}
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Beam search on one layer. All visited nodes are used to navigate, but only accepted nodes are added to the results.
+	 *
+	 * @return false if more than visitLimit nodes were visited
+	 */
+	private boolean searchLayer(QuerySimilarity similarity, int[] entryPoints, int beamWidth, int layer, Bits acceptNodes, int visitLimit, SearchState state) {
+		NodeHeap candidates = state.candidates;
+		NodeHeap results = state.results;
+		candidates.clear();
+		results.clear();
+		for (int entryPoint : entryPoints)
+			if (state.visit(entryPoint)) {
+				float entrySimilarity = similarity.similarity(entryPoint);
+				candidates.push(entryPoint, entrySimilarity);
+				if (acceptNodes == null || acceptNodes.get(entryPoint))
+					results.push(entryPoint, entrySimilarity);
+			}
+		int visitCount = 0;
+		while (candidates.size() > 0) {
+			float candidateSimilarity = candidates.topScore();
+			int candidate = candidates.pop();
+			if (results.size() >= beamWidth && candidateSimilarity < results.topScore())
+				break;
+			int[] links;
+			int start;
+			int count;
+			if (layer == 0) {
+				links = neighbors0;
+				start = candidate * maxConnections * 2;
+				count = neighborCounts0[candidate];
+			} else {
+				links = upperNeighbors[candidate];
+				start = (layer - 1) * (maxConnections + 1) + 1;
+				count = links[start - 1];
+			}
+			for (int i = 0; i < count; i++) {
+				int neighbor = links[start + i];
+				if (!state.visit(neighbor))
+					continue;
+				if (++visitCount > visitLimit)
+					return false;
+				float neighborSimilarity = similarity.similarity(neighbor);
+				if (results.size() < beamWidth || neighborSimilarity > results.topScore()) {
+					candidates.push(neighbor, neighborSimilarity);
+					if (acceptNodes == null || acceptNodes.get(neighbor)) {
+						results.push(neighbor, neighborSimilarity);
+						if (results.size() > beamWidth)
+							results.pop();
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Finds the accepted nodes most similar to the query.
+	 *
+	 * @param similarity
+	 *            The similarity between the query and a node
+	 * @param beamWidth
+	 *            The number of nodes to return. Higher values find the true nearest neighbours more often, but visit more nodes
+	 * @param acceptNodes
+	 *            The nodes that may be returned, or null if all nodes may be returned. Other nodes are still used to navigate the graph
+	 * @param visitLimit
+	 *            The maximum number of nodes to visit on the bottom layer. When few nodes are accepted, the search may have to visit most of the graph, and
+	 *            scanning the accepted nodes is faster
+	 * @param state
+	 *            The reusable state of the search
+	 * @return The nodes (as docs) with their similarities (as scores), most similar first, or null if the visit limit was exceeded
+	 */
+	public ScoreDoc[] search(QuerySimilarity similarity, int beamWidth, Bits acceptNodes, int visitLimit, SearchState state) {
+		if (entryPoint == -1)
+			return new ScoreDoc[0];
+		int nearest = entryPoint;
+		for (int layer = maxLevel; layer > 0; layer--)
+			nearest = greedySearch(similarity, nearest, similarity.similarity(nearest), layer);
+		state.clear(size);
+		if (!searchLayer(similarity, new int[] { nearest }, beamWidth, 0, acceptNodes, visitLimit, state))
+			return null;
+		NodeHeap results = state.results;
+		ScoreDoc[] scoreDocs = new ScoreDoc[results.size()];
+		for (int i = scoreDocs.length - 1; i >= 0; i--) {
+			float score = results.topScore();
+			scoreDocs[i] = new ScoreDoc(results.pop(), score);
+		}
+		return scoreDocs;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public long ramBytesUsed() {
+		long bytes = RamUsageEstimator.sizeOf(neighbors0) + RamUsageEstimator.sizeOf(neighborCounts0) + RamUsageEstimator.shallowSizeOf(upperNeighbors);
+		for (int[] links : upperNeighbors)
+			if (links != null)
+				bytes += RamUsageEstimator.sizeOf(links);
+		return bytes;
+	}
+
+	void save(DataOutputStream out) throws IOException {
+		out.writeInt(size);
+		out.writeInt(maxConnections);
+		out.writeInt(entryPoint);
+		out.writeInt(maxLevel);
+		for (int node = 0; node < size; node++) {
+			int count = neighborCounts0[node];
+			out.writeShort(count);
+			for (int i = 0; i < count; i++)
+				out.writeInt(neighbors0[node * maxConnections * 2 + i]);
+			int[] links = upperNeighbors[node];
+			out.writeByte(links == null ? 0 : links.length / (maxConnections + 1));
+			if (links != null)
+				for (int link : links)
+					out.writeInt(link);
+		}
+	}
+
+	static HnswGraph load(DataInputStream in) throws IOException {
+		HnswGraph graph = new HnswGraph(in.readInt(), in.readInt());
+		graph.entryPoint = in.readInt();
+		graph.maxLevel = in.readInt();
+		for (int node = 0; node < graph.size; node++) {
+			int count = in.readShort();
+			graph.neighborCounts0[node] = count;
+			for (int i = 0; i < count; i++)
+				graph.neighbors0[node * graph.maxConnections * 2 + i] = in.readInt();
+			int levels = in.readByte();
+			if (levels > 0) {
+				int[] links = new int[levels * (graph.maxConnections + 1)];
+				for (int i = 0; i < links.length; i++)
+					links[i] = in.readInt();
+				graph.upperNeighbors[node] = links;
+			}
+		}
+		return graph;
+	}
+
+	/**
+	 * The set of nodes visited by a search, and the heaps of candidates and results. Only the nodes that were visited are cleared before the next search, so
+	 * reusing the state costs nothing for a large graph.
+	 */
+	public static class SearchState {
+		private FixedBitSet	bits		= new FixedBitSet(0);
+		private int[]		nodes		= new int[256];
+		private int			count		= 0;
+		private NodeHeap	candidates	= new NodeHeap(true);
+		private NodeHeap	results		= new NodeHeap(false);
+
+		void clear(int size) {
+			if (bits.length() < size)
+				bits = new FixedBitSet(size);
+			else
+				for (int i = 0; i < count; i++)
+					bits.clear(nodes[i]);
+			count = 0;
+		}
+
+		/**
+		 * @return true if the node had not been visited yet
+		 */
+		boolean visit(int node) {
+			if (bits.get(node))
+				return false;
+			bits.set(node);
+			if (count == nodes.length)
+				nodes = ArrayUtil.grow(nodes, count + 1);
+			nodes[count++] = node;
+			return true;
+		}
+	}
+
+	/**
+	 * A binary heap of nodes with their similarities. Each entry is packed into a long, with the similarity (as a sortable int) in the high bits and the node in
+	 * the low bits, so the heap is a single primitive array.
+	 */
+	static class NodeHeap {
+		private long[]	heap	= new long[64];
+		private int		size	= 0;
+		private boolean	maxHeap;
+
+		NodeHeap(boolean maxHeap) {
+			this.maxHeap = maxHeap;
+		}
+
+		void push(int node, float score) {
+			if (size == heap.length)
+				heap = Arrays.copyOf(heap, ArrayUtil.oversize(size + 1, RamUsageEstimator.NUM_BYTES_LONG));
+			heap[size] = encode(node, score);
+			int i = size++;
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (!before(heap[i], heap[parent]))
+					break;
+				swap(i, parent);
+				i = parent;
+			}
+		}
+
+		/**
+		 * Removes the top entry.
+		 *
+		 * @return The node of the top entry
+		 */
+		int pop() {
+			int node = (int) heap[0];
+			heap[0] = heap[--size];
+			int i = 0;
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= size)
+					break;
+				if (child + 1 < size && before(heap[child + 1], heap[child]))
+					child++;
+				if (!before(heap[child], heap[i]))
+					break;
+				swap(i, child);
+				i = child;
+			}
+			return node;
+		}
+
+		float topScore() {
+			int sortableBits = (int) (heap[0] >> 32);
+			return Float.intBitsToFloat(sortableBits ^ ((sortableBits >> 31) & 0x7fffffff));
+		}
+
+		int size() {
+			return size;
+		}
+
+		void clear() {
+			size = 0;
+		}
+
+		private boolean before(long entry1, long entry2) {
+			return maxHeap ? entry1 > entry2 : entry1 < entry2;
+		}
+
+		private void swap(int i, int j) {
+			long entry = heap[i];
+			heap[i] = heap[j];
+			heap[j] = entry;
+		}
+
+		private static long encode(int node, float score) {
+			// Flipping the magnitude bits of negative floats makes their bits sort like the floats, see NumericUtils.floatToSortableInt:
+			int bits = Float.floatToIntBits(score);
+			int sortableBits = bits ^ ((bits >> 31) & 0x7fffffff);
+			return ((long) sortableBits << 32) | (node & 0xFFFFFFFFL);
+		}
+	}
+}
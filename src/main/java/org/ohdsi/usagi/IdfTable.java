@@ -0,0 +1,271 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.StringHelper;
+
+/**
+ * Table holding the document frequency and IDF of every term of a field, so the cosine computation does not need to seek the term dictionary for every
+ * n-gram. The table is built once when the index is opened, and is read-only after that so it can be shared between threads. Terms are stored in a single
+ * byte pool, and are found through an open-addressing hash table of term ordinals.
+ * <p>
+ * The table of the main index is saved next to the index, so it does not have to be built when the index is opened. The table of the main index together
+ * with the source terms is derived from it, see {@link #overlay(IdfTable, IndexReader, String)}.
+ */
+public class IdfTable {
+
+	private static int	FILE_FORMAT_VERSION	= 1;
+
+	private int			numDocs;
+	private int			termCount	= 0;
+	private byte[]		pool		= new byte[1024];
+	private int			poolSize	= 0;
+	private int[]		termStarts	= new int[1024];
+	private int[]		docFreqs	= new int[1024];
+	private double[]	idfs;
+	private int[]		slots;
+	private int			slotMask;
+
+	/**
+	 * Creates the table for the given field by walking the term dictionary of the reader once.
+	 *
+	 * @param reader
+	 *            The index reader. IDF is computed over all documents in this reader
+	 * @param field
+	 *            The name of the field
+	 * @return The table
+	 */
+	public static IdfTable build(IndexReader reader, String field) throws IOException {
+		IdfTable table = new IdfTable(reader.numDocs());
+		Terms terms = MultiFields.getTerms(reader, field);
+		if (terms != null) {
+			TermsEnum termsEnum = terms.iterator(null);
+			BytesRef term;
+			while ((term = termsEnum.next()) != null)
+				table.add(term, termsEnum.docFreq());
+		}
+		table.finish();
+		return table;
+	}
+
+	/**
+	 * Creates the table of the main index together with other documents, such as the source terms, from the table of the main index. Only the term dictionary
+	 * of the other documents is walked.
+	 *
+	 * @param mainTable
+	 *            The table of the main index
+	 * @param reader
+	 *            The reader of the other documents
+	 * @param field
+	 *            The name of the field
+	 * @return The table, equal to the table built over the main index and the other documents together
+	 */
+	public static IdfTable overlay(IdfTable mainTable, IndexReader reader, String field) throws IOException {
+		IdfTable table = new IdfTable(mainTable.numDocs + reader.numDocs());
+		table.termCount = mainTable.termCount;
+		table.pool = Arrays.copyOf(mainTable.pool, mainTable.poolSize);
+		table.poolSize = mainTable.poolSize;
+		table.termStarts = Arrays.copyOf(mainTable.termStarts, mainTable.termCount + 1);
+		table.docFreqs = Arrays.copyOf(mainTable.docFreqs, mainTable.termCount);
+		Terms terms = MultiFields.getTerms(reader, field);
+		if (terms != null) {
+			TermsEnum termsEnum = terms.iterator(null);
+			BytesRef term;
+			while ((term = termsEnum.next()) != null) {
+				// Terms of the main index keep their ordinals:
+				int ordinal = mainTable.ordinal(term);
+				if (ordinal == -1)
+					table.add(term, termsEnum.docFreq());
+				else
+					table.docFreqs[ordinal] += termsEnum.docFreq();
+			}
+		}
+		table.finish();
+		return table;
+	}
+
+	/**
+	 * Loads a table saved earlier.
+	 *
+	 * @return The table, or null if the file does not exist or was created for a different version of the index
+	 */
+	public static IdfTable load(File file, long indexVersion) {
+		if (!file.exists())
+			return null;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != FILE_FORMAT_VERSION || in.readLong() != indexVersion)
+				return null;
+			IdfTable table = new IdfTable(in.readInt());
+			table.termCount = in.readInt();
+			table.poolSize = in.readInt();
+			table.pool = new byte[table.poolSize];
+			in.readFully(table.pool);
+			table.termStarts = new int[table.termCount + 1];
+			for (int i = 0; i <= table.termCount; i++)
+				table.termStarts[i] = in.readInt();
+			table.docFreqs = new int[table.termCount];
+			for (int i = 0; i < table.termCount; i++)
+				table.docFreqs[i] = in.readInt();
+			table.finish();
+			return table;
+		} catch (IOException e) {
+			System.err.println("Unable to read IDF table: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * @param indexVersion
+	 *            The version of the index the table was built for, used to detect stale files
+	 */
+	public void save(File file, long indexVersion) {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(FILE_FORMAT_VERSION);
+			out.writeLong(indexVersion);
+			out.writeInt(numDocs);
+			out.writeInt(termCount);
+			out.writeInt(poolSize);
+			out.write(pool, 0, poolSize);
+			for (int i = 0; i <= termCount; i++)
+				out.writeInt(termStarts[i]);
+			for (int i = 0; i < termCount; i++)
+				out.writeInt(docFreqs[i]);
+		} catch (IOException e) {
+			System.err.println("Unable to write IDF table: " + e.getMessage());
+		}
+	}
+
+	private IdfTable(int numDocs) {
+		this.numDocs = numDocs;
+	}
+
+	private void add(BytesRef term, int docFreq) {
+		if (termCount + 1 >= termStarts.length)
+			termStarts = ArrayUtil.grow(termStarts, termCount + 2);
+		docFreqs = ArrayUtil.grow(docFreqs, termCount + 1);
+		pool = ArrayUtil.grow(pool, poolSize + term.length);
+		System.arraycopy(term.bytes, term.offset, pool, poolSize, term.length);
+		termStarts[termCount] = poolSize;
+		docFreqs[termCount] = docFreq;
+		poolSize += term.length;
+		termCount++;
+		termStarts[termCount] = poolSize;
+	}
+
+	private void finish() {
+		idfs = new double[termCount];
+		for (int ordinal = 0; ordinal < termCount; ordinal++)
+			idfs[ordinal] = Math.log(numDocs / (double) docFreqs[ordinal]);
+		int slotCount = Integer.highestOneBit(Math.max(termCount, 1) * 2) << 1;
+		slots = new int[slotCount];
+		slotMask = slotCount - 1;
+		for (int ordinal = 0; ordinal < termCount; ordinal++) {
+			int slot = hash(pool, termStarts[ordinal], termStarts[ordinal + 1] - termStarts[ordinal]) & slotMask;
+			while (slots[slot] != 0)
+				slot = (slot + 1) & slotMask;
+			slots[slot] = ordinal + 1;
+		}
+	}
+
+	private static int hash(byte[] bytes, int offset, int length) {
+		return StringHelper.murmurhash3_x86_32(bytes, offset, length, StringHelper.GOOD_FAST_HASH_SEED);
+	}
+
+	/**
+	 * @return The ordinal of the term, or -1 if the term does not occur in the index
+	 */
+	public int ordinal(BytesRef term) {
+		int slot = hash(term.bytes, term.offset, term.length) & slotMask;
+		int value;
+		while ((value = slots[slot]) != 0) {
+			int ordinal = value - 1;
+			if (termEquals(ordinal, term))
+				return ordinal;
+			slot = (slot + 1) & slotMask;
+		}
+		return -1;
+	}
+
+	private boolean termEquals(int ordinal, BytesRef term) {
+		int start = termStarts[ordinal];
+		if (termStarts[ordinal + 1] - start != term.length)
+			return false;
+		for (int i = 0; i < term.length; i++)
+			if (pool[start + i] != term.bytes[term.offset + i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * @return The IDF of the term, computed as log(numDocs / docFreq), or 0 if the term does not occur in the index
+	 */
+	public double idf(BytesRef term) {
+		int ordinal = ordinal(term);
+		return ordinal == -1 ? 0 : idfs[ordinal];
+	}
+
+	public double idf(int ordinal) {
+		return idfs[ordinal];
+	}
+
+	public int docFreq(BytesRef term) {
+		int ordinal = ordinal(term);
+		return ordinal == -1 ? 0 : docFreqs[ordinal];
+	}
+
+	public int docFreq(int ordinal) {
+		return docFreqs[ordinal];
+	}
+
+	/**
+	 * Points the given BytesRef at the bytes of the term with the given ordinal, without copying.
+	 */
+	public void term(int ordinal, BytesRef result) {
+		result.bytes = pool;
+		result.offset = termStarts[ordinal];
+		result.length = termStarts[ordinal + 1] - termStarts[ordinal];
+	}
+
+	public int getTermCount() {
+		return termCount;
+	}
+
+	public int getNumDocs() {
+		return numDocs;
+	}
+
+	public long ramBytesUsed() {
+		return RamUsageEstimator.sizeOf(pool) + RamUsageEstimator.sizeOf(termStarts) + RamUsageEstimator.sizeOf(docFreqs) + RamUsageEstimator.sizeOf(idfs)
+				+ RamUsageEstimator.sizeOf(slots);
+	}
+}
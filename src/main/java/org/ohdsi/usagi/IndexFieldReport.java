@@ -0,0 +1,331 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.FilterAtomicReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.Version;
+import org.ohdsi.utilities.DirectoryUtilities;
+import org.ohdsi.utilities.files.WriteTextFile;
+
+/**
+ * Reports the cost of each {@link TermField} in an index: the size the field takes on disk, the heap taken by its IDF table and document norms, and the
+ * latency of searching it. Lucene writes the postings of all fields to the same files, so the size of a field is measured by copying the field alone into a
+ * temporary index. The latency is measured by searching a sample of index terms, as stored in the n-gram field, in the field alone; resolving the hits to
+ * concepts costs the same for every field and is not included.
+ */
+public class IndexFieldReport {
+
+	private static int	SAMPLE_SEARCHES	= 200;
+	private static int	HITS_PER_SEARCH	= 100;
+
+	public static class FieldCost {
+		public TermField	field;
+		public int			termCount;
+		public long			diskBytes;
+		public long			heapBytes;
+		public double		meanLatencyMs;
+	}
+
+	private long			totalDiskBytes;
+	private List<FieldCost>	fieldCosts	= new ArrayList<FieldCost>();
+
+	/**
+	 * Measures the term fields present in the index.
+	 *
+	 * @param reader
+	 *            A reader of the index
+	 * @param indexFolder
+	 *            The folder of the index, used to measure the total size
+	 */
+	public static IndexFieldReport create(IndexReader reader, File indexFolder, Analyzer analyzer) throws IOException {
+		IndexFieldReport report = new IndexFieldReport();
+		report.totalDiskBytes = getSize(indexFolder);
+		List<String> sampleTerms = sampleTerms(reader);
+		for (TermField field : TermField.values()) {
+			Terms terms = MultiFields.getTerms(reader, field.getFieldName());
+			if (terms == null)
+				continue;
+			FieldCost fieldCost = new FieldCost();
+			fieldCost.field = field;
+			fieldCost.diskBytes = measureDiskBytes(reader, field.getFieldName());
+			IdfTable idfTable = IdfTable.build(reader, field.getFieldName());
+			DocumentNorms documentNorms = DocumentNorms.compute(reader, field.getFieldName(), idfTable, -1);
+			fieldCost.termCount = idfTable.getTermCount();
+			fieldCost.heapBytes = idfTable.ramBytesUsed() + documentNorms.ramBytesUsed();
+			fieldCost.meanLatencyMs = measureLatency(reader, field, idfTable, documentNorms, analyzer, sampleTerms);
+			report.fieldCosts.add(fieldCost);
+		}
+		return report;
+	}
+
+	public long getTotalDiskBytes() {
+		return totalDiskBytes;
+	}
+
+	public List<FieldCost> getFieldCosts() {
+		return fieldCosts;
+	}
+
+	public List<String> toLines() {
+		List<String> lines = new ArrayList<String>();
+		lines.add(String.format("%-14s %12s %10s %10s %12s", "Field", "Terms", "Disk MB", "Heap MB", "Latency ms"));
+		for (FieldCost fieldCost : fieldCosts)
+			lines.add(String.format("%-14s %12d %10.1f %10.1f %12.2f", fieldCost.field.getFieldName(), fieldCost.termCount, fieldCost.diskBytes / 1048576d,
+					fieldCost.heapBytes / 1048576d, fieldCost.meanLatencyMs));
+		lines.add(String.format("Total index size on disk: %.1f MB", totalDiskBytes / 1048576d));
+		return lines;
+	}
+
+	public void save(File file) {
+		WriteTextFile out = new WriteTextFile(file.getAbsolutePath());
+		for (String line : toLines())
+			out.writeln(line);
+		out.close();
+	}
+
+	/**
+	 * @return The terms of randomly picked documents, taken from the stored n-gram field
+	 */
+	private static List<String> sampleTerms(IndexReader reader) throws IOException {
+		List<String> terms = new ArrayList<String>();
+		Set<String> termField = Collections.singleton(TermField.NGRAM.getFieldName());
+		Random random = new Random(0);
+		for (int i = 0; i < SAMPLE_SEARCHES && reader.maxDoc() > 0; i++) {
+			String term = reader.document(random.nextInt(reader.maxDoc()), termField).get(TermField.NGRAM.getFieldName());
+			if (term != null)
+				terms.add(term);
+		}
+		return terms;
+	}
+
+	/**
+	 * @return The mean time in milliseconds to create the query for a sample term and collect the top concepts. The sample is searched twice, and only the
+	 *         second time is measured
+	 */
+	private static double measureLatency(IndexReader reader, TermField field, IdfTable idfTable, DocumentNorms documentNorms, Analyzer analyzer,
+			List<String> sampleTerms) throws IOException {
+		if (sampleTerms.size() == 0)
+			return 0;
+		IndexSearcher searcher = new IndexSearcher(reader);
+		searcher.setSimilarity(new CosineSimilarity(idfTable, documentNorms));
+		long nanos = 0;
+		for (int run = 0; run < 2; run++) {
+			long start = System.nanoTime();
+			for (String term : sampleTerms) {
+				Query query = new MaxScoreQuery(UsagiSearchEngine.createFieldQuery(field, idfTable, analyzer, term), idfTable);
+				searcher.search(query, SearchContext.get().getCollector(HITS_PER_SEARCH, null));
+			}
+			nanos = System.nanoTime() - start;
+		}
+		return nanos / 1e6 / sampleTerms.size();
+	}
+
+	/**
+	 * @return The size on disk of an index holding only the given field, copied from the reader
+	 */
+	private static long measureDiskBytes(IndexReader reader, String field) throws IOException {
+		File tempFolder = Files.createTempDirectory("usagiField").toFile();
+		try {
+			try (Directory dir = FSDirectory.open(tempFolder)) {
+				IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_4_9, null);
+				iwc.setOpenMode(OpenMode.CREATE);
+				try (IndexWriter writer = new IndexWriter(dir, iwc)) {
+					IndexReader[] fieldReaders = new IndexReader[reader.leaves().size()];
+					for (int i = 0; i < fieldReaders.length; i++)
+						fieldReaders[i] = new SingleFieldReader(reader.leaves().get(i).reader(), field);
+					writer.addIndexes(fieldReaders);
+				}
+			}
+			return getSize(tempFolder);
+		} finally {
+			DirectoryUtilities.deleteDir(tempFolder);
+		}
+	}
+
+	private static long getSize(File folder) {
+		long size = 0;
+		File[] files = folder.listFiles();
+		if (files != null)
+			for (File file : files)
+				if (file.isFile())
+					size += file.length();
+				else if (file.isDirectory())
+					// The shards of an index with domain shards:
+					size += getSize(file);
+		return size;
+	}
+
+	/**
+	 * A view of a segment that only has one field: its postings, term vectors, stored values, norms and doc values.
+	 */
+	private static class SingleFieldReader extends FilterAtomicReader {
+		private String		field;
+		private FieldInfos	fieldInfos;
+
+		public SingleFieldReader(AtomicReader in, String field) {
+			super(in);
+			this.field = field;
+			FieldInfo fieldInfo = in.getFieldInfos().fieldInfo(field);
+			fieldInfos = new FieldInfos(fieldInfo == null ? new FieldInfo[0] : new FieldInfo[] { fieldInfo });
+		}
+
+		@Override
+		public FieldInfos getFieldInfos() {
+			return fieldInfos;
+		}
+
+		@Override
+		public Fields fields() throws IOException {
+			return new SingleFields(super.fields());
+		}
+
+		@Override
+		public Fields getTermVectors(int docID) throws IOException {
+			Fields termVectors = super.getTermVectors(docID);
+			if (termVectors == null || termVectors.terms(field) == null)
+				return null;
+			return new SingleFields(termVectors);
+		}
+
+		@Override
+		public void document(int docID, StoredFieldVisitor visitor) throws IOException {
+			super.document(docID, new StoredFieldVisitor() {
+				@Override
+				public Status needsField(FieldInfo fieldInfo) throws IOException {
+					return fieldInfo.name.equals(field) ? visitor.needsField(fieldInfo) : Status.NO;
+				}
+
+				@Override
+				public void binaryField(FieldInfo fieldInfo, byte[] value) throws IOException {
+					visitor.binaryField(fieldInfo, value);
+				}
+
+				@Override
+				public void stringField(FieldInfo fieldInfo, String value) throws IOException {
+					visitor.stringField(fieldInfo, value);
+				}
+
+				@Override
+				public void intField(FieldInfo fieldInfo, int value) throws IOException {
+					visitor.intField(fieldInfo, value);
+				}
+
+				@Override
+				public void longField(FieldInfo fieldInfo, long value) throws IOException {
+					visitor.longField(fieldInfo, value);
+				}
+
+				@Override
+				public void floatField(FieldInfo fieldInfo, float value) throws IOException {
+					visitor.floatField(fieldInfo, value);
+				}
+
+				@Override
+				public void doubleField(FieldInfo fieldInfo, double value) throws IOException {
+					visitor.doubleField(fieldInfo, value);
+				}
+			});
+		}
+
+		@Override
+		public NumericDocValues getNormValues(String field) throws IOException {
+			return field.equals(this.field) ? super.getNormValues(field) : null;
+		}
+
+		@Override
+		public NumericDocValues getNumericDocValues(String field) throws IOException {
+			return field.equals(this.field) ? super.getNumericDocValues(field) : null;
+		}
+
+		@Override
+		public BinaryDocValues getBinaryDocValues(String field) throws IOException {
+			return field.equals(this.field) ? super.getBinaryDocValues(field) : null;
+		}
+
+		@Override
+		public SortedDocValues getSortedDocValues(String field) throws IOException {
+			return field.equals(this.field) ? super.getSortedDocValues(field) : null;
+		}
+
+		@Override
+		public SortedSetDocValues getSortedSetDocValues(String field) throws IOException {
+			return field.equals(this.field) ? super.getSortedSetDocValues(field) : null;
+		}
+
+		@Override
+		public Bits getDocsWithField(String field) throws IOException {
+			return field.equals(this.field) ? super.getDocsWithField(field) : null;
+		}
+
+		private class SingleFields extends Fields {
+			private Fields	fields;
+			private boolean	hasField;
+
+			public SingleFields(Fields fields) throws IOException {
+				this.fields = fields;
+				hasField = fields.terms(field) != null;
+			}
+
+			@Override
+			public Iterator<String> iterator() {
+				if (hasField)
+					return Collections.singleton(field).iterator();
+				return Collections.<String> emptyList().iterator();
+			}
+
+			@Override
+			public Terms terms(String field) throws IOException {
+				return field.equals(SingleFieldReader.this.field) ? fields.terms(field) : null;
+			}
+
+			@Override
+			public int size() {
+				return hasField ? 1 : 0;
+			}
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+
+/**
+ * One opened version of the search index: the reader, the searcher and the statistics computed over that reader. A generation is never modified after it has
+ * been created. When the index is reopened, the search engine swaps in a new generation, and the old one is closed as soon as the last search using it has
+ * released it. Closing the reader also clears the references the search contexts of all threads hold to it, see
+ * {@link SearchContext#releaseReader(IndexReader)}.
+ * <p>
+ * The reference count is the reference count of the underlying index reader: the search engine holds one reference for as long as the generation is current,
+ * and every search holds one between {@link UsagiSearchEngine#acquire()} and {@link UsagiSearchEngine#release(IndexGeneration)}.
+ */
+public class IndexGeneration {
+
+	private IndexReader					reader;
+	private IndexSearcher				searcher;
+	private Map<TermField, IdfTable>	idfTables;
+	private ExactMatchDictionary		exactMatchDictionary;
+	private NgramVectorIndex			vectorIndex;
+	private List<Set<String>>			leafDomains;
+
+	/**
+	 * @param idfTables
+	 *            The IDF tables of the term fields that are searched. Must contain the n-gram field
+	 * @param leafDomains
+	 *            The domains of every segment of the reader, see {@link DomainShards#getLeafDomains(IndexReader)}
+	 */
+	public IndexGeneration(IndexReader reader, IndexSearcher searcher, Map<TermField, IdfTable> idfTables, ExactMatchDictionary exactMatchDictionary,
+			NgramVectorIndex vectorIndex, List<Set<String>> leafDomains) {
+		this.reader = reader;
+		this.searcher = searcher;
+		this.idfTables = idfTables;
+		this.exactMatchDictionary = exactMatchDictionary;
+		this.vectorIndex = vectorIndex;
+		this.leafDomains = leafDomains;
+		reader.addReaderClosedListener(SearchContext::releaseReader);
+	}
+
+	public IndexReader getReader() {
+		return reader;
+	}
+
+	public IndexSearcher getSearcher() {
+		return searcher;
+	}
+
+	/**
+	 * @return The IDF table of the n-gram field
+	 */
+	public IdfTable getIdfTable() {
+		return idfTables.get(TermField.NGRAM);
+	}
+
+	/**
+	 * @return The IDF table of the field, or null if the field is not searched or not in the index
+	 */
+	public IdfTable getIdfTable(TermField field) {
+		return idfTables.get(field);
+	}
+
+	/**
+	 * @return The exact match dictionary of the main index, or null if the index was built without one
+	 */
+	public ExactMatchDictionary getExactMatchDictionary() {
+		return exactMatchDictionary;
+	}
+
+	/**
+	 * @return The n-gram vector index of the main index, or null if vector search is not enabled or the index was built without vectors
+	 */
+	public NgramVectorIndex getVectorIndex() {
+		return vectorIndex;
+	}
+
+	/**
+	 * @return The segments of the reader that hold concept terms of at least one of the domains, in document order. If no domains are given, all segments
+	 */
+	public List<AtomicReaderContext> getLeaves(Set<String> domains) {
+		List<AtomicReaderContext> leaves = reader.leaves();
+		if (domains.size() == 0)
+			return leaves;
+		List<AtomicReaderContext> domainLeaves = new ArrayList<AtomicReaderContext>(leaves.size());
+		for (AtomicReaderContext leaf : leaves)
+			if (!Collections.disjoint(leafDomains.get(leaf.ord), domains))
+				domainLeaves.add(leaf);
+		return domainLeaves;
+	}
+
+	/**
+	 * @return false if the generation has already been closed
+	 */
+	boolean tryIncRef() {
+		return reader.tryIncRef();
+	}
+
+	/**
+	 * Releases one reference, closing the reader when no references are left.
+	 */
+	void decRef() {
+		try {
+			reader.decRef();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,275 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.RAMDirectory;
+
+/**
+ * Settings for how the search index is opened. The settings are read from the file {@value #SETTINGS_FILE} in the Usagi folder, for instance:
+ *
+ * <pre>
+ * directoryType = MMAP
+ * preload = true
+ * warmUp = true
+ * searchThreads = 4
+ * maxSegmentCount = 8
+ * vectorSearch = true
+ * vectorBeamWidth = 200
+ * fuzzyWordSearch = true
+ * indexFields = NGRAM, WORDS, STEMMED
+ * searchFields = NGRAM, STEMMED
+ * fieldReport = true
+ * domainShards = true
+ * </pre>
+ *
+ * Settings that are missing from the file, or the whole file, take their default value.
+ */
+public class IndexSettings {
+
+	public static String	SETTINGS_FILE	= "indexSettings.properties";
+
+	public enum DirectoryType {
+		/**
+		 * Let Lucene pick the best implementation for the platform (memory mapping on 64-bit JVMs).
+		 */
+		DEFAULT,
+		/**
+		 * Memory-map the index files. The index is cached by the operating system, outside the Java heap.
+		 */
+		MMAP,
+		/**
+		 * Read the index files with positional reads. Uses less virtual memory than memory mapping, at the cost of some latency.
+		 */
+		NIO,
+		/**
+		 * Copy the whole index into the Java heap. Only suitable for small indexes, such as indexes of a vocabulary subset.
+		 */
+		RAM
+	}
+
+	/**
+	 * The directory implementation used to read the index.
+	 */
+	public DirectoryType	directoryType	= DirectoryType.DEFAULT;
+
+	/**
+	 * Specify whether the index files should be read once when the index is opened, so they are in the operating system cache before the first search.
+	 * Ignored for {@link DirectoryType#RAM}, which reads the whole index anyway.
+	 */
+	public boolean			preload			= false;
+
+	/**
+	 * Specify whether the index should be warmed up in the background after the application has started.
+	 */
+	public boolean			warmUp			= true;
+
+	/**
+	 * The number of threads used to search the segments of the index in parallel in interactive searches. Set to 1 to search the segments sequentially on the
+	 * calling thread. Batch searches are always sequential per search, because they already run many searches in parallel.
+	 */
+	public int				searchThreads	= 1;
+
+	/**
+	 * The maximum number of segments the main index is merged into after it has been built. Set to 0 to not merge the index. There is little point in having
+	 * fewer segments than search threads.
+	 */
+	public int				maxSegmentCount	= 0;
+
+	/**
+	 * Specify whether source terms are searched with the n-gram vector index instead of the n-gram query. When set, the vector index is built with the main
+	 * index. The vectors and the nearest-neighbour graph take about 400 bytes of memory per index term, and building the graph takes in the order of a
+	 * millisecond per index term. Searches fall back to the n-gram query if the index was built without vectors.
+	 */
+	public boolean			vectorSearch	= false;
+
+	/**
+	 * The number of nearest neighbours a vector search collects before they are collapsed to concepts. Higher values find more of the true nearest
+	 * neighbours, at the cost of latency.
+	 */
+	public int				vectorBeamWidth	= 200;
+
+	/**
+	 * Specify whether words of a search term that do not occur in the index are corrected to the nearest index word, and the corrected term is searched as
+	 * well. Ignored for indexes built without the TERM_WORDS field. Costs an extra query for search terms with unknown words, and changes the results of all
+	 * searches including the batch searches of an import, so it is off by default; SearchBenchmark measures its latency and recall against n-gram search.
+	 */
+	public boolean			fuzzyWordSearch	= false;
+
+	/**
+	 * The term fields written to the main index when it is built, see {@link TermField}. The n-gram field is always written. Each extra field adds to the size
+	 * of the index and to the time it takes to build and open it, see {@link #fieldReport}.
+	 */
+	public Set<TermField>	indexFields		= EnumSet.of(TermField.NGRAM, TermField.WORDS);
+
+	/**
+	 * Specify whether the build measures the size of every term field of the main index and the latency of searching it, see {@link IndexFieldReport}. The
+	 * report is printed and saved in the Usagi folder. Measuring copies every field into a temporary index and runs sample searches in it, which adds to the
+	 * build time.
+	 */
+	public boolean			fieldReport		= false;
+
+	/**
+	 * The term fields a source term is searched in. Each field is searched with its own cosine query, and a concept gets the highest score it has in any of
+	 * the fields, so a field can only add matches and raise scores. Fields missing from the index are skipped. Does not apply to vector search or to keyword
+	 * queries.
+	 */
+	public Set<TermField>	searchFields	= EnumSet.of(TermField.NGRAM);
+
+	/**
+	 * Specify whether the main index is written as one sub-index per domain when it is built, see {@link DomainShards}. Searches filtered by domain then only
+	 * read the postings of the chosen domains. Indexes are opened the way they were built, whatever this setting is.
+	 */
+	public boolean			domainShards	= false;
+
+	/**
+	 * Loads the settings from the settings file in the given folder.
+	 *
+	 * @return The settings. If the file does not exist, the default settings
+	 */
+	public static IndexSettings load(String folder) {
+		IndexSettings settings = new IndexSettings();
+		File file = new File(folder + "/" + SETTINGS_FILE);
+		if (!file.exists())
+			return settings;
+		Properties properties = new Properties();
+		try (InputStream in = new FileInputStream(file)) {
+			properties.load(in);
+		} catch (IOException e) {
+			System.err.println("Unable to read index settings: " + e.getMessage());
+			return settings;
+		}
+		String value = properties.getProperty("directoryType");
+		if (value != null) {
+			try {
+				settings.directoryType = DirectoryType.valueOf(value.trim().toUpperCase(Locale.ROOT));
+			} catch (IllegalArgumentException e) {
+				System.err.println("Unknown index directory type '" + value + "', using " + settings.directoryType);
+			}
+		}
+		value = properties.getProperty("preload");
+		if (value != null)
+			settings.preload = Boolean.parseBoolean(value.trim());
+		value = properties.getProperty("warmUp");
+		if (value != null)
+			settings.warmUp = Boolean.parseBoolean(value.trim());
+		settings.searchThreads = parseInt(properties, "searchThreads", settings.searchThreads);
+		settings.maxSegmentCount = parseInt(properties, "maxSegmentCount", settings.maxSegmentCount);
+		value = properties.getProperty("vectorSearch");
+		if (value != null)
+			settings.vectorSearch = Boolean.parseBoolean(value.trim());
+		settings.vectorBeamWidth = parseInt(properties, "vectorBeamWidth", settings.vectorBeamWidth);
+		value = properties.getProperty("fuzzyWordSearch");
+		if (value != null)
+			settings.fuzzyWordSearch = Boolean.parseBoolean(value.trim());
+		settings.indexFields = parseFields(properties, "indexFields", settings.indexFields);
+		settings.indexFields.add(TermField.NGRAM);
+		settings.searchFields = parseFields(properties, "searchFields", settings.searchFields);
+		value = properties.getProperty("fieldReport");
+		if (value != null)
+			settings.fieldReport = Boolean.parseBoolean(value.trim());
+		value = properties.getProperty("domainShards");
+		if (value != null)
+			settings.domainShards = Boolean.parseBoolean(value.trim());
+		return settings;
+	}
+
+	private static Set<TermField> parseFields(Properties properties, String name, Set<TermField> defaultValue) {
+		String value = properties.getProperty(name);
+		if (value == null)
+			return defaultValue;
+		Set<TermField> fields = EnumSet.noneOf(TermField.class);
+		for (String field : value.split(",")) {
+			if (field.trim().length() == 0)
+				continue;
+			try {
+				fields.add(TermField.valueOf(field.trim().toUpperCase(Locale.ROOT)));
+			} catch (IllegalArgumentException e) {
+				System.err.println("Unknown term field '" + field.trim() + "' in " + name + ", ignoring it");
+			}
+		}
+		if (fields.isEmpty()) {
+			System.err.println("No valid term fields in " + name + ", using " + defaultValue);
+			return defaultValue;
+		}
+		return fields;
+	}
+
+	private static int parseInt(Properties properties, String name, int defaultValue) {
+		String value = properties.getProperty(name);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			System.err.println("Invalid value '" + value + "' for " + name + ", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Opens the index in the given folder for reading, using the configured directory implementation.
+	 */
+	public Directory openDirectory(File indexFolder) throws IOException {
+		switch (directoryType) {
+			case MMAP:
+				preload(indexFolder);
+				return new MMapDirectory(indexFolder);
+			case NIO:
+				preload(indexFolder);
+				return new NIOFSDirectory(indexFolder);
+			case RAM:
+				try (Directory dir = FSDirectory.open(indexFolder)) {
+					return new RAMDirectory(dir, IOContext.READONCE);
+				}
+			default:
+				preload(indexFolder);
+				return FSDirectory.open(indexFolder);
+		}
+	}
+
+	/**
+	 * Reads all index files once, so they are in the operating system cache. The files are read rather than mapped and loaded, because a mapped buffer is only
+	 * unmapped when it is garbage collected, which on Windows would keep the files locked when the index is rebuilt.
+	 */
+	private void preload(File indexFolder) throws IOException {
+		if (!preload)
+			return;
+		File[] files = indexFolder.listFiles();
+		if (files == null)
+			return;
+		byte[] buffer = new byte[1 << 20];
+		for (File file : files)
+			if (file.isFile())
+				try (InputStream in = new FileInputStream(file)) {
+					while (in.read(buffer) != -1)
+						;
+				}
+	}
+}
@@ -0,0 +1,416 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Scorer.ChildScorer;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.search.similarities.Similarity.SimScorer;
+import org.apache.lucene.search.similarities.Similarity.SimWeight;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.ohdsi.usagi.SearchContext.SegmentPostings;
+
+/**
+ * Evaluates an n-gram query (a boolean query of SHOULD term clauses, as created by {@link UsagiSearchEngine#createNgramQuery}) with max-score pruning. The
+ * scores are the same as those of the boolean query, but documents that cannot reach the minimum competitive score are skipped.
+ * <p>
+ * Under the cosine similarity, a document containing only a subset S of the query terms scores at most sqrt(sum of idf^2 over S) / |q|, because the length of
+ * the document vector is at least the length of its part in S. The terms are ordered by IDF, and the longest prefix of low IDF terms whose bound is below the
+ * minimum competitive score is non-essential: documents are only generated from the postings of the remaining, rarer terms, and the postings of the
+ * non-essential terms are only advanced to those documents. The minimum competitive score is set by the collector through
+ * {@link MaxScoreScorer#setMinCompetitiveScore(float)}, and can only increase during a search.
+ */
+public class MaxScoreQuery extends Query {
+
+	// Safety margin on the bounds, because the document norms are stored as floats:
+	private static double	BOUND_MARGIN	= 1.0001;
+
+	private List<Term>		terms			= new ArrayList<Term>();
+	private String			field			= null;
+	private IdfTable		idfTable;
+
+	/**
+	 * @param query
+	 *            The n-gram query. All clauses must be SHOULD term queries
+	 * @param idfTable
+	 *            The IDF table used by the similarity
+	 */
+	public MaxScoreQuery(BooleanQuery query, IdfTable idfTable) {
+		for (BooleanClause clause : query.clauses()) {
+			if (!(clause.getQuery() instanceof TermQuery) || clause.getOccur() != BooleanClause.Occur.SHOULD)
+				throw new IllegalArgumentException("Not an n-gram query: " + query);
+			Term term = ((TermQuery) clause.getQuery()).getTerm();
+			if (field == null)
+				field = term.field();
+			else if (!field.equals(term.field()))
+				throw new IllegalArgumentException("Not all terms are in the same field: " + query);
+			terms.add(term);
+		}
+		this.idfTable = idfTable;
+		setBoost(query.getBoost());
+	}
+
+	/**
+	 * Finds the max-score scorer in a tree of scorers, for instance below the scorer of a filtered query.
+	 *
+	 * @return The scorer, or null if there is none
+	 */
+	public static MaxScoreScorer findScorer(Scorer scorer) {
+		if (scorer instanceof MaxScoreScorer)
+			return (MaxScoreScorer) scorer;
+		for (ChildScorer childScorer : scorer.getChildren()) {
+			MaxScoreScorer maxScoreScorer = findScorer(childScorer.child);
+			if (maxScoreScorer != null)
+				return maxScoreScorer;
+		}
+		return null;
+	}
+
+	@Override
+	public Weight createWeight(IndexSearcher searcher) throws IOException {
+		return new MaxScoreWeight(searcher);
+	}
+
+	@Override
+	public void extractTerms(Set<Term> terms) {
+		terms.addAll(this.terms);
+	}
+
+	@Override
+	public String toString(String field) {
+		StringBuilder builder = new StringBuilder("maxScore(");
+		for (int i = 0; i < terms.size(); i++) {
+			if (i > 0)
+				builder.append(' ');
+			builder.append(terms.get(i).field().equals(field) ? terms.get(i).text() : terms.get(i).toString());
+		}
+		builder.append(')');
+		return builder.toString();
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * super.hashCode() + terms.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return super.equals(obj) && terms.equals(((MaxScoreQuery) obj).terms);
+	}
+
+	/**
+	 * Reads the postings directly instead of through term query weights, so the terms enum and the postings enums of each segment can be reused from one
+	 * search to the next (see {@link SearchContext}). The scores are computed by the similarity of the searcher, as they would be by term queries.
+	 */
+	private class MaxScoreWeight extends Weight {
+		private Similarity	similarity;
+		private SimWeight[]	simWeights;
+		private double[]	squaredIdfs;
+		private double		queryNorm;
+
+		public MaxScoreWeight(IndexSearcher searcher) throws IOException {
+			similarity = searcher.getSimilarity();
+			simWeights = new SimWeight[terms.size()];
+			squaredIdfs = new double[terms.size()];
+			CollectionStatistics collectionStatistics = field == null ? null : searcher.collectionStatistics(field);
+			for (int i = 0; i < terms.size(); i++) {
+				BytesRef bytes = terms.get(i).bytes();
+				simWeights[i] = similarity.computeWeight(1f, collectionStatistics, new TermStatistics(bytes, idfTable.docFreq(bytes), -1));
+				double idf = idfTable.idf(bytes);
+				squaredIdfs[i] = idf * idf;
+			}
+		}
+
+		@Override
+		public Query getQuery() {
+			return MaxScoreQuery.this;
+		}
+
+		// Normalization is done as by the weight of a boolean query of term queries, so the scores are the same:
+		@Override
+		public float getValueForNormalization() throws IOException {
+			float sum = 0;
+			for (SimWeight simWeight : simWeights)
+				sum += simWeight.getValueForNormalization();
+			return sum * getBoost() * getBoost();
+		}
+
+		@Override
+		public void normalize(float norm, float topLevelBoost) {
+			topLevelBoost *= getBoost();
+			queryNorm = norm * topLevelBoost;
+			for (SimWeight simWeight : simWeights)
+				simWeight.normalize(norm, topLevelBoost);
+		}
+
+		@Override
+		public Scorer scorer(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+			if (terms.size() == 0)
+				return null;
+			SegmentPostings postings = SearchContext.get().getSegmentPostings(context, field);
+			if (postings == null)
+				return null;
+			TermsEnum termsEnum = postings.getTermsEnum();
+			Scorer[] scorers = new Scorer[terms.size()];
+			double[] scorerSquaredIdfs = new double[terms.size()];
+			int scorerCount = 0;
+			for (int i = 0; i < terms.size(); i++) {
+				if (!termsEnum.seekExact(terms.get(i).bytes()))
+					continue;
+				DocsEnum docsEnum = termsEnum.docs(acceptDocs, postings.getDocsEnum(i), DocsEnum.FLAG_NONE);
+				postings.setDocsEnum(i, docsEnum);
+				scorers[scorerCount] = new TermDocsScorer(this, terms.get(i), docsEnum, similarity.simScorer(simWeights[i], context));
+				scorerSquaredIdfs[scorerCount] = squaredIdfs[i];
+				scorerCount++;
+			}
+			if (scorerCount == 0)
+				return null;
+			return new MaxScoreScorer(this, scorers, scorerSquaredIdfs, scorerCount, queryNorm);
+		}
+
+		@Override
+		public Explanation explain(AtomicReaderContext context, int doc) throws IOException {
+			Explanation explanation = new Explanation(0, "sum of:");
+			Scorer scorer = scorer(context, context.reader().getLiveDocs());
+			if (scorer != null && scorer.advance(doc) == doc) {
+				for (ChildScorer childScorer : scorer.getChildren())
+					if (childScorer.child.docID() == doc)
+						explanation.addDetail(new Explanation(childScorer.child.score(), "weight(" + ((TermDocsScorer) childScorer.child).term + ")"));
+				explanation.setValue(scorer.score());
+			}
+			return explanation;
+		}
+	}
+
+	/**
+	 * Scores the documents of one term, as the scorer of a term query does.
+	 */
+	private static class TermDocsScorer extends Scorer {
+		private Term		term;
+		private DocsEnum	docsEnum;
+		private SimScorer	simScorer;
+
+		public TermDocsScorer(Weight weight, Term term, DocsEnum docsEnum, SimScorer simScorer) {
+			super(weight);
+			this.term = term;
+			this.docsEnum = docsEnum;
+			this.simScorer = simScorer;
+		}
+
+		@Override
+		public float score() throws IOException {
+			return simScorer.score(docsEnum.docID(), docsEnum.freq());
+		}
+
+		@Override
+		public int freq() throws IOException {
+			return docsEnum.freq();
+		}
+
+		@Override
+		public int docID() {
+			return docsEnum.docID();
+		}
+
+		@Override
+		public int nextDoc() throws IOException {
+			return docsEnum.nextDoc();
+		}
+
+		@Override
+		public int advance(int target) throws IOException {
+			return docsEnum.advance(target);
+		}
+
+		@Override
+		public long cost() {
+			return docsEnum.cost();
+		}
+	}
+
+	public static class MaxScoreScorer extends Scorer {
+		private Scorer[]	scorers;
+		// upperBounds[i] is the maximum score of a document matching only scorers 0 to i - 1:
+		private double[]	upperBounds;
+		private int			firstEssential	= 0;
+		private Scorer[]	heap;
+		private int			heapSize;
+		private int			doc				= -1;
+		private float		score;
+		private int			freq;
+
+		private MaxScoreScorer(Weight weight, Scorer[] scorers, double[] squaredIdfs, int scorerCount, double queryNorm) {
+			super(weight);
+			// Sort the scorers by IDF. Queries have tens of terms at most, so an insertion sort will do:
+			for (int i = 1; i < scorerCount; i++)
+				for (int j = i; j > 0 && squaredIdfs[j - 1] > squaredIdfs[j]; j--) {
+					double squaredIdf = squaredIdfs[j];
+					squaredIdfs[j] = squaredIdfs[j - 1];
+					squaredIdfs[j - 1] = squaredIdf;
+					Scorer scorer = scorers[j];
+					scorers[j] = scorers[j - 1];
+					scorers[j - 1] = scorer;
+				}
+			this.scorers = scorerCount == scorers.length ? scorers : Arrays.copyOf(scorers, scorerCount);
+			upperBounds = new double[scorerCount + 1];
+			double sumOfSquaredIdfs = 0;
+			for (int i = 0; i < scorerCount; i++) {
+				sumOfSquaredIdfs += squaredIdfs[i];
+				upperBounds[i + 1] = queryNorm * Math.sqrt(sumOfSquaredIdfs) * BOUND_MARGIN;
+			}
+			heap = new Scorer[scorerCount];
+			rebuildHeap();
+		}
+
+		/**
+		 * Tells the scorer that documents scoring lower than the given score are no longer of interest. Documents with that score may still be returned.
+		 */
+		public void setMinCompetitiveScore(float minCompetitiveScore) {
+			int newFirstEssential = firstEssential;
+			while (newFirstEssential < scorers.length && upperBounds[newFirstEssential + 1] < minCompetitiveScore)
+				newFirstEssential++;
+			if (newFirstEssential != firstEssential) {
+				firstEssential = newFirstEssential;
+				rebuildHeap();
+			}
+		}
+
+		@Override
+		public int docID() {
+			return doc;
+		}
+
+		@Override
+		public int nextDoc() throws IOException {
+			return advance(doc + 1);
+		}
+
+		@Override
+		public int advance(int target) throws IOException {
+			while (heapSize > 0 && heap[0].docID() < target) {
+				int next = heap[0].docID() == target - 1 ? heap[0].nextDoc() : heap[0].advance(target);
+				if (next == NO_MORE_DOCS) {
+					heap[0] = heap[--heapSize];
+					heap[heapSize] = null;
+				}
+				downHeap(0);
+			}
+			if (heapSize == 0)
+				return doc = NO_MORE_DOCS;
+			doc = heap[0].docID();
+			freq = 0;
+			double sum = sumMatches(0);
+			for (int i = firstEssential - 1; i >= 0; i--) {
+				Scorer scorer = scorers[i];
+				if (scorer.docID() < doc)
+					scorer.advance(doc);
+				if (scorer.docID() == doc) {
+					sum += scorer.score();
+					freq++;
+				}
+			}
+			score = (float) sum;
+			return doc;
+		}
+
+		/**
+		 * Sums the scores of the essential scorers positioned on the current document. These form a subtree at the root of the heap.
+		 */
+		private double sumMatches(int i) throws IOException {
+			if (i >= heapSize || heap[i].docID() != doc)
+				return 0;
+			freq++;
+			return heap[i].score() + sumMatches(2 * i + 1) + sumMatches(2 * i + 2);
+		}
+
+		@Override
+		public float score() throws IOException {
+			return score;
+		}
+
+		@Override
+		public int freq() throws IOException {
+			return freq;
+		}
+
+		@Override
+		public long cost() {
+			long cost = 0;
+			for (Scorer scorer : scorers)
+				cost += scorer.cost();
+			return cost;
+		}
+
+		@Override
+		public Collection<ChildScorer> getChildren() {
+			List<ChildScorer> children = new ArrayList<ChildScorer>(scorers.length);
+			for (Scorer scorer : scorers)
+				children.add(new ChildScorer(scorer, "SHOULD"));
+			return children;
+		}
+
+		private void rebuildHeap() {
+			heapSize = 0;
+			for (int i = firstEssential; i < scorers.length; i++)
+				if (scorers[i].docID() != NO_MORE_DOCS)
+					heap[heapSize++] = scorers[i];
+			for (int i = heapSize; i < heap.length; i++)
+				heap[i] = null;
+			for (int i = (heapSize >>> 1) - 1; i >= 0; i--)
+				downHeap(i);
+		}
+
+		private void downHeap(int i) {
+			if (heapSize == 0)
+				return;
+			Scorer scorer = heap[i];
+			int docId = scorer.docID();
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= heapSize)
+					break;
+				if (child + 1 < heapSize && heap[child + 1].docID() < heap[child].docID())
+					child++;
+				if (heap[child].docID() >= docId)
+					break;
+				heap[i] = heap[child];
+				i = child;
+			}
+			heap[i] = scorer;
+		}
+	}
+}
@@ -0,0 +1,316 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.StringHelper;
+import org.apache.lucene.util.UnicodeUtil;
+
+/**
+ * Fixed-width vectors of the n-grams of every term in the index, with a nearest-neighbour graph over them. This is an alternative to the n-gram query: instead
+ * of scoring every document sharing an n-gram with the search term, the graph is walked to the terms with the most similar vectors.
+ * <p>
+ * The n-grams of a term are hashed into {@value #DIMENSIONS} dimensions, each with a random sign, and weighted by their IDF. Like in
+ * {@link CosineSimilarity}, an n-gram counts once however often it occurs, so the dot product of two normalized vectors approximates the cosine the n-gram
+ * query computes, apart from hash collisions. The vectors are quantized to one byte per dimension, with a scale per vector.
+ * <p>
+ * The document numbers are those of the main index, which must not have changed since the vectors were computed. The vectors are saved next to the index
+ * with the version of the index, like the {@link DocumentNorms}.
+ */
+public class NgramVectorIndex {
+
+	public static int		DIMENSIONS			= 256;
+	private static int		FILE_FORMAT_VERSION	= 1;
+	private static int		MAX_CONNECTIONS		= 16;
+	private static int		BUILD_BEAM_WIDTH	= 100;
+	private static int		HASH_SEED			= 0x5BD1E995;
+	// The vectors are stored in pages, because the vectors of a large vocabulary do not fit in a single array:
+	private static int		PAGE_BITS			= 14;
+	private static int		PAGE_MASK			= (1 << PAGE_BITS) - 1;
+
+	private byte[][]		vectors;
+	private float[]			scales;
+	private HnswGraph		graph;
+	private long			indexVersion;
+
+	private NgramVectorIndex(byte[][] vectors, float[] scales, HnswGraph graph, long indexVersion) {
+		this.vectors = vectors;
+		this.scales = scales;
+		this.graph = graph;
+		this.indexVersion = indexVersion;
+	}
+
+	/**
+	 * Computes the vectors from the term vectors of the field, and builds the graph. Building the graph takes in the order of a millisecond per document.
+	 *
+	 * @param reader
+	 *            The index reader
+	 * @param field
+	 *            The name of the field. The field must have term vectors
+	 * @param idfTable
+	 *            The IDF table computed over the same reader
+	 * @param indexVersion
+	 *            The version of the index, used to detect stale vector files
+	 * @return The vector index
+	 */
+	public static NgramVectorIndex build(IndexReader reader, String field, IdfTable idfTable, long indexVersion) throws IOException {
+		int maxDoc = reader.maxDoc();
+		byte[][] vectors = createPages(maxDoc);
+		float[] scales = new float[maxDoc];
+		float[] vector = new float[DIMENSIONS];
+		TermsEnum termsEnum = null;
+		for (int doc = 0; doc < maxDoc; doc++) {
+			Terms termVector = reader.getTermVector(doc, field);
+			if (termVector == null)
+				continue;
+			Arrays.fill(vector, 0);
+			termsEnum = termVector.iterator(termsEnum);
+			BytesRef term;
+			while ((term = termsEnum.next()) != null)
+				addNgram(vector, term, idfTable);
+			scales[doc] = quantize(vector, vectors[doc >>> PAGE_BITS], (doc & PAGE_MASK) * DIMENSIONS);
+		}
+		NgramVectorIndex vectorIndex = new NgramVectorIndex(vectors, scales, null, indexVersion);
+		vectorIndex.graph = HnswGraph.build(maxDoc, vectorIndex::similarity, MAX_CONNECTIONS, BUILD_BEAM_WIDTH, 0);
+		return vectorIndex;
+	}
+
+	private static byte[][] createPages(int maxDoc) {
+		byte[][] pages = new byte[(maxDoc + PAGE_MASK) >>> PAGE_BITS][];
+		for (int i = 0; i < pages.length; i++)
+			pages[i] = new byte[Math.min(PAGE_MASK + 1, maxDoc - (i << PAGE_BITS)) * DIMENSIONS];
+		return pages;
+	}
+
+	private static void addNgram(float[] vector, BytesRef ngram, IdfTable idfTable) {
+		double idf = idfTable.idf(ngram);
+		if (idf == 0)
+			return;
+		int hash = StringHelper.murmurhash3_x86_32(ngram, HASH_SEED);
+		// The lowest bits pick the dimension, the highest bit the sign:
+		vector[hash & (DIMENSIONS - 1)] += hash < 0 ? -idf : idf;
+	}
+
+	/**
+	 * Normalizes the vector to unit length, and stores it with one signed byte per dimension.
+	 *
+	 * @return The scale of the quantized vector, or 0 if the vector is empty
+	 */
+	private static float quantize(float[] vector, byte[] target, int offset) {
+		if (!normalize(vector))
+			return 0;
+		float maxAbs = 0;
+		for (float value : vector)
+			maxAbs = Math.max(maxAbs, Math.abs(value));
+		float scale = maxAbs / 127;
+		for (int i = 0; i < DIMENSIONS; i++)
+			target[offset + i] = (byte) Math.round(vector[i] / scale);
+		return scale;
+	}
+
+	/**
+	 * @return false if the vector is empty
+	 */
+	private static boolean normalize(float[] vector) {
+		double sumOfSquares = 0;
+		for (float value : vector)
+			sumOfSquares += value * value;
+		if (sumOfSquares == 0)
+			return false;
+		float norm = (float) Math.sqrt(sumOfSquares);
+		for (int i = 0; i < vector.length; i++)
+			vector[i] /= norm;
+		return true;
+	}
+
+	/**
+	 * Creates the vector of a search term, in the same way as the vectors of the documents.
+	 *
+	 * @return The normalized vector, or null if none of the n-grams of the search term occur in the index
+	 */
+	public static float[] createQueryVector(String searchTerm, Analyzer analyzer, IdfTable idfTable) throws IOException {
+		SearchContext searchContext = SearchContext.get();
+		BytesRefHash ngrams = searchContext.getNgrams();
+		BytesRef scratch = searchContext.getScratch();
+		float[] vector = new float[DIMENSIONS];
+		try (TokenStream tokenStream = analyzer.tokenStream("TERM", searchTerm)) {
+			CharTermAttribute charTermAttribute = tokenStream.addAttribute(CharTermAttribute.class);
+			tokenStream.reset();
+			while (tokenStream.incrementToken()) {
+				UnicodeUtil.UTF16toUTF8(charTermAttribute.buffer(), 0, charTermAttribute.length(), scratch);
+				if (ngrams.add(scratch) >= 0)
+					addNgram(vector, scratch, idfTable);
+			}
+			tokenStream.end();
+		}
+		return normalize(vector) ? vector : null;
+	}
+
+	/**
+	 * Creates the query vector from n-grams that have already been analyzed and deduplicated, see {@link SourceTermTokens}.
+	 */
+	public static float[] createQueryVector(BytesRef[] ngrams, IdfTable idfTable) {
+		float[] vector = new float[DIMENSIONS];
+		for (BytesRef ngram : ngrams)
+			addNgram(vector, ngram, idfTable);
+		return normalize(vector) ? vector : null;
+	}
+
+	private float similarity(int doc1, int doc2) {
+		byte[] page1 = vectors[doc1 >>> PAGE_BITS];
+		byte[] page2 = vectors[doc2 >>> PAGE_BITS];
+		int offset1 = (doc1 & PAGE_MASK) * DIMENSIONS;
+		int offset2 = (doc2 & PAGE_MASK) * DIMENSIONS;
+		int dotProduct = 0;
+		for (int i = 0; i < DIMENSIONS; i++)
+			dotProduct += page1[offset1 + i] * page2[offset2 + i];
+		return dotProduct * scales[doc1] * scales[doc2];
+	}
+
+	private float similarity(float[] queryVector, int doc) {
+		byte[] page = vectors[doc >>> PAGE_BITS];
+		int offset = (doc & PAGE_MASK) * DIMENSIONS;
+		float dotProduct = 0;
+		for (int i = 0; i < DIMENSIONS; i++)
+			dotProduct += queryVector[i] * page[offset + i];
+		return dotProduct * scales[doc];
+	}
+
+	/**
+	 * Finds the documents with the vectors most similar to the query vector, by walking the graph.
+	 *
+	 * @param queryVector
+	 *            The query vector, see {@link #createQueryVector(String, Analyzer, IdfTable)}
+	 * @param count
+	 *            The number of documents to find. This is also the beam width of the search
+	 * @param acceptDocs
+	 *            The documents that may be returned, or null if all documents may be returned
+	 * @param visitLimit
+	 *            The maximum number of documents to visit. Set to the number of accepted documents, so the search gives up when scanning the accepted documents
+	 *            is cheaper
+	 * @return The documents and their similarities, most similar first, or null if the visit limit was exceeded
+	 */
+	public ScoreDoc[] search(float[] queryVector, int count, Bits acceptDocs, int visitLimit, HnswGraph.SearchState state) {
+		return graph.search(doc -> similarity(queryVector, doc), count, acceptDocs, visitLimit, state);
+	}
+
+	/**
+	 * Finds the documents with the vectors most similar to the query vector by computing the similarity of every given document. This gives the exact nearest
+	 * neighbours, and is faster than walking the graph when the search is restricted to few documents.
+	 *
+	 * @param docs
+	 *            The documents to score, in any order
+	 * @param docCount
+	 *            The number of documents in the array
+	 * @return The documents and their similarities, most similar first
+	 */
+	public ScoreDoc[] searchExact(float[] queryVector, int count, int[] docs, int docCount) {
+		HnswGraph.NodeHeap results = new HnswGraph.NodeHeap(false);
+		for (int i = 0; i < docCount; i++) {
+			int doc = docs[i];
+			float docSimilarity = similarity(queryVector, doc);
+			if (results.size() < count || docSimilarity > results.topScore()) {
+				results.push(doc, docSimilarity);
+				if (results.size() > count)
+					results.pop();
+			}
+		}
+		ScoreDoc[] scoreDocs = new ScoreDoc[results.size()];
+		for (int i = scoreDocs.length - 1; i >= 0; i--) {
+			float score = results.topScore();
+			scoreDocs[i] = new ScoreDoc(results.pop(), score);
+		}
+		return scoreDocs;
+	}
+
+	public long getIndexVersion() {
+		return indexVersion;
+	}
+
+	/**
+	 * @return The number of documents with a vector
+	 */
+	public int size() {
+		return scales.length;
+	}
+
+	public long ramBytesUsed() {
+		long bytes = RamUsageEstimator.sizeOf(scales) + graph.ramBytesUsed();
+		for (byte[] page : vectors)
+			bytes += RamUsageEstimator.sizeOf(page);
+		return bytes;
+	}
+
+	/**
+	 * Loads a vector index saved earlier.
+	 *
+	 * @return The vector index, or null if the file does not exist or was created for a different version of the index
+	 */
+	public static NgramVectorIndex load(File file, int maxDoc, long indexVersion) {
+		if (!file.exists())
+			return null;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != FILE_FORMAT_VERSION || in.readLong() != indexVersion || in.readInt() != maxDoc || in.readInt() != DIMENSIONS)
+				return null;
+			float[] scales = new float[maxDoc];
+			for (int i = 0; i < maxDoc; i++)
+				scales[i] = in.readFloat();
+			byte[][] vectors = createPages(maxDoc);
+			for (byte[] page : vectors)
+				in.readFully(page);
+			return new NgramVectorIndex(vectors, scales, HnswGraph.load(in), indexVersion);
+		} catch (IOException e) {
+			System.err.println("Unable to read n-gram vectors: " + e.getMessage());
+			return null;
+		}
+	}
+
+	public void save(File file) {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(FILE_FORMAT_VERSION);
+			out.writeLong(indexVersion);
+			out.writeInt(scales.length);
+			out.writeInt(DIMENSIONS);
+			for (float scale : scales)
+				out.writeFloat(scale);
+			for (byte[] page : vectors)
+				out.write(page);
+			graph.save(out);
+		} catch (IOException e) {
+			System.err.println("Unable to write n-gram vectors: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.search.similarities.PerFieldSimilarityWrapper;
+import org.apache.lucene.search.similarities.Similarity;
+
+/**
+ * Scores each term field with the {@link CosineSimilarity} of that field, using the IDF table and document norms computed for the field. Queries never mix
+ * fields, so every query is a cosine over a single field.
+ */
+public class PerFieldCosineSimilarity extends PerFieldSimilarityWrapper {
+
+	private Map<String, CosineSimilarity>	similarities	= new HashMap<String, CosineSimilarity>();
+	private CosineSimilarity				defaultSimilarity;
+
+	/**
+	 * @param defaultSimilarity
+	 *            The similarity of the n-gram field, also used for fields that were not added
+	 */
+	public PerFieldCosineSimilarity(CosineSimilarity defaultSimilarity) {
+		this.defaultSimilarity = defaultSimilarity;
+	}
+
+	public void add(TermField field, CosineSimilarity similarity) {
+		similarities.put(field.getFieldName(), similarity);
+	}
+
+	@Override
+	public Similarity get(String name) {
+		CosineSimilarity similarity = similarities.get(name);
+		return similarity == null ? defaultSimilarity : similarity;
+	}
+
+	// The wrapper does not delegate the query norm, which makes the query side of the cosine:
+	@Override
+	public float queryNorm(float sumOfSquaredWeights) {
+		return defaultSimilarity.queryNorm(sumOfSquaredWeights);
+	}
+}
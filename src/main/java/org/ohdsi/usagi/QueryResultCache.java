@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.ohdsi.usagi.UsagiSearchEngine.ScoredConcept;
+
+/**
+ * Least-recently-used cache of search results. A result is identified by the index generation it was computed on, the normalized search term, and the filter
+ * signature (the concept filter, the automatically assigned concept IDs and the maximum number of results). Because the index generation is part of the key,
+ * results computed on an older version of the index are never returned, but the cache should still be cleared when the index is reopened to free memory.
+ */
+public class QueryResultCache {
+
+	public static int						DEFAULT_MAX_ENTRIES	= 1000;
+
+	private int								maxEntries;
+	private long							hitCount			= 0;
+	private long							missCount			= 0;
+	private Map<Key, List<ScoredConcept>>	map;
+
+	public QueryResultCache() {
+		this(DEFAULT_MAX_ENTRIES);
+	}
+
+	public QueryResultCache(int maxEntries) {
+		this.maxEntries = maxEntries;
+		map = new LinkedHashMap<Key, List<ScoredConcept>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, List<ScoredConcept>> eldest) {
+				return size() > QueryResultCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Creates the key of a search.
+	 *
+	 * @param indexGeneration
+	 *            The index generation the search is run on
+	 * @param searchTerm
+	 *            The search term
+	 * @param useMlt
+	 *            Whether the search term is searched as a bag of n-grams (true) or parsed as a query (false)
+	 * @param filterConceptIds
+	 *            The concept IDs the search is restricted to, or null if not restricting by concept ID
+	 * @param conceptFilter
+	 *            The concept filter of the search
+	 * @param topK
+	 *            The maximum number of results
+	 */
+	public static Key createKey(IndexGeneration indexGeneration, String searchTerm, boolean useMlt, Collection<Integer> filterConceptIds,
+			ConceptFilter conceptFilter, int topK) {
+		// The n-gram analyzer lowercases, so case does not matter. Query parser syntax is case sensitive:
+		String normalizedSearchTerm = useMlt ? searchTerm.toLowerCase(Locale.ROOT) : searchTerm;
+		Collection<Integer> conceptIds = filterConceptIds == null || filterConceptIds.size() == 0 ? Collections.<Integer>emptySet()
+				: Collections.unmodifiableSet(new TreeSet<Integer>(filterConceptIds));
+		return new Key(indexGeneration, normalizedSearchTerm, useMlt, conceptIds, conceptFilter, topK);
+	}
+
+	/**
+	 * @return A copy of the cached results, or null if the search is not in the cache
+	 */
+	public synchronized List<ScoredConcept> get(Key key) {
+		List<ScoredConcept> results = map.get(key);
+		if (results == null) {
+			missCount++;
+			return null;
+		} else {
+			hitCount++;
+			return new ArrayList<ScoredConcept>(results);
+		}
+	}
+
+	public synchronized void put(Key key, List<ScoredConcept> results) {
+		map.put(key, new ArrayList<ScoredConcept>(results));
+	}
+
+	public synchronized void clear() {
+		map.clear();
+	}
+
+	public synchronized int size() {
+		return map.size();
+	}
+
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	public static class Key {
+		private IndexGeneration		indexGeneration;
+		private String				searchTerm;
+		private boolean				useMlt;
+		private Collection<Integer>	filterConceptIds;
+		private ConceptFilter		conceptFilter;
+		private int					topK;
+
+		private Key(IndexGeneration indexGeneration, String searchTerm, boolean useMlt, Collection<Integer> filterConceptIds, ConceptFilter conceptFilter,
+				int topK) {
+			this.indexGeneration = indexGeneration;
+			this.searchTerm = searchTerm;
+			this.useMlt = useMlt;
+			this.filterConceptIds = filterConceptIds;
+			this.conceptFilter = conceptFilter;
+			this.topK = topK;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = System.identityHashCode(indexGeneration);
+			result = 31 * result + searchTerm.hashCode();
+			result = 31 * result + (useMlt ? 1 : 0);
+			result = 31 * result + filterConceptIds.hashCode();
+			result = 31 * result + conceptFilter.hashCode();
+			result = 31 * result + topK;
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return indexGeneration == other.indexGeneration && searchTerm.equals(other.searchTerm) && useMlt == other.useMlt
+					&& filterConceptIds.equals(other.filterConceptIds) && conceptFilter.equals(other.conceptFilter) && topK == other.topK;
+		}
+	}
+}
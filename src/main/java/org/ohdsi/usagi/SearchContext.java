@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.function.BooleanSupplier;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.ByteBlockPool;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.RecyclingByteBlockAllocator;
+
+/**
+ * The objects a thread reuses from one search to the next, so a search allocates little more than its results. During a batch search the same thread runs
+ * thousands of searches, and without reuse every search would allocate a terms enum and a postings enum (with their buffers) per query term per segment, a
+ * map entry per collected concept, and so on.
+ * <p>
+ * A context must only be used by the thread that owns it, see {@link #get()}. The postings enums are tied to the segments of the reader being searched, and
+ * are dropped when a search on a different reader starts, or when the reader is closed, see {@link #releaseReader(IndexReader)}.
+ */
+public class SearchContext {
+
+	private static ThreadLocal<SearchContext>			contexts			= ThreadLocal.withInitial(SearchContext::new);
+	// The contexts of all threads, so they can be cleared when a reader is closed. A context is dropped when its thread ends:
+	private static Set<SearchContext>					allContexts			= Collections
+			.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<SearchContext, Boolean>()));
+
+	// The hash returns its byte blocks to the allocator when it is cleared, so they can be recycled by the next search:
+	private BytesRefHash								ngrams				= new BytesRefHash(new ByteBlockPool(new RecyclingByteBlockAllocator()));
+	private BytesRef									scratch				= new BytesRef();
+	private ConceptCollapsingCollector					collector			= null;
+	private IndexReader									topLevelReader		= null;
+	// Per field, the postings of each segment by its core cache key:
+	private Map<String, Map<Object, SegmentPostings>>	segmentPostings		= new HashMap<String, Map<Object, SegmentPostings>>();
+	private HnswGraph.SearchState						graphSearchState	= null;
+
+	private SearchContext() {
+		allContexts.add(this);
+	}
+
+	/**
+	 * @return The search context of the current thread
+	 */
+	public static SearchContext get() {
+		return contexts.get();
+	}
+
+	/**
+	 * @return An empty hash for the distinct n-grams of a search term. The ordinal of an n-gram in the hash is its position in the query
+	 */
+	public BytesRefHash getNgrams() {
+		ngrams.clear();
+		ngrams.reinit();
+		return ngrams;
+	}
+
+	/**
+	 * @return A scratch buffer for converting a term to UTF-8
+	 */
+	public BytesRef getScratch() {
+		return scratch;
+	}
+
+	/**
+	 * @return The collector of this thread, reset to collect the top k concepts
+	 */
+	public synchronized ConceptCollapsingCollector getCollector(int k, BooleanSupplier cancelled) {
+		if (collector == null)
+			collector = new ConceptCollapsingCollector(k, cancelled);
+		else
+			collector.reset(k, cancelled);
+		return collector;
+	}
+
+	/**
+	 * @return The state of a nearest-neighbour graph search, cleared by the search itself
+	 */
+	public HnswGraph.SearchState getGraphSearchState() {
+		if (graphSearchState == null)
+			graphSearchState = new HnswGraph.SearchState();
+		return graphSearchState;
+	}
+
+	/**
+	 * @return The reusable postings of the segment, or null if the segment does not have the field
+	 */
+	public SegmentPostings getSegmentPostings(AtomicReaderContext context, String field) throws IOException {
+		IndexReader reader = ReaderUtil.getTopLevelContext(context).reader();
+		synchronized (this) {
+			if (reader != topLevelReader) {
+				// The segments of an earlier reader may have been closed:
+				segmentPostings.clear();
+				topLevelReader = reader;
+			}
+		}
+		Map<Object, SegmentPostings> fieldPostings = segmentPostings.get(field);
+		if (fieldPostings == null) {
+			fieldPostings = new IdentityHashMap<Object, SegmentPostings>();
+			segmentPostings.put(field, fieldPostings);
+		}
+		AtomicReader atomicReader = context.reader();
+		SegmentPostings postings = fieldPostings.get(atomicReader.getCoreCacheKey());
+		if (postings == null) {
+			Terms terms = atomicReader.terms(field);
+			if (terms == null)
+				return null;
+			postings = new SegmentPostings(terms.iterator(null));
+			fieldPostings.put(atomicReader.getCoreCacheKey(), postings);
+		}
+		return postings;
+	}
+
+	/**
+	 * Drops the references the contexts of all threads hold to a reader that has been closed, so the segments of the reader can be garbage collected even when
+	 * a thread does not search again. The collectors are dropped as well, since a collector keeps the last segment it collected. A thread that is still using
+	 * its collector for a search on another reader keeps it until the search is done.
+	 */
+	public static void releaseReader(IndexReader reader) {
+		synchronized (allContexts) {
+			for (SearchContext context : allContexts)
+				synchronized (context) {
+					if (context.topLevelReader == reader) {
+						context.segmentPostings.clear();
+						context.topLevelReader = null;
+					}
+					context.collector = null;
+				}
+		}
+	}
+
+	/**
+	 * The terms enum of one segment, and a pool of postings enums. Lucene reuses the buffers of a postings enum when it is passed back for another term of the
+	 * same segment.
+	 */
+	public static class SegmentPostings {
+		private TermsEnum	termsEnum;
+		private DocsEnum[]	docsEnums	= new DocsEnum[16];
+
+		private SegmentPostings(TermsEnum termsEnum) {
+			this.termsEnum = termsEnum;
+		}
+
+		public TermsEnum getTermsEnum() {
+			return termsEnum;
+		}
+
+		/**
+		 * @return The postings enum in the given slot of the pool, or null if the slot is still empty
+		 */
+		public DocsEnum getDocsEnum(int slot) {
+			return slot < docsEnums.length ? docsEnums[slot] : null;
+		}
+
+		public void setDocsEnum(int slot, DocsEnum docsEnum) {
+			if (slot >= docsEnums.length)
+				docsEnums = Arrays.copyOf(docsEnums, ArrayUtil.oversize(slot + 1, RamUsageEstimator.NUM_BYTES_OBJECT_REF));
+			docsEnums[slot] = docsEnum;
+		}
+	}
+}
@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi;
+
+import java.util.Set;
+import java.util.Vector;
+
+/**
+ * The settings shared by all searches in a call to {@link UsagiSearchEngine#searchBatch(java.util.List, SearchSettings, int)}.
+ */
+public class SearchSettings {
+
+	/**
+	 * Specify whether the search for each source code should be restricted to the concepts automatically assigned to that source code (if any).
+	 */
+	public boolean			filterByAutoConceptIds		= true;
+
+	/**
+	 * The domains to which the search should be restricted. Set to null if not restricting by domain
+	 */
+	public Vector<String>	filterDomains				= null;
+
+	/**
+	 * The concept classes to which the search should be restricted. Set to null if not restricting by concept class
+	 */
+	public Vector<String>	filterConceptClasses		= null;
+
+	/**
+	 * The vocabularies to which the search should be restricted. Set to null if not restricting by vocabulary
+	 */
+	public Vector<String>	filterVocabularies			= null;
+
+	/**
+	 * Specify whether the search should be restricted to standard concepts only.
+	 */
+	public boolean			filterStandard				= true;
+
+	/**
+	 * Specify whether the search should also match on source terms (e.g. ICD-10 names) mapping to the concepts.
+	 */
+	public boolean			includeSourceConcepts		= false;
+
+	/**
+	 * The concepts to whose descendants (including the concepts themselves) the search should be restricted. Set to null if not restricting by ancestor
+	 */
+	public Set<Integer>		filterAncestorConceptIds	= null;
+
+	/**
+	 * The number of threads used to run the searches.
+	 */
+	public int				threadCount					= Runtime.getRuntime().availableProcessors();
+}
@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.UnicodeUtil;
+
+/**
+ * The analyzed tokens of the source terms in one term field, so a source term that is searched again (after changing the filters, or when revisiting a
+ * source code) does not have to be analyzed again. The source terms are analyzed in bulk when the source codes are indexed, see
+ * {@link UsagiSearchEngine#createDerivedIndex}. Source terms share most of their n-grams, so the distinct tokens of all source terms are stored once, in one
+ * byte pool, and each source term keeps the ordinals of its distinct tokens in the order in which the analyzer produced them, the order of the query clauses.
+ * <p>
+ * The IDF weights of the tokens are not stored: they change whenever the index is reopened, and are looked up in the {@link IdfTable} of the index searched.
+ */
+public class SourceTermTokens {
+
+	private byte[]					pool;
+	private int[]					tokenStarts;
+	private int[]					tokenOrdinals;
+	// The tokens of source term i are tokenOrdinals[termStarts[i]] to tokenOrdinals[termStarts[i + 1] - 1]:
+	private int[]					termStarts;
+	private Map<String, Integer>	termIndexes;
+
+	private SourceTermTokens() {
+	}
+
+	/**
+	 * @return The distinct tokens of the term, in the order of the analyzer, or null if the term is not a source term. The tokens point into the shared pool
+	 *         and must not be modified
+	 */
+	public BytesRef[] getTokens(String term) {
+		Integer termIndex = termIndexes.get(term);
+		if (termIndex == null)
+			return null;
+		int start = termStarts[termIndex];
+		BytesRef[] tokens = new BytesRef[termStarts[termIndex + 1] - start];
+		for (int i = 0; i < tokens.length; i++) {
+			int ordinal = tokenOrdinals[start + i];
+			tokens[i] = new BytesRef(pool, tokenStarts[ordinal], tokenStarts[ordinal + 1] - tokenStarts[ordinal]);
+		}
+		return tokens;
+	}
+
+	public int getTermCount() {
+		return termIndexes.size();
+	}
+
+	public int getTokenCount() {
+		return tokenStarts.length - 1;
+	}
+
+	/**
+	 * Analyzes source terms in one term field.
+	 */
+	public static class Builder {
+		private Analyzer				analyzer;
+		private TermField				field;
+		private BytesRefHash			tokens				= new BytesRefHash();
+		private BytesRefHash			termTokens			= new BytesRefHash();
+		private BytesRef				scratch				= new BytesRef();
+		private int[]					tokenOrdinals		= new int[1024];
+		private int						tokenOrdinalCount	= 0;
+		private int[]					termStarts			= new int[1024];
+		private Map<String, Integer>	termIndexes			= new HashMap<String, Integer>();
+
+		public Builder(Analyzer analyzer, TermField field) {
+			this.analyzer = analyzer;
+			this.field = field;
+		}
+
+		/**
+		 * Analyzes the term, unless it has already been added.
+		 */
+		public void add(String term) throws IOException {
+			if (termIndexes.containsKey(term))
+				return;
+			termTokens.clear();
+			termTokens.reinit();
+			try (TokenStream tokenStream = analyzer.tokenStream(field.getFieldName(), term)) {
+				CharTermAttribute charTermAttribute = tokenStream.addAttribute(CharTermAttribute.class);
+				tokenStream.reset();
+				while (tokenStream.incrementToken()) {
+					UnicodeUtil.UTF16toUTF8(charTermAttribute.buffer(), 0, charTermAttribute.length(), scratch);
+					if (termTokens.add(scratch) < 0)
+						continue;
+					int ordinal = tokens.add(scratch);
+					if (ordinal < 0)
+						ordinal = -ordinal - 1;
+					tokenOrdinals = ArrayUtil.grow(tokenOrdinals, tokenOrdinalCount + 1);
+					tokenOrdinals[tokenOrdinalCount++] = ordinal;
+				}
+				tokenStream.end();
+			}
+			int termIndex = termIndexes.size();
+			termIndexes.put(term, termIndex);
+			termStarts = ArrayUtil.grow(termStarts, termIndex + 2);
+			termStarts[termIndex + 1] = tokenOrdinalCount;
+		}
+
+		public SourceTermTokens build() {
+			SourceTermTokens sourceTermTokens = new SourceTermTokens();
+			int tokenCount = tokens.size();
+			sourceTermTokens.tokenStarts = new int[tokenCount + 1];
+			int poolSize = 0;
+			for (int ordinal = 0; ordinal < tokenCount; ordinal++)
+				poolSize += tokens.get(ordinal, scratch).length;
+			sourceTermTokens.pool = new byte[poolSize];
+			int position = 0;
+			for (int ordinal = 0; ordinal < tokenCount; ordinal++) {
+				tokens.get(ordinal, scratch);
+				System.arraycopy(scratch.bytes, scratch.offset, sourceTermTokens.pool, position, scratch.length);
+				sourceTermTokens.tokenStarts[ordinal] = position;
+				position += scratch.length;
+			}
+			sourceTermTokens.tokenStarts[tokenCount] = position;
+			sourceTermTokens.tokenOrdinals = ArrayUtil.shrink(tokenOrdinals, tokenOrdinalCount);
+			sourceTermTokens.termStarts = ArrayUtil.shrink(termStarts, termIndexes.size() + 1);
+			sourceTermTokens.termIndexes = termIndexes;
+			return sourceTermTokens;
+		}
+	}
+}
@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi;
+
+/**
+ * The fields holding the term of an index document, each analyzed differently by the {@link UsagiAnalyzer}. The n-gram field is always indexed: it is stored,
+ * has term vectors, and is the field the exact match dictionary, the suggestions and the vectors are built from. The other fields are only indexed when
+ * listed in {@link IndexSettings#indexFields}.
+ */
+public enum TermField {
+	/**
+	 * Character 2- and 3-grams of the term. Matches partial words, word variants and misspellings.
+	 */
+	NGRAM("TERM"),
+	/**
+	 * The lowercased words of the term. Used to correct misspelled words, see {@link WordCorrector}.
+	 */
+	WORDS("TERM_WORDS"),
+	/**
+	 * The Porter-stemmed words of the term, so "fractures" matches "fracture".
+	 */
+	STEMMED("TERM_STEMMED"),
+	/**
+	 * The whole term, lowercased, with runs of whitespace replaced by a single space. Only matches identical terms.
+	 */
+	KEYWORD("TERM_KEYWORD");
+
+	private String fieldName;
+
+	private TermField(String fieldName) {
+		this.fieldName = fieldName;
+	}
+
+	/**
+	 * @return The name of the Lucene field
+	 */
+	public String getFieldName() {
+		return fieldName;
+	}
+}
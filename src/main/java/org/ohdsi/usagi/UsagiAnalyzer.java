@@ -16,40 +16,67 @@
 package org.ohdsi.usagi;
 
 import java.io.Reader;
+import java.util.regex.Pattern;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.KeywordTokenizer;
 import org.apache.lucene.analysis.core.LowerCaseFilter;
+import org.apache.lucene.analysis.core.LowerCaseTokenizer;
+import org.apache.lucene.analysis.en.EnglishPossessiveFilter;
+import org.apache.lucene.analysis.en.PorterStemFilter;
+import org.apache.lucene.analysis.miscellaneous.TrimFilter;
 import org.apache.lucene.analysis.ngram.NGramTokenizer;
+import org.apache.lucene.analysis.pattern.PatternReplaceFilter;
 import org.apache.lucene.analysis.standard.StandardFilter;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
 import org.apache.lucene.util.Version;
 
 /**
  * Analyzers are used by Lucene to turn a piece of text into a list of tokens. For Usagi we use a custom analyzer that things like split words on letter-number
  * boundaries (e.g. '10mg' is converted into two tokens: '10' and 'mg'). Other transformations include converting to lower case, and stemming words (e.g.
  * converting plural to singular form).
+ * <p>
+ * Each {@link TermField} is analyzed differently: the n-gram field into character 2- and 3-grams, the words field into lowercased words, the stemmed field
+ * into Porter-stemmed words, and the keyword field into a single token holding the whole term.
  */
 public class UsagiAnalyzer extends Analyzer {
 
 	private static Version	matchVersion	= Version.LUCENE_4_9;
+	private static Pattern	WHITESPACE		= Pattern.compile("\\s+");
+
+	public UsagiAnalyzer() {
+		// The fields are analyzed differently, so the token streams cannot be shared between fields:
+		super(PER_FIELD_REUSE_STRATEGY);
+	}
 
 	@Override
 	protected TokenStreamComponents createComponents(String fieldName, Reader reader) {
+		if (fieldName.equals(TermField.WORDS.getFieldName())) {
+			// Whole words, for correcting misspelled words of a search term. Digits are dropped, numbers are not corrected:
+			Tokenizer source = new LowerCaseTokenizer(matchVersion, reader);
+			return new TokenStreamComponents(source);
+		}
+		if (fieldName.equals(TermField.STEMMED.getFieldName())) {
+			final Tokenizer source = new StandardTokenizer(matchVersion, reader);
+			TokenStream result = new StandardFilter(matchVersion, source);
+			result = new EnglishPossessiveFilter(matchVersion, result);
+			result = new LowerCaseFilter(matchVersion, result);
+			result = new PorterStemFilter(result);
+			return new TokenStreamComponents(source, result);
+		}
+		if (fieldName.equals(TermField.KEYWORD.getFieldName())) {
+			final Tokenizer source = new KeywordTokenizer(reader);
+			TokenStream result = new LowerCaseFilter(matchVersion, source);
+			result = new PatternReplaceFilter(result, WHITESPACE, " ", true);
+			result = new TrimFilter(matchVersion, result);
+			return new TokenStreamComponents(source, result);
+		}
 		final Tokenizer source = new NGramTokenizer(matchVersion, reader, 2, 3);
 		TokenStream result = new StandardFilter(matchVersion, source);
 		result = new LowerCaseFilter(matchVersion, result);
 		return new TokenStreamComponents(source, result);
-
-		// final Tokenizer source = new StandardTokenizer(matchVersion, reader);
-		// TokenStream result = new StandardFilter(matchVersion, source);
-		//
-		// result = new EnglishPossessiveFilter(matchVersion, result);
-		// result = new LowerCaseFilter(matchVersion, result);
-		// result = new PorterStemFilter(result);
-		// result = new WordDelimiterFilter(matchVersion, result, WordDelimiterFilter.ALPHANUM | WordDelimiterFilter.SUBWORD_DELIM
-		// | WordDelimiterFilter.SPLIT_ON_NUMERICS, null);
-		// return new TokenStreamComponents(source, result);
 	}
 
 }
@@ -18,17 +18,29 @@ package org.ohdsi.usagi;
 import java.awt.BorderLayout;
 import java.io.File;
 import java.io.IOException;
-import java.io.StringReader;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 import javax.swing.BorderFactory;
 import javax.swing.JDialog;
@@ -37,63 +49,121 @@ import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JProgressBar;
 
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.Field.Store;
 import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
 import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.FieldInfo.IndexOptions;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.ReaderUtil;
 import org.apache.lucene.index.Term;
-import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
-import org.apache.lucene.queries.mlt.MoreLikeThis;
+import org.apache.lucene.queries.TermsFilter;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
-import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BulkScorer;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.FilteredQuery;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.search.similarities.DefaultSimilarity;
+import org.apache.lucene.search.Weight;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.UnicodeUtil;
 import org.apache.lucene.util.Version;
 import org.ohdsi.usagi.ui.Global;
 import org.ohdsi.utilities.DirectoryUtilities;
-import org.ohdsi.utilities.StringUtilities;
 
 /**
  * The Usagi search engine is used to find matching concepts for source terms. The search engine uses Lucene.
  */
 public class UsagiSearchEngine {
 
-	public static String	MAIN_INDEX_FOLDER		= "mainIndex";
-	public static String	DERIVED_INDEX_FOLDER	= "derivedIndex";
-	public static String	SOURCE_CODE_TYPE_STRING	= "S";
-	public static String	CONCEPT_TYPE_STRING		= "C";
-	public static String	CONCEPT_TERM			= "C";
-	public static String	SOURCE_TERM				= "S";
-
-	private String			folder;
-	private IndexWriter		writer;
-	private IndexReader		reader					= null;
-	private IndexSearcher	searcher;
-	private UsagiAnalyzer	analyzer				= new UsagiAnalyzer();
-	private Query			conceptQuery;
-	private int				numDocs;
-	private FieldType		textVectorField			= getTextVectorFieldType();
+	public static String		MAIN_INDEX_FOLDER			= "mainIndex";
+	public static String		DERIVED_INDEX_FOLDER		= "derivedIndex";
+	public static String		SOURCE_CODE_TYPE_STRING		= "S";
+	public static String		CONCEPT_TYPE_STRING			= "C";
+	public static String		CONCEPT_TERM				= "C";
+	public static String		SOURCE_TERM					= "S";
+	public static String		NORMS_FILE_SUFFIX			= "Norms.bin";
+	public static String		NORM_STATISTICS_FILE_SUFFIX	= "NormStatistics.bin";
+	public static String		IDF_FILE_SUFFIX				= "Idf.bin";
+	public static String		EXACT_MATCH_FILE_SUFFIX		= "ExactMatches.bin";
+	public static String		SUGGESTIONS_FILE_SUFFIX		= "Suggestions.bin";
+	public static String		VECTORS_FILE_SUFFIX			= "Vectors.bin";
+	public static String		FIELD_REPORT_FILE			= "IndexFieldReport.txt";
+	private static Set<String>	TERM_FIELD					= Collections.singleton("TERM");
+	private static Set<String>	CONCEPT_ID_FIELD			= Collections.singleton("CONCEPT_ID");
+	private static int			MAX_HITS					= 100;
+	private static int			WARM_UP_SEARCHES			= 200;
+
+	private String										folder;
+	private IndexWriter									writer;
+	private DomainShards.Writer							shardsWriter;
+	private volatile IndexGeneration					generation			= null;
+	private UsagiAnalyzer								analyzer			= new UsagiAnalyzer();
+	private FilterBitSetCache							filterBitSetCache	= new FilterBitSetCache();
+	private QueryResultCache							queryResultCache	= new QueryResultCache();
+	private ExactMatchDictionary.Builder				exactMatchDictionaryBuilder;
+	private ExactMatchDictionary						exactMatchDictionary;
+	private ConceptSuggester.Builder					conceptSuggesterBuilder;
+	private volatile ConceptSuggester					conceptSuggester;
+	private NgramVectorIndex							vectorIndex;
+	private ConceptDescendantIndex						descendantIndex;
+	private Directory									sourceTermDirectory	= null;
+	private volatile Map<TermField, SourceTermTokens>	sourceTermTokens	= Collections.emptyMap();
+	private FieldType									textVectorField		= getTextVectorFieldType();
+	private FieldType									docsOnlyField		= getDocsOnlyFieldType();
+	private boolean										maxScorePruning		= true;
+	private IndexSettings								indexSettings;
+	private ExecutorService								searchExecutor		= null;
 
 	public UsagiSearchEngine(String folder) {
 		this.folder = folder;
+		indexSettings = IndexSettings.load(folder);
+	}
+
+	public IndexSettings getIndexSettings() {
+		return indexSettings;
+	}
+
+	/**
+	 * Sets how the index is opened. Takes effect the next time the index is opened for searching.
+	 */
+	public void setIndexSettings(IndexSettings indexSettings) {
+		this.indexSettings = indexSettings;
 	}
 
 	private FieldType getTextVectorFieldType() {
@@ -109,19 +179,45 @@ public class UsagiSearchEngine {
 		return textVectorField;
 	}
 
+	private FieldType getDocsOnlyFieldType() {
+		FieldType docsOnlyField = new FieldType();
+		docsOnlyField.setIndexed(true);
+		docsOnlyField.setTokenized(true);
+		docsOnlyField.setIndexOptions(IndexOptions.DOCS_ONLY);
+		docsOnlyField.setOmitNorms(true);
+		docsOnlyField.freeze();
+		return docsOnlyField;
+	}
+
 	public void createNewMainIndex() {
 		try {
 			File indexFolder = new File(folder + "/" + MAIN_INDEX_FOLDER);
 			if (indexFolder.exists())
 				DirectoryUtilities.deleteDir(indexFolder);
+			for (TermField field : TermField.values()) {
+				getFieldFile(MAIN_INDEX_FOLDER, field, NORMS_FILE_SUFFIX).delete();
+				getFieldFile(MAIN_INDEX_FOLDER, field, NORM_STATISTICS_FILE_SUFFIX).delete();
+				getFieldFile(MAIN_INDEX_FOLDER, field, IDF_FILE_SUFFIX).delete();
+			}
+			getExactMatchFile().delete();
+			exactMatchDictionary = null;
+			getSuggestionsFile().delete();
+			conceptSuggester = null;
+			getVectorsFile().delete();
+			vectorIndex = null;
+
+			if (indexSettings.domainShards)
+				shardsWriter = new DomainShards.Writer(indexFolder);
+			else {
+				Directory dir = FSDirectory.open(indexFolder);
 
-			Directory dir = FSDirectory.open(indexFolder);
-
-			IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_4_9, new UsagiAnalyzer());
-			iwc.setOpenMode(OpenMode.CREATE);
-			iwc.setRAMBufferSizeMB(128.0);
-			writer = new IndexWriter(dir, iwc);
-
+				IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_4_9, new UsagiAnalyzer());
+				iwc.setOpenMode(OpenMode.CREATE);
+				iwc.setRAMBufferSizeMB(128.0);
+				writer = new IndexWriter(dir, iwc);
+			}
+			exactMatchDictionaryBuilder = new ExactMatchDictionary.Builder();
+			conceptSuggesterBuilder = new ConceptSuggester.Builder();
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
@@ -132,27 +228,64 @@ public class UsagiSearchEngine {
 	}
 
 	public void addTermToIndex(String term, String termType, Concept concept) {
-		if (writer == null)
+		if (writer == null && shardsWriter == null)
 			throw new RuntimeException("Indexed not open for writing");
 		try {
 			Document document = new Document();
 			document.add(new StringField("TYPE", CONCEPT_TYPE_STRING, Store.YES));
 			document.add(new Field("TERM", term, textVectorField));
+			// The other term fields are only indexed, for correcting misspelled words of search terms and for searching with other analyzers:
+			for (TermField field : indexSettings.indexFields)
+				if (field != TermField.NGRAM)
+					document.add(new Field(field.getFieldName(), term, docsOnlyField));
 			document.add(new StringField("CONCEPT_ID", Integer.toString(concept.conceptId), Store.YES));
 			document.add(new StringField("DOMAIN_ID", concept.domainId, Store.YES));
 			document.add(new StringField("VOCABULARY_ID", concept.vocabularyId, Store.YES));
 			document.add(new StringField("CONCEPT_CLASS_ID", concept.conceptClassId, Store.YES));
 			document.add(new StringField("STANDARD_CONCEPT", concept.standardConcept, Store.YES));
 			document.add(new StringField("TERM_TYPE", termType, Store.YES));
-			writer.addDocument(document);
+			// Column-wise copies of the fields, so hits can be resolved without loading their stored fields:
+			document.add(new NumericDocValuesField("CONCEPT_ID", concept.conceptId));
+			document.add(new SortedDocValuesField("DOMAIN_ID", new BytesRef(concept.domainId)));
+			document.add(new SortedDocValuesField("VOCABULARY_ID", new BytesRef(concept.vocabularyId)));
+			document.add(new SortedDocValuesField("CONCEPT_CLASS_ID", new BytesRef(concept.conceptClassId)));
+			document.add(new SortedDocValuesField("STANDARD_CONCEPT", new BytesRef(concept.standardConcept)));
+			document.add(new SortedDocValuesField("TERM_TYPE", new BytesRef(termType)));
+			if (shardsWriter != null)
+				shardsWriter.addDocument(concept.domainId, document);
+			else
+				writer.addDocument(document);
+			if (exactMatchDictionaryBuilder != null)
+				exactMatchDictionaryBuilder.add(term, concept.conceptId, termType);
+			if (conceptSuggesterBuilder != null)
+				conceptSuggesterBuilder.add(term, getSuggestionWeight(term, termType, concept));
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	/**
+	 * The vocabulary files do not say how often concepts are used, so suggestions are ranked on the standard status of the concept: names and synonyms of
+	 * standard concepts come before those of classification concepts, and those come before the names of non-standard concepts that map to them. A concept name
+	 * is suggested before a synonym.
+	 */
+	private static int getSuggestionWeight(String term, String termType, Concept concept) {
+		int weight;
+		if (termType.equals(SOURCE_TERM))
+			weight = 0;
+		else if (concept.standardConcept.equals("S"))
+			weight = 4;
+		else
+			weight = 2;
+		if (term.equals(concept.conceptName))
+			weight++;
+		return weight;
+	}
+
 	/**
 	 * Tokens that appear very frequently in the source code names, but not very often in the vocabulary, would get high weights (high IDF) even though they
-	 * probably are not very informative. To remedy this, we create a copy of the main index, and add all the source names to the index as well.
+	 * probably are not very informative. To remedy this, we add all the source names to a small in-memory index, and search the main index and the source term
+	 * index together, so the IDFs are computed over both. The main index itself is never modified.
 	 * 
 	 * @param sourceCodes
 	 *            the list of source codes to add to the index
@@ -204,32 +337,42 @@ public class UsagiSearchEngine {
 
 		public void run() {
 			try {
+				// Earlier versions of Usagi created the derived index by copying the main index:
 				File derivedIndexFolder = new File(folder + "/" + DERIVED_INDEX_FOLDER);
 				if (derivedIndexFolder.exists())
 					if (!DirectoryUtilities.deleteDir(derivedIndexFolder))
 						System.out.println("Unable to delete derived index folder");
+				getFieldFile(DERIVED_INDEX_FOLDER, TermField.NGRAM, NORMS_FILE_SUFFIX).delete();
 
-				File indexFolder = new File(folder + "/" + MAIN_INDEX_FOLDER);
-				DirectoryUtilities.copyDirectory(indexFolder, derivedIndexFolder);
-
-				Directory dir = FSDirectory.open(derivedIndexFolder);
+				Directory dir = new RAMDirectory();
 				IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_4_9, new UsagiAnalyzer());
-				iwc.setOpenMode(OpenMode.APPEND);
-				iwc.setRAMBufferSizeMB(256.0);
+				iwc.setOpenMode(OpenMode.CREATE);
 				IndexWriter writer = new IndexWriter(dir, iwc);
+				// The source terms are analyzed once here, in every field searched, so searching them again skips the analysis:
+				Map<TermField, SourceTermTokens.Builder> tokensBuilders = new EnumMap<TermField, SourceTermTokens.Builder>(TermField.class);
+				tokensBuilders.put(TermField.NGRAM, new SourceTermTokens.Builder(analyzer, TermField.NGRAM));
+				for (TermField field : indexSettings.searchFields)
+					if (!tokensBuilders.containsKey(field))
+						tokensBuilders.put(field, new SourceTermTokens.Builder(analyzer, field));
 
 				for (int i = 0; i < sourceCodes.size(); i++) {
 					Document document = new Document();
 					document.add(new StringField("TYPE", SOURCE_CODE_TYPE_STRING, Store.YES));
 					document.add(new Field("TERM", sourceCodes.get(i).sourceName, textVectorField));
 					writer.addDocument(document);
+					for (SourceTermTokens.Builder tokensBuilder : tokensBuilders.values())
+						tokensBuilder.add(sourceCodes.get(i).sourceName);
 					if (progressBar != null)
 						progressBar.setValue(5 + (90 * i) / sourceCodes.size());
 
 				}
 				// writer.forceMerge(1);
 				writer.close();
-				System.gc();
+				sourceTermDirectory = dir;
+				Map<TermField, SourceTermTokens> newSourceTermTokens = new EnumMap<TermField, SourceTermTokens>(TermField.class);
+				for (Map.Entry<TermField, SourceTermTokens.Builder> entry : tokensBuilders.entrySet())
+					newSourceTermTokens.put(entry.getKey(), entry.getValue().build());
+				sourceTermTokens = newSourceTermTokens;
 				if (dialog != null)
 					dialog.setVisible(false);
 				openIndexForSearching(true);
@@ -239,65 +382,323 @@ public class UsagiSearchEngine {
 		}
 	}
 
+	/**
+	 * Opens the index for searching. If the index is already open, the new version replaces it atomically: searches that are still running finish on the old
+	 * version, which is closed when the last of them releases it.
+	 * 
+	 * @param useDerivedIndex
+	 *            if true, the main index is searched together with the source terms added by the last call to createDerivedIndex
+	 */
 	public void openIndexForSearching(boolean useDerivedIndex) {
 		try {
-			if (useDerivedIndex)
-				reader = DirectoryReader.open(FSDirectory.open(new File(folder + "/" + DERIVED_INDEX_FOLDER)));
-			else
-				reader = DirectoryReader.open(FSDirectory.open(new File(folder + "/" + MAIN_INDEX_FOLDER)));
-			searcher = new IndexSearcher(reader);
-			searcher.setSimilarity(new DefaultSimilarity());
+			IndexReader mainReader = DomainShards.open(new File(folder + "/" + MAIN_INDEX_FOLDER), indexSettings);
+			long mainIndexVersion = DomainShards.getVersion(mainReader);
+			IndexReader reader;
+			IndexReader sourceTermReader = null;
+			boolean derived = useDerivedIndex && sourceTermDirectory != null;
+			if (derived) {
+				sourceTermReader = DirectoryReader.open(sourceTermDirectory);
+				reader = new MultiReader(mainReader, sourceTermReader);
+			} else
+				reader = mainReader;
+			Map<TermField, IdfTable> idfTables = new EnumMap<TermField, IdfTable>(TermField.class);
+			Map<TermField, CosineSimilarity> similarities = new EnumMap<TermField, CosineSimilarity>(TermField.class);
+			for (TermField field : TermField.values()) {
+				if (field != TermField.NGRAM && (!indexSettings.searchFields.contains(field) || MultiFields.getTerms(reader, field.getFieldName()) == null))
+					continue;
+				// The IDF table and the norms of the main index are saved when the index is built, see createMainIndexNorms:
+				File idfFile = getFieldFile(MAIN_INDEX_FOLDER, field, IDF_FILE_SUFFIX);
+				IdfTable mainIdfTable = IdfTable.load(idfFile, mainIndexVersion);
+				if (mainIdfTable == null) {
+					mainIdfTable = IdfTable.build(mainReader, field.getFieldName());
+					mainIdfTable.save(idfFile, mainIndexVersion);
+				}
+				File normStatisticsFile = getFieldFile(MAIN_INDEX_FOLDER, field, NORM_STATISTICS_FILE_SUFFIX);
+				IdfTable idfTable;
+				DocumentNorms documentNorms;
+				if (derived) {
+					// The source terms change the IDFs, so the table and norms of the main index are adjusted for them:
+					idfTable = IdfTable.overlay(mainIdfTable, sourceTermReader, field.getFieldName());
+					documentNorms = DocumentNorms.overlay(normStatisticsFile, mainIndexVersion, mainReader, mainIdfTable, sourceTermReader, idfTable,
+							field.getFieldName());
+					if (documentNorms == null)
+						documentNorms = DocumentNorms.compute(reader, field.getFieldName(), idfTable, -1);
+				} else {
+					idfTable = mainIdfTable;
+					File normsFile = getFieldFile(MAIN_INDEX_FOLDER, field, NORMS_FILE_SUFFIX);
+					documentNorms = DocumentNorms.load(normsFile, reader.maxDoc(), mainIndexVersion);
+					if (documentNorms == null || !normStatisticsFile.exists()) {
+						documentNorms = DocumentNorms.compute(reader, field.getFieldName(), idfTable, mainIndexVersion, normStatisticsFile);
+						documentNorms.save(normsFile);
+					}
+				}
+				idfTables.put(field, idfTable);
+				similarities.put(field, new CosineSimilarity(idfTable, documentNorms));
+			}
+			IndexSearcher searcher = new IndexSearcher(reader);
 			BooleanQuery.setMaxClauseCount(Integer.MAX_VALUE);
-			QueryParser typeQueryParser = new QueryParser(Version.LUCENE_4_9, "TYPE", new KeywordAnalyzer());
-			conceptQuery = typeQueryParser.parse(CONCEPT_TYPE_STRING);
-			numDocs = reader.numDocs();
+			if (similarities.size() == 1)
+				searcher.setSimilarity(similarities.get(TermField.NGRAM));
+			else {
+				PerFieldCosineSimilarity similarity = new PerFieldCosineSimilarity(similarities.get(TermField.NGRAM));
+				for (Map.Entry<TermField, CosineSimilarity> entry : similarities.entrySet())
+					similarity.add(entry.getKey(), entry.getValue());
+				searcher.setSimilarity(similarity);
+			}
+			if (exactMatchDictionary == null)
+				exactMatchDictionary = ExactMatchDictionary.load(getExactMatchFile());
+			if (conceptSuggester == null)
+				conceptSuggester = ConceptSuggester.load(getSuggestionsFile());
+			if (descendantIndex == null)
+				descendantIndex = ConceptDescendantIndex.open(new File(folder + "/" + ConceptDescendantIndex.FILE_NAME));
+			if (!indexSettings.vectorSearch)
+				vectorIndex = null;
+			else if (vectorIndex == null || vectorIndex.getIndexVersion() != mainIndexVersion)
+				vectorIndex = NgramVectorIndex.load(getVectorsFile(), mainReader.maxDoc(), mainIndexVersion);
+			swapGeneration(new IndexGeneration(reader, searcher, idfTables, exactMatchDictionary, vectorIndex, DomainShards.getLeafDomains(reader)));
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	private File getFieldFile(String indexFolderName, TermField field, String suffix) {
+		if (field == TermField.NGRAM)
+			return new File(folder + "/" + indexFolderName + suffix);
+		else
+			return new File(folder + "/" + indexFolderName + "_" + field.getFieldName() + suffix);
+	}
+
+	private File getExactMatchFile() {
+		return new File(folder + "/" + MAIN_INDEX_FOLDER + EXACT_MATCH_FILE_SUFFIX);
+	}
+
+	private File getSuggestionsFile() {
+		return new File(folder + "/" + MAIN_INDEX_FOLDER + SUGGESTIONS_FILE_SUFFIX);
+	}
+
+	private File getVectorsFile() {
+		return new File(folder + "/" + MAIN_INDEX_FOLDER + VECTORS_FILE_SUFFIX);
+	}
+
+	/**
+	 * Computes the IDF tables and document norms of the main index and saves them next to the index, so they do not have to be computed when the index is
+	 * opened for searching.
+	 */
+	public void createMainIndexNorms() {
+		openIndexForSearching(false);
+		close();
+	}
+
+	/**
+	 * Computes the n-gram vectors of the main index and builds the nearest-neighbour graph over them, and saves them next to the index. Needed for vector
+	 * search, see {@link IndexSettings#vectorSearch}.
+	 */
+	public void createMainIndexVectors() {
+		openIndexForSearching(false);
+		IndexGeneration indexGeneration = acquire();
+		try {
+			IndexReader reader = indexGeneration.getReader();
+			NgramVectorIndex.build(reader, "TERM", indexGeneration.getIdfTable(), DomainShards.getVersion(reader)).save(getVectorsFile());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			release(indexGeneration);
+		}
+		close();
+	}
+
+	/**
+	 * Measures the size and search latency of every term field of the main index, see {@link IndexFieldReport}, and saves the report in the Usagi folder.
+	 */
+	public IndexFieldReport createMainIndexFieldReport() {
+		File indexFolder = new File(folder + "/" + MAIN_INDEX_FOLDER);
+		try (IndexReader reader = DomainShards.open(indexFolder)) {
+			IndexFieldReport report = IndexFieldReport.create(reader, indexFolder, analyzer);
+			report.save(new File(folder + "/" + FIELD_REPORT_FILE));
+			return report;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private synchronized void swapGeneration(IndexGeneration newGeneration) {
+		IndexGeneration oldGeneration = generation;
+		generation = newGeneration;
+		if (oldGeneration != null) {
+			oldGeneration.decRef();
+			filterBitSetCache.clear();
+			queryResultCache.clear();
+		}
+	}
+
+	/**
+	 * Gets the current version of the index, for use by one or more searches. Every call must be matched by a call to {@link #release(IndexGeneration)},
+	 * preferably in a finally block.
+	 * 
+	 * @return The current index generation, or null if the index is not open for searching
+	 */
+	public IndexGeneration acquire() {
+		while (true) {
+			IndexGeneration current = generation;
+			if (current == null)
+				return null;
+			if (current.tryIncRef())
+				return current;
+			// The generation was closed between reading and acquiring it, so a newer one must have been swapped in
+		}
+	}
+
+	public void release(IndexGeneration indexGeneration) {
+		if (indexGeneration != null)
+			indexGeneration.decRef();
+	}
+
 	public void close() {
 		try {
-			if (reader != null) {
-				reader.close();
-				reader = null;
+			if (generation != null) {
+				swapGeneration(null);
 				System.gc();
 			}
+			if (descendantIndex != null) {
+				descendantIndex.close();
+				descendantIndex = null;
+			}
 			if (writer != null) {
-				// writer.forceMerge(1);
+				if (indexSettings.maxSegmentCount > 0)
+					writer.forceMerge(indexSettings.maxSegmentCount);
 				writer.close();
 				writer = null;
 			}
+			if (shardsWriter != null) {
+				if (indexSettings.maxSegmentCount > 0)
+					shardsWriter.forceMerge(indexSettings.maxSegmentCount);
+				shardsWriter.close();
+				shardsWriter = null;
+			}
+			if (exactMatchDictionaryBuilder != null) {
+				exactMatchDictionaryBuilder.build().save(getExactMatchFile());
+				exactMatchDictionaryBuilder = null;
+			}
+			if (conceptSuggesterBuilder != null) {
+				conceptSuggesterBuilder.build().save(getSuggestionsFile());
+				conceptSuggesterBuilder = null;
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * Completes a prefix to concept names and synonyms in the main index, for type-ahead. Does not search the index, so it is fast enough to call on every key
+	 * stroke.
+	 * 
+	 * @return The suggestions, best first, or an empty list if the index was built without suggestions
+	 */
+	public List<String> suggest(String prefix, int count) {
+		ConceptSuggester suggester = conceptSuggester;
+		if (suggester == null)
+			return Collections.emptyList();
+		try {
+			return suggester.suggest(prefix, count);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	public int getTermCount() {
-		return reader.numDocs();
+		IndexGeneration indexGeneration = acquire();
+		try {
+			return indexGeneration.getReader().numDocs();
+		} finally {
+			release(indexGeneration);
+		}
+	}
+
+	/**
+	 * Warms up the index, so the first searches are as fast as later ones. The postings of all fields and the concept ID doc values are read once, and a sample
+	 * of index terms is searched with the default filters, which loads the filter bitsets, the stored terms and the concept database pages of the hits, and
+	 * lets the search code be compiled. Meant to be run on a background thread after the index has been opened.
+	 * 
+	 * @param progress
+	 *            Receives the progress as a percentage
+	 */
+	public void warmUp(IntConsumer progress) {
+		IndexGeneration indexGeneration = acquire();
+		if (indexGeneration == null)
+			return;
+		try {
+			IndexReader reader = indexGeneration.getReader();
+			List<AtomicReaderContext> leaves = reader.leaves();
+			DocsEnum docsEnum = null;
+			for (int i = 0; i < leaves.size(); i++) {
+				AtomicReader atomicReader = leaves.get(i).reader();
+				for (String field : atomicReader.fields()) {
+					TermsEnum termsEnum = atomicReader.terms(field).iterator(null);
+					while (termsEnum.next() != null) {
+						docsEnum = termsEnum.docs(null, docsEnum, DocsEnum.FLAG_NONE);
+						while (docsEnum.nextDoc() != DocIdSetIterator.NO_MORE_DOCS)
+							;
+					}
+				}
+				NumericDocValues conceptIdValues = atomicReader.getNumericDocValues("CONCEPT_ID");
+				if (conceptIdValues != null)
+					for (int doc = 0; doc < atomicReader.maxDoc(); doc++)
+						conceptIdValues.get(doc);
+				progress.accept((50 * (i + 1)) / leaves.size());
+			}
 
+			ConceptFilter conceptFilter = new ConceptFilter(filterBitSetCache, null, null, null, true, true);
+			Random random = new Random(0);
+			for (int i = 0; i < WARM_UP_SEARCHES && reader.maxDoc() > 0; i++) {
+				String term = reader.document(random.nextInt(reader.maxDoc()), TERM_FIELD).get("TERM");
+				if (term != null)
+					search(indexGeneration, null, createNgramSearchQuery(indexGeneration, term), null, conceptFilter, MAX_HITS, null, false);
+				progress.accept(50 + (50 * (i + 1)) / WARM_UP_SEARCHES);
+			}
+		} catch (Exception e) {
+			System.err.println("Error warming up index: " + e.getMessage());
+			e.printStackTrace();
+		} finally {
+			release(indexGeneration);
+		}
 	}
 
 	public List<ScoredConcept> search(String searchTerm, boolean useMlt, Collection<Integer> filterConceptIds, Vector<String> filterDomains, Vector<String> filterConceptClasses,
 									  Vector<String> filterVocabularies, boolean filterStandard, boolean includeSourceConcepts) {
+		return search(searchTerm, useMlt, filterConceptIds, filterDomains, filterConceptClasses, filterVocabularies, filterStandard, includeSourceConcepts, null,
+				null);
+	}
+
+	/**
+	 * Searches like {@link #search(String, boolean, Collection, Vector, Vector, Vector, boolean, boolean)}, but the search can be restricted to the descendants
+	 * of given concepts, and can be cancelled. The cancellation is checked while documents are collected and while the hits are resolved to concepts, so a
+	 * search that is no longer needed (for instance because the user has typed another character) stops almost immediately.
+	 * 
+	 * @param filterAncestorConceptIds
+	 *            The concepts to whose descendants (including the concepts themselves) the search should be restricted. Set to null if not restricting by
+	 *            ancestor
+	 * @param cancelled
+	 *            Returns true when the search should be abandoned. Set to null if the search cannot be cancelled
+	 * @return The results, or null if the search was cancelled
+	 */
+	public List<ScoredConcept> search(String searchTerm, boolean useMlt, Collection<Integer> filterConceptIds, Vector<String> filterDomains,
+			Vector<String> filterConceptClasses, Vector<String> filterVocabularies, boolean filterStandard, boolean includeSourceConcepts,
+			Collection<Integer> filterAncestorConceptIds, BooleanSupplier cancelled) {
 		List<ScoredConcept> results = new ArrayList<ScoredConcept>();
+		IndexGeneration indexGeneration = acquire();
+		if (indexGeneration == null)
+			return results;
 		try {
+			ConceptFilter conceptFilter = createConceptFilter(filterDomains, filterConceptClasses, filterVocabularies, filterStandard, includeSourceConcepts,
+					filterAncestorConceptIds);
+			QueryResultCache.Key key = QueryResultCache.createKey(indexGeneration, searchTerm, useMlt, filterConceptIds, conceptFilter, MAX_HITS);
+			List<ScoredConcept> cachedResults = queryResultCache.get(key);
+			if (cachedResults != null)
+				return cachedResults;
+
 			Query query;
 			if (useMlt) {
-				MoreLikeThis mlt = new MoreLikeThis(searcher.getIndexReader());
-				mlt.setMinTermFreq(1);
-				mlt.setMinDocFreq(1);
-				mlt.setMaxDocFreq(9999);
-				mlt.setMinWordLen(1);
-				mlt.setMaxWordLen(9999);
-				mlt.setMaxDocFreqPct(100);
-				mlt.setMaxNumTokensParsed(9999);
-				mlt.setMaxQueryTerms(9999);
-				mlt.setStopWords(null);
-				mlt.setFieldNames(new String[] { "TERM" });
-				mlt.setAnalyzer(analyzer);
-
-				query = mlt.like("TERM", new StringReader(searchTerm));
+				query = useVectorSearch(indexGeneration) ? null : createNgramSearchQuery(indexGeneration, searchTerm);
 			} else {
 				try {
 					QueryParser keywordsQueryParser = new QueryParser(Version.LUCENE_4_9, "TERM", analyzer);
@@ -306,92 +707,627 @@ public class UsagiSearchEngine {
 					return results;
 				}
 			}
+			results = search(indexGeneration, useMlt ? searchTerm : null, query, filterConceptIds, conceptFilter, MAX_HITS, cancelled, true);
+			queryResultCache.put(key, results);
+		} catch (SearchCancelledException e) {
+			return null;
+		} catch (Exception e) {
+			System.err.println(e.getMessage());
+			e.printStackTrace();
+		} finally {
+			release(indexGeneration);
+		}
 
-			BooleanQuery booleanQuery = new BooleanQuery();
-			booleanQuery.add(query, Occur.SHOULD);
-			booleanQuery.add(conceptQuery, Occur.MUST);
-
-			if (filterConceptIds != null && filterConceptIds.size() > 0) {
-				QueryParser conceptIdQueryParser = new QueryParser(Version.LUCENE_4_9, "CONCEPT_ID", new KeywordAnalyzer());
-				Query conceptIdQuery = conceptIdQueryParser.parse(StringUtilities.join(filterConceptIds, " OR "));
-				booleanQuery.add(conceptIdQuery, Occur.MUST);
-			}
+		return results;
+	}
 
-			if (filterDomains != null && filterDomains.size() != 0) {
-				BooleanQuery booleanSubQuery = new BooleanQuery();
-				for (String filterDomain : filterDomains) {
-					QueryParser domainQueryParser = new QueryParser(Version.LUCENE_4_9, "DOMAIN_ID", new KeywordAnalyzer());
-					Query domainQuery = domainQueryParser.parse("\"" + filterDomain + "\"");
-					booleanSubQuery.add(domainQuery, Occur.SHOULD);
-				}
-				booleanQuery.add(booleanSubQuery, Occur.MUST);
-			}
-			if (filterConceptClasses != null && filterConceptClasses.size() != 0) {
-				BooleanQuery booleanSubQuery = new BooleanQuery();
-				for (String filterConceptClass : filterConceptClasses) {
-					QueryParser conceptClassQueryParser = new QueryParser(Version.LUCENE_4_9, "CONCEPT_CLASS_ID", new KeywordAnalyzer());
-					Query conceptClassQuery = conceptClassQueryParser.parse("\"" + filterConceptClass + "\"");
-					booleanSubQuery.add(conceptClassQuery, Occur.SHOULD);
+	/**
+	 * Searches the best matching concepts for many source codes at once, for instance to create the initial mapping when importing source codes. The filters
+	 * and the index version are shared by all searches, and the searches are spread over a pool of threads.
+	 * 
+	 * @param sourceCodes
+	 *            The source codes to search. The source names are used as search terms.
+	 * @param settings
+	 *            The search settings
+	 * @param topK
+	 *            The maximum number of concepts to return per source code. Must be at least 1
+	 * @return For every source code, in the same order as the source codes, the list of best matching concepts
+	 */
+	public List<List<ScoredConcept>> searchBatch(List<SourceCode> sourceCodes, SearchSettings settings, int topK) {
+		if (topK < 1)
+			throw new IllegalArgumentException("The number of concepts to return must be at least 1: " + topK);
+		List<List<ScoredConcept>> results = new ArrayList<List<ScoredConcept>>(Collections.nCopies(sourceCodes.size(), (List<ScoredConcept>) null));
+		IndexGeneration indexGeneration = acquire();
+		if (indexGeneration == null)
+			throw new RuntimeException("Index not open for searching");
+		ForkJoinPool forkJoinPool = new ForkJoinPool(Math.max(1, settings.threadCount));
+		try {
+			ConceptFilter conceptFilter = createConceptFilter(settings.filterDomains, settings.filterConceptClasses, settings.filterVocabularies,
+					settings.filterStandard, settings.includeSourceConcepts, settings.filterAncestorConceptIds);
+			forkJoinPool.submit(() -> IntStream.range(0, sourceCodes.size()).parallel().forEach(i -> {
+				SourceCode sourceCode = sourceCodes.get(i);
+				Collection<Integer> filterConceptIds = settings.filterByAutoConceptIds ? sourceCode.sourceAutoAssignedConceptIds : null;
+				try {
+					// Source codes with the same name and filters, e.g. the same name in different source vocabularies, are only searched once:
+					QueryResultCache.Key key = QueryResultCache.createKey(indexGeneration, sourceCode.sourceName, true, filterConceptIds, conceptFilter, topK);
+					List<ScoredConcept> concepts = queryResultCache.get(key);
+					if (concepts == null) {
+						Query query = useVectorSearch(indexGeneration) ? null : createNgramSearchQuery(indexGeneration, sourceCode.sourceName);
+						concepts = search(indexGeneration, sourceCode.sourceName, query, filterConceptIds, conceptFilter, topK, null, false);
+						queryResultCache.put(key, concepts);
+					}
+					results.set(i, concepts);
+				} catch (Exception e) {
+					throw new RuntimeException(e);
 				}
-				booleanQuery.add(booleanSubQuery, Occur.MUST);
-			}
-			if (filterVocabularies != null && filterVocabularies.size() != 0) {
-				BooleanQuery booleanSubQuery = new BooleanQuery();
-				for (String filterVocabulary : filterVocabularies) {
-					QueryParser vocabularyQueryParser = new QueryParser(Version.LUCENE_4_9, "VOCABULARY_ID", new KeywordAnalyzer());
-					Query vocabularyQuery = vocabularyQueryParser.parse("\"" + filterVocabulary + "\"");
-					booleanSubQuery.add(vocabularyQuery, Occur.SHOULD);
+			})).get();
+		} catch (InterruptedException | ExecutionException | IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			forkJoinPool.shutdown();
+			release(indexGeneration);
+		}
+		return results;
+	}
+
+	private ConceptFilter createConceptFilter(Collection<String> filterDomains, Collection<String> filterConceptClasses, Collection<String> filterVocabularies,
+			boolean filterStandard, boolean includeSourceConcepts, Collection<Integer> filterAncestorConceptIds) throws IOException {
+		int[] descendantConceptIds = null;
+		if (filterAncestorConceptIds != null && filterAncestorConceptIds.size() > 0)
+			descendantConceptIds = getDescendantConceptIds(filterAncestorConceptIds);
+		return new ConceptFilter(filterBitSetCache, filterDomains, filterConceptClasses, filterVocabularies, filterStandard, includeSourceConcepts,
+				filterAncestorConceptIds, descendantConceptIds);
+	}
+
+	/**
+	 * @return The sorted IDs of the given concepts and all their descendants. Taken from the descendant index, or for databases built before there was one,
+	 *         by walking the parent-child relationships in the database
+	 */
+	public int[] getDescendantConceptIds(Collection<Integer> ancestorConceptIds) throws IOException {
+		ConceptDescendantIndex index = descendantIndex;
+		if (index != null)
+			return index.getDescendantsAndSelf(ancestorConceptIds);
+		Set<Integer> conceptIds = new TreeSet<Integer>();
+		ArrayDeque<Integer> queue = new ArrayDeque<Integer>(ancestorConceptIds);
+		while (!queue.isEmpty()) {
+			int conceptId = queue.poll();
+			if (conceptIds.add(conceptId))
+				for (ParentChildRelationShip relationship : Global.dbEngine.getParentChildRelationshipsByParentConceptId(conceptId))
+					queue.add(relationship.childConceptId);
+		}
+		int[] result = new int[conceptIds.size()];
+		int i = 0;
+		for (int conceptId : conceptIds)
+			result[i++] = conceptId;
+		return result;
+	}
+
+	private boolean useVectorSearch(IndexGeneration indexGeneration) {
+		return indexSettings.vectorSearch && indexGeneration.getVectorIndex() != null;
+	}
+
+	/**
+	 * @param searchTerm
+	 *            The search term to look up in the exact match dictionary, or null if the query should always be run
+	 * @param query
+	 *            The query, or null to search the n-gram vector index for the search term instead
+	 * @param cancelled
+	 *            Returns true when the search should be abandoned, or null if the search cannot be cancelled
+	 * @throws SearchCancelledException
+	 *             If the search was cancelled
+	 */
+	private List<ScoredConcept> search(IndexGeneration indexGeneration, String searchTerm, Query query, Collection<Integer> filterConceptIds,
+			ConceptFilter conceptFilter, int topK, BooleanSupplier cancelled, boolean parallelSegments) throws Exception {
+		if (searchTerm != null && indexGeneration.getExactMatchDictionary() != null) {
+			List<ScoredConcept> results = searchExactMatches(indexGeneration.getExactMatchDictionary(), searchTerm, filterConceptIds, conceptFilter, topK);
+			if (results != null)
+				return results;
+		}
+		ConceptCollapsingCollector collector;
+		if (query == null)
+			collector = searchVectors(indexGeneration, searchTerm, filterConceptIds, conceptFilter, topK, cancelled);
+		else {
+			if (searchTerm == null || indexSettings.searchFields.contains(TermField.NGRAM)) {
+				Query filteredQuery = filterQuery(query, filterConceptIds, conceptFilter);
+				List<AtomicReaderContext> leaves = indexGeneration.getLeaves(conceptFilter.getDomains());
+				if (parallelSegments && indexSettings.searchThreads > 1 && leaves.size() > 1)
+					collector = searchSegmentsInParallel(indexGeneration, leaves, filteredQuery, topK, cancelled);
+				else {
+					collector = SearchContext.get().getCollector(topK, cancelled);
+					searchLeaves(indexGeneration, leaves, filteredQuery, collector);
 				}
-				booleanQuery.add(booleanSubQuery, Occur.MUST);
+			} else
+				collector = SearchContext.get().getCollector(topK, cancelled);
+			if (searchTerm != null) {
+				searchOtherFields(indexGeneration, searchTerm, filterConceptIds, conceptFilter, collector, topK, cancelled);
+				if (indexSettings.fuzzyWordSearch)
+					searchCorrectedTerm(indexGeneration, searchTerm, filterConceptIds, conceptFilter, collector, topK, cancelled);
 			}
-			if (filterStandard) {
-				QueryParser standardConceptQueryParser = new QueryParser(Version.LUCENE_4_9, "STANDARD_CONCEPT", new KeywordAnalyzer());
-				Query standardQuery = standardConceptQueryParser.parse("S");
-				booleanQuery.add(standardQuery, Occur.MUST);
+		}
+		List<ScoredConcept> results = resolveHits(indexGeneration.getReader(), collector.getScoreDocs(), filterConceptIds, cancelled);
+		if (results.size() > topK)
+			results = new ArrayList<ScoredConcept>(results.subList(0, topK));
+		return results;
+	}
+
+	private static Query filterQuery(Query query, Collection<Integer> filterConceptIds, ConceptFilter conceptFilter) {
+		Query filteredQuery = query;
+		if (filterConceptIds != null && filterConceptIds.size() > 0)
+			filteredQuery = restrictToConceptIds(filteredQuery, filterConceptIds);
+		return new FilteredQuery(filteredQuery, conceptFilter);
+	}
+
+	/**
+	 * Restricts the query to the terms of the given concepts. The terms of the concepts match even if they share no tokens with the query, with score 0, so an
+	 * automatically assigned concept is still found when its terms do not resemble the source term at all.
+	 */
+	static Query restrictToConceptIds(Query query, Collection<Integer> conceptIds) {
+		ConstantScoreQuery conceptIdQuery = new ConstantScoreQuery(createConceptIdFilter(conceptIds));
+		conceptIdQuery.setBoost(0);
+		BooleanQuery restrictedQuery = new BooleanQuery();
+		restrictedQuery.add(query, Occur.SHOULD);
+		restrictedQuery.add(conceptIdQuery, Occur.MUST);
+		return restrictedQuery;
+	}
+
+	/**
+	 * Searches the search term in the term fields other than the n-gram field that are listed in {@link IndexSettings#searchFields}, and adds the concepts
+	 * found to the collector. Each field is scored with its own cosine, and a concept keeps the highest of its scores.
+	 */
+	private void searchOtherFields(IndexGeneration indexGeneration, String searchTerm, Collection<Integer> filterConceptIds, ConceptFilter conceptFilter,
+			ConceptCollapsingCollector collector, int topK, BooleanSupplier cancelled) throws IOException {
+		for (TermField field : indexSettings.searchFields) {
+			if (field == TermField.NGRAM || indexGeneration.getIdfTable(field) == null)
+				continue;
+			Query query = createFieldSearchQuery(indexGeneration, field, searchTerm);
+			ConceptCollapsingCollector fieldCollector = new ConceptCollapsingCollector(topK, cancelled);
+			searchLeaves(indexGeneration, indexGeneration.getLeaves(conceptFilter.getDomains()), filterQuery(query, filterConceptIds, conceptFilter),
+					fieldCollector);
+			collector.addAll(fieldCollector);
+		}
+	}
+
+	/**
+	 * Searches the search term with its misspelled words corrected, see {@link WordCorrector}, and adds the concepts found to the collector of the search term
+	 * as typed. The scores of the corrected term are lowered by the share of letters that were corrected, so its concepts only come first when they match the
+	 * corrected term clearly better than the other concepts match the search term as typed.
+	 */
+	private void searchCorrectedTerm(IndexGeneration indexGeneration, String searchTerm, Collection<Integer> filterConceptIds, ConceptFilter conceptFilter,
+			ConceptCollapsingCollector collector, int topK, BooleanSupplier cancelled) throws IOException {
+		WordCorrector.Correction correction = WordCorrector.correct(indexGeneration.getReader(), analyzer, searchTerm);
+		if (correction == null)
+			return;
+		Query query = filterQuery(createNgramSearchQuery(indexGeneration, correction.term), filterConceptIds, conceptFilter);
+		ConceptCollapsingCollector correctedCollector = new ConceptCollapsingCollector(topK, cancelled);
+		searchLeaves(indexGeneration, indexGeneration.getLeaves(conceptFilter.getDomains()), query, correctedCollector);
+		collector.addAll(correctedCollector, correction.getScoreFactor());
+	}
+
+	/**
+	 * Searches the given segments of the index, for instance only the segments holding the domains the search is restricted to, see
+	 * {@link IndexGeneration#getLeaves(Set)}. The query is weighted over the whole index, so the scores are the same as when searching all segments.
+	 */
+	private static void searchLeaves(IndexGeneration indexGeneration, List<AtomicReaderContext> leaves, Query query, Collector collector) throws IOException {
+		IndexSearcher searcher = indexGeneration.getSearcher();
+		if (leaves.size() == indexGeneration.getReader().leaves().size())
+			searcher.search(query, collector);
+		else
+			scoreLeaves(searcher.createNormalizedWeight(query), leaves, collector);
+	}
+
+	private static void scoreLeaves(Weight weight, List<AtomicReaderContext> leaves, Collector collector) throws IOException {
+		for (AtomicReaderContext context : leaves) {
+			collector.setNextReader(context);
+			BulkScorer scorer = weight.bulkScorer(context, !collector.acceptsDocsOutOfOrder(), context.reader().getLiveDocs());
+			if (scorer != null)
+				scorer.score(collector);
+		}
+	}
+
+	/**
+	 * Searches the given segments of the index in parallel. The segments are divided into one slice per search thread, balanced by number of documents, and
+	 * each slice is collected by its own collector. The collectors are then merged, which gives the same concepts as collecting all segments with one
+	 * collector.
+	 */
+	private ConceptCollapsingCollector searchSegmentsInParallel(IndexGeneration indexGeneration, List<AtomicReaderContext> leaves, Query query, int topK,
+			BooleanSupplier cancelled) throws Exception {
+		IndexSearcher searcher = indexGeneration.getSearcher();
+		Weight weight = searcher.createNormalizedWeight(query);
+		List<List<AtomicReaderContext>> slices = createSlices(leaves, indexSettings.searchThreads);
+		List<Future<ConceptCollapsingCollector>> futures = new ArrayList<Future<ConceptCollapsingCollector>>(slices.size());
+		for (List<AtomicReaderContext> slice : slices)
+			futures.add(getSearchExecutor().submit(() -> {
+				ConceptCollapsingCollector collector = new ConceptCollapsingCollector(topK, cancelled);
+				scoreLeaves(weight, slice, collector);
+				return collector;
+			}));
+		ConceptCollapsingCollector collector = SearchContext.get().getCollector(topK, cancelled);
+		try {
+			for (Future<ConceptCollapsingCollector> future : futures)
+				collector.addAll(future.get());
+		} catch (ExecutionException e) {
+			for (Future<ConceptCollapsingCollector> future : futures)
+				future.cancel(false);
+			if (e.getCause() instanceof Exception)
+				throw (Exception) e.getCause();
+			throw e;
+		}
+		return collector;
+	}
+
+	/**
+	 * Searches the n-gram vector index for the terms nearest to the search term, and collapses them to concepts. The graph is walked past documents that do not
+	 * pass the filters. When the filters leave fewer documents than the graph search would visit, for instance when restricting to the automatically assigned
+	 * concepts, the documents passing the filters are scanned instead.
+	 */
+	private ConceptCollapsingCollector searchVectors(IndexGeneration indexGeneration, String searchTerm, Collection<Integer> filterConceptIds,
+			ConceptFilter conceptFilter, int topK, BooleanSupplier cancelled) throws IOException {
+		ConceptCollapsingCollector collector = SearchContext.get().getCollector(topK, cancelled);
+		NgramVectorIndex vectorIndex = indexGeneration.getVectorIndex();
+		BytesRef[] tokens = getSourceTermTokens(TermField.NGRAM, searchTerm);
+		float[] queryVector;
+		if (tokens == null)
+			queryVector = NgramVectorIndex.createQueryVector(searchTerm, analyzer, indexGeneration.getIdfTable());
+		else
+			queryVector = NgramVectorIndex.createQueryVector(tokens, indexGeneration.getIdfTable());
+		if (queryVector == null) {
+			if (filterConceptIds == null || filterConceptIds.size() == 0)
+				return collector;
+			// The concepts of the concept ID filter are still found, with score 0:
+			queryVector = new float[NgramVectorIndex.DIMENSIONS];
+		}
+		int beamWidth = Math.max(indexSettings.vectorBeamWidth, topK);
+
+		// Only the documents of the main index have vectors. Documents of the source term index come after them:
+		List<AtomicReaderContext> leaves = new ArrayList<AtomicReaderContext>();
+		for (AtomicReaderContext leaf : indexGeneration.getReader().leaves())
+			if (leaf.docBase < vectorIndex.size())
+				leaves.add(leaf);
+		// Segments without the domains of the filter get no bits, so they accept no documents without being filtered:
+		Set<AtomicReaderContext> domainLeaves = new HashSet<AtomicReaderContext>(indexGeneration.getLeaves(conceptFilter.getDomains()));
+		Bits[] leafBits = new Bits[leaves.size()];
+		int acceptedCount = 0;
+		for (int i = 0; i < leafBits.length; i++) {
+			AtomicReaderContext leaf = leaves.get(i);
+			if (!domainLeaves.contains(leaf))
+				continue;
+			DocIdSet docIdSet = conceptFilter.getDocIdSet(leaf, leaf.reader().getLiveDocs());
+			if (docIdSet instanceof FixedBitSet) {
+				leafBits[i] = (FixedBitSet) docIdSet;
+				acceptedCount += ((FixedBitSet) docIdSet).cardinality();
+			} else {
+				FixedBitSet bitSet = new FixedBitSet(leaf.reader().maxDoc());
+				if (docIdSet != null && docIdSet.iterator() != null)
+					bitSet.or(docIdSet.iterator());
+				leafBits[i] = bitSet;
+				acceptedCount += bitSet.cardinality();
 			}
-			if (!includeSourceConcepts) {
-				QueryParser termTypeQueryParser = new QueryParser(Version.LUCENE_4_9, "TERM_TYPE", new KeywordAnalyzer());
-				Query termTypeQuery = termTypeQueryParser.parse(CONCEPT_TERM);
-				booleanQuery.add(termTypeQuery, Occur.MUST);
+		}
+
+		ScoreDoc[] scoreDocs = null;
+		if (filterConceptIds == null || filterConceptIds.size() == 0) {
+			if (acceptedCount > beamWidth)
+				scoreDocs = vectorIndex.search(queryVector, beamWidth, new LeafBits(leaves, leafBits), acceptedCount, SearchContext.get().getGraphSearchState());
+		} else
+			acceptedCount = Integer.MAX_VALUE;
+		if (scoreDocs == null) {
+			int[] docs = collectAcceptedDocs(leaves, leafBits, filterConceptIds, acceptedCount);
+			scoreDocs = vectorIndex.searchExact(queryVector, beamWidth, docs, docs.length);
+		}
+		checkCancelled(cancelled);
+
+		Hit[] hits = new Hit[scoreDocs.length];
+		for (int i = 0; i < scoreDocs.length; i++)
+			hits[i] = new Hit(scoreDocs[i]);
+		readConceptIds(indexGeneration.getReader(), hits);
+		for (Hit hit : hits)
+			collector.add(hit.conceptId, hit.score, hit.doc);
+		return collector;
+	}
+
+	/**
+	 * @return The top-level numbers of the documents passing the filters
+	 */
+	private static int[] collectAcceptedDocs(List<AtomicReaderContext> leaves, Bits[] leafBits, Collection<Integer> filterConceptIds, int acceptedCount)
+			throws IOException {
+		Filter conceptIdFilter = filterConceptIds == null || filterConceptIds.size() == 0 ? null : createConceptIdFilter(filterConceptIds);
+		int[] docs = new int[conceptIdFilter == null ? acceptedCount : 16];
+		int docCount = 0;
+		for (int i = 0; i < leaves.size(); i++) {
+			AtomicReaderContext leaf = leaves.get(i);
+			if (leafBits[i] == null)
+				continue;
+			DocIdSetIterator iterator;
+			if (conceptIdFilter == null)
+				iterator = ((FixedBitSet) leafBits[i]).iterator();
+			else {
+				DocIdSet docIdSet = conceptIdFilter.getDocIdSet(leaf, leaf.reader().getLiveDocs());
+				iterator = docIdSet == null ? null : docIdSet.iterator();
 			}
-			TopDocs topDocs = searcher.search(booleanQuery, 100);
+			if (iterator == null)
+				continue;
+			int doc;
+			while ((doc = iterator.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS)
+				if (leafBits[i].get(doc)) {
+					docs = ArrayUtil.grow(docs, docCount + 1);
+					docs[docCount++] = leaf.docBase + doc;
+				}
+		}
+		return Arrays.copyOf(docs, docCount);
+	}
 
-			recomputeScores(topDocs.scoreDocs, query);
-			for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
-				Document document = reader.document(scoreDoc.doc);
-				int conceptId = Integer.parseInt(document.get("CONCEPT_ID"));
-				Concept targetConcept = Global.dbEngine.getConcept(conceptId);
-				String term = document.get("TERM");
-				// If matchscore = 0 but it was the one concept that was automatically selected, still allow it:
-				if (scoreDoc.score > 0 || (filterConceptIds != null && filterConceptIds.size() == 1 && filterConceptIds.contains(targetConcept.conceptId)))
-					results.add(new ScoredConcept(scoreDoc.score, term, targetConcept));
+	/**
+	 * The filter bits of the segments, addressed by top-level document number. Segments without bits accept no documents.
+	 */
+	private static class LeafBits implements Bits {
+		private int[]	docStarts;
+		private Bits[]	leafBits;
+		private int		length;
+
+		public LeafBits(List<AtomicReaderContext> leaves, Bits[] leafBits) {
+			this.leafBits = leafBits;
+			docStarts = new int[leaves.size()];
+			for (int i = 0; i < docStarts.length; i++)
+				docStarts[i] = leaves.get(i).docBase;
+			AtomicReaderContext lastLeaf = leaves.get(leaves.size() - 1);
+			length = lastLeaf.docBase + lastLeaf.reader().maxDoc();
+		}
+
+		@Override
+		public boolean get(int doc) {
+			int leaf = ReaderUtil.subIndex(doc, docStarts);
+			return leafBits[leaf] != null && leafBits[leaf].get(doc - docStarts[leaf]);
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+	}
+
+	private static List<List<AtomicReaderContext>> createSlices(List<AtomicReaderContext> leaves, int sliceCount) {
+		List<AtomicReaderContext> sortedLeaves = new ArrayList<AtomicReaderContext>(leaves);
+		Collections.sort(sortedLeaves, (a, b) -> Integer.compare(b.reader().maxDoc(), a.reader().maxDoc()));
+		List<List<AtomicReaderContext>> slices = new ArrayList<List<AtomicReaderContext>>();
+		long[] sliceSizes = new long[Math.min(sliceCount, leaves.size())];
+		for (int i = 0; i < sliceSizes.length; i++)
+			slices.add(new ArrayList<AtomicReaderContext>());
+		for (AtomicReaderContext leaf : sortedLeaves) {
+			int smallest = 0;
+			for (int i = 1; i < sliceSizes.length; i++)
+				if (sliceSizes[i] < sliceSizes[smallest])
+					smallest = i;
+			slices.get(smallest).add(leaf);
+			sliceSizes[smallest] += leaf.reader().maxDoc();
+		}
+		// Segments are collected in document order within a slice:
+		for (List<AtomicReaderContext> slice : slices)
+			Collections.sort(slice, (a, b) -> Integer.compare(a.docBase, b.docBase));
+		return slices;
+	}
+
+	private synchronized ExecutorService getSearchExecutor() {
+		if (searchExecutor == null)
+			searchExecutor = Executors.newCachedThreadPool(runnable -> {
+				Thread thread = new Thread(runnable, "Segment search");
+				thread.setDaemon(true);
+				return thread;
+			});
+		return searchExecutor;
+	}
+
+	/**
+	 * Creates a filter restricting a search to the given concept IDs. The filter seeks each concept ID directly in the CONCEPT_ID terms of each segment, so
+	 * there is no query string to build and parse, and no boolean query with one clause per concept ID, even when an ATC code expands to thousands of IDs.
+	 */
+	public static Filter createConceptIdFilter(Collection<Integer> conceptIds) {
+		List<BytesRef> terms = new ArrayList<BytesRef>(conceptIds.size());
+		for (int conceptId : conceptIds)
+			terms.add(new BytesRef(Integer.toString(conceptId)));
+		return new TermsFilter("CONCEPT_ID", terms);
+	}
+
+	/**
+	 * Looks up the search term in the exact match dictionary. Terms that are identical after normalization would get the maximum score from the query anyway,
+	 * so when there are enough exact matches to fill the results, the query does not need to be run.
+	 * 
+	 * @return The exact matches with score 1, or null if there are fewer than topK exact matches passing the filters
+	 */
+	private List<ScoredConcept> searchExactMatches(ExactMatchDictionary exactMatchDictionary, String searchTerm, Collection<Integer> filterConceptIds,
+			ConceptFilter conceptFilter, int topK) throws IOException {
+		List<ExactMatchDictionary.Match> matches = exactMatchDictionary.lookup(searchTerm);
+		if (matches.size() < topK)
+			return null;
+		List<Integer> conceptIds = new ArrayList<Integer>(matches.size());
+		for (ExactMatchDictionary.Match match : matches)
+			conceptIds.add(match.conceptId);
+		Map<Integer, Concept> conceptIdToConcept = Global.dbEngine.getConcepts(conceptIds);
+
+		String normalizedSearchTerm = ExactMatchDictionary.normalize(searchTerm);
+		List<ScoredConcept> conceptNameMatches = new ArrayList<ScoredConcept>();
+		List<ScoredConcept> synonymMatches = new ArrayList<ScoredConcept>();
+		Set<Integer> seenConceptIds = new HashSet<Integer>();
+		for (ExactMatchDictionary.Match match : matches) {
+			Concept concept = conceptIdToConcept.get(match.conceptId);
+			if (concept == null || !conceptFilter.accepts(concept, match.termType))
+				continue;
+			if (filterConceptIds != null && filterConceptIds.size() > 0 && !filterConceptIds.contains(match.conceptId))
+				continue;
+			if (!seenConceptIds.add(match.conceptId))
+				continue;
+			// As in reorderTies, terms equal to the concept name come first:
+			if (ExactMatchDictionary.normalize(concept.conceptName).equals(normalizedSearchTerm))
+				conceptNameMatches.add(new ScoredConcept(1f, concept.conceptName, concept));
+			else
+				synonymMatches.add(new ScoredConcept(1f, match.term, concept));
+		}
+		if (conceptNameMatches.size() + synonymMatches.size() < topK)
+			return null;
+		List<ScoredConcept> results = new ArrayList<ScoredConcept>(topK);
+		results.addAll(conceptNameMatches.subList(0, Math.min(topK, conceptNameMatches.size())));
+		results.addAll(synonymMatches.subList(0, topK - results.size()));
+		return results;
+	}
+
+	/**
+	 * Creates a query containing all distinct n-grams of the search term that occur in the index. The n-grams are looked up in the IDF table, so no term
+	 * dictionary lookups are needed to create the query.
+	 */
+	static BooleanQuery createNgramQuery(IdfTable idfTable, Analyzer analyzer, String searchTerm) throws IOException {
+		return createFieldQuery(TermField.NGRAM, idfTable, analyzer, searchTerm);
+	}
+
+	/**
+	 * Creates a query containing all distinct tokens of the search term in the given term field that occur in the index, like
+	 * {@link #createNgramQuery(IdfTable, Analyzer, String)}.
+	 * 
+	 * @param idfTable
+	 *            The IDF table of the field
+	 */
+	static BooleanQuery createFieldQuery(TermField field, IdfTable idfTable, Analyzer analyzer, String searchTerm) throws IOException {
+		// The tokens are deduplicated in the reusable hash of the search context, and only the distinct tokens found in the index are copied into terms:
+		SearchContext searchContext = SearchContext.get();
+		BytesRefHash tokens = searchContext.getNgrams();
+		BytesRef scratch = searchContext.getScratch();
+		BooleanQuery query = new BooleanQuery();
+		try (TokenStream tokenStream = analyzer.tokenStream(field.getFieldName(), searchTerm)) {
+			CharTermAttribute charTermAttribute = tokenStream.addAttribute(CharTermAttribute.class);
+			tokenStream.reset();
+			while (tokenStream.incrementToken()) {
+				UnicodeUtil.UTF16toUTF8(charTermAttribute.buffer(), 0, charTermAttribute.length(), scratch);
+				if (tokens.add(scratch) >= 0 && idfTable.docFreq(scratch) > 0)
+					query.add(new TermQuery(new Term(field.getFieldName(), BytesRef.deepCopyOf(scratch))), Occur.SHOULD);
 			}
-			reorderTies(results);
-			removeDuplicateConcepts(results);
-		} catch (Exception e) {
-			System.err.println(e.getMessage());
-			e.printStackTrace();
+			tokenStream.end();
 		}
+		return query;
+	}
 
+	/**
+	 * Creates a query containing the given distinct tokens that occur in the index, like {@link #createFieldQuery(TermField, IdfTable, Analyzer, String)} but
+	 * without analyzing a search term.
+	 */
+	static BooleanQuery createFieldQuery(TermField field, IdfTable idfTable, BytesRef[] tokens) {
+		BooleanQuery query = new BooleanQuery();
+		for (BytesRef token : tokens)
+			if (idfTable.docFreq(token) > 0)
+				query.add(new TermQuery(new Term(field.getFieldName(), token)), Occur.SHOULD);
+		return query;
+	}
+
+	/**
+	 * @return The analyzed tokens of the term in the field if it is one of the source terms added by the last call to createDerivedIndex, otherwise null
+	 */
+	private BytesRef[] getSourceTermTokens(TermField field, String term) {
+		SourceTermTokens tokens = sourceTermTokens.get(field);
+		return tokens == null ? null : tokens.getTokens(term);
+	}
+
+	private Query createNgramSearchQuery(IndexGeneration indexGeneration, String searchTerm) throws IOException {
+		return createFieldSearchQuery(indexGeneration, TermField.NGRAM, searchTerm);
+	}
+
+	private Query createFieldSearchQuery(IndexGeneration indexGeneration, TermField field, String searchTerm) throws IOException {
+		BytesRef[] tokens = getSourceTermTokens(field, searchTerm);
+		BooleanQuery query;
+		if (tokens == null)
+			query = createFieldQuery(field, indexGeneration.getIdfTable(field), analyzer, searchTerm);
+		else
+			query = createFieldQuery(field, indexGeneration.getIdfTable(field), tokens);
+		if (maxScorePruning)
+			return new MaxScoreQuery(query, indexGeneration.getIdfTable(field));
+		else
+			return query;
+	}
+
+	/**
+	 * Turns the top documents into scored concepts. The concept IDs of all hits are read column-wise from the CONCEPT_ID doc values, and the concepts are
+	 * fetched from the database in one go. The stored TERM is only loaded for hits that are returned, and for hits with tied scores (needed to order the ties).
+	 */
+	private List<ScoredConcept> resolveHits(IndexReader reader, ScoreDoc[] scoreDocs, Collection<Integer> filterConceptIds, BooleanSupplier cancelled)
+			throws IOException {
+		Hit[] hits = new Hit[scoreDocs.length];
+		for (int i = 0; i < scoreDocs.length; i++)
+			hits[i] = new Hit(scoreDocs[i]);
+		readConceptIds(reader, hits);
+
+		List<Integer> conceptIds = new ArrayList<Integer>(hits.length);
+		for (Hit hit : hits)
+			conceptIds.add(hit.conceptId);
+		checkCancelled(cancelled);
+		Map<Integer, Concept> conceptIdToConcept = Global.dbEngine.getConcepts(conceptIds);
+		checkCancelled(cancelled);
+
+		List<Hit> keptHits = new ArrayList<Hit>(hits.length);
+		for (Hit hit : hits) {
+			hit.concept = conceptIdToConcept.get(hit.conceptId);
+			if (hit.concept == null)
+				continue;
+			// If matchscore = 0 but it was the one concept that was automatically selected, still allow it:
+			if (hit.score > 0 || (filterConceptIds != null && filterConceptIds.size() == 1 && filterConceptIds.contains(hit.conceptId)))
+				keptHits.add(hit);
+		}
+
+		List<Hit> tiedHits = new ArrayList<Hit>();
+		for (int i = 0; i < keptHits.size(); i++)
+			if ((i > 0 && keptHits.get(i - 1).score == keptHits.get(i).score)
+					|| (i < keptHits.size() - 1 && keptHits.get(i + 1).score == keptHits.get(i).score))
+				tiedHits.add(keptHits.get(i));
+		loadTerms(reader, tiedHits);
+		reorderTies(keptHits);
+		checkCancelled(cancelled);
+		loadTerms(reader, keptHits);
+
+		List<ScoredConcept> results = new ArrayList<ScoredConcept>(keptHits.size());
+		for (Hit hit : keptHits)
+			results.add(new ScoredConcept(hit.score, hit.term, hit.concept));
 		return results;
 	}
 
-	private void removeDuplicateConcepts(List<ScoredConcept> results) {
-		Set<Integer> seenConceptIds = new HashSet<Integer>();
-		Iterator<ScoredConcept> iterator = results.iterator();
-		while (iterator.hasNext()) {
-			ScoredConcept scoredConcept = iterator.next();
-			if (!seenConceptIds.add(scoredConcept.concept.conceptId))
-				iterator.remove();
+	static void checkCancelled(BooleanSupplier cancelled) {
+		if (cancelled != null && cancelled.getAsBoolean())
+			throw new SearchCancelledException();
+	}
+
+	/**
+	 * Reads the concept IDs of the hits from the CONCEPT_ID doc values, visiting the hits in document order. Indexes created before the doc values were added
+	 * fall back to loading only the stored CONCEPT_ID field.
+	 */
+	private void readConceptIds(IndexReader reader, Hit[] hits) throws IOException {
+		Hit[] hitsInDocOrder = hits.clone();
+		Arrays.sort(hitsInDocOrder, HIT_DOC_ORDER);
+		List<AtomicReaderContext> leaves = reader.leaves();
+		AtomicReaderContext leaf = null;
+		NumericDocValues conceptIdValues = null;
+		for (Hit hit : hitsInDocOrder) {
+			if (leaf == null || hit.doc >= leaf.docBase + leaf.reader().maxDoc()) {
+				leaf = leaves.get(ReaderUtil.subIndex(hit.doc, leaves));
+				conceptIdValues = leaf.reader().getNumericDocValues("CONCEPT_ID");
+			}
+			if (conceptIdValues == null)
+				hit.conceptId = Integer.parseInt(reader.document(hit.doc, CONCEPT_ID_FIELD).get("CONCEPT_ID"));
+			else
+				hit.conceptId = (int) conceptIdValues.get(hit.doc - leaf.docBase);
 		}
 	}
 
-	private void reorderTies(List<ScoredConcept> scoredConcepts) {
-		Collections.sort(scoredConcepts, new Comparator<ScoredConcept>() {
+	/**
+	 * Loads the stored TERM of the hits that do not have it yet, in document order.
+	 */
+	private void loadTerms(IndexReader reader, List<Hit> hits) throws IOException {
+		List<Hit> hitsInDocOrder = new ArrayList<Hit>(hits);
+		Collections.sort(hitsInDocOrder, HIT_DOC_ORDER);
+		for (Hit hit : hitsInDocOrder)
+			if (hit.term == null)
+				hit.term = reader.document(hit.doc, TERM_FIELD).get("TERM");
+	}
+
+	private void reorderTies(List<Hit> hits) {
+		Collections.sort(hits, new Comparator<Hit>() {
 
 			@Override
-			public int compare(ScoredConcept arg0, ScoredConcept arg1) {
-				int result = -Float.compare(arg0.matchScore, arg1.matchScore);
+			public int compare(Hit arg0, Hit arg1) {
+				int result = -Float.compare(arg0.score, arg1.score);
 				if (result == 0) {
 					if (arg0.term.toLowerCase().equals(arg0.concept.conceptName.toLowerCase()))
 						return -1;
@@ -403,41 +1339,6 @@ public class UsagiSearchEngine {
 		});
 	}
 
-	/**
-	 * Lucene's matching score does some weird things: it is not normalized (the value can be greater than 1), and not all tokens are included in the
-	 * computation. For that reason, we're recomputing the matching score as plain TF*IDF cosine matching here.
-	 *
-	 * @param scoreDocs
-	 *            The array of documents scored by Lucene
-	 * @param query
-	 *            The query used for retrieval
-	 */
-	private void recomputeScores(ScoreDoc[] scoreDocs, Query query) {
-		try {
-			Term2Tfidf searchTerm = null;
-			if (query instanceof BooleanQuery)
-				searchTerm = new Term2Tfidf((BooleanQuery) query);
-			else if (query instanceof TermQuery)
-				searchTerm = new Term2Tfidf((TermQuery) query);
-
-			if (searchTerm != null && !searchTerm.isInvalid()) {
-				for (ScoreDoc scoreDoc : scoreDocs) {
-					Term2Tfidf hit = new Term2Tfidf(scoreDoc.doc, "TERM");
-					scoreDoc.score = (float) searchTerm.cosineSimilarity(hit);
-				}
-				Arrays.sort(scoreDocs, new Comparator<ScoreDoc>() {
-
-					@Override
-					public int compare(ScoreDoc arg0, ScoreDoc arg1) {
-						return -Float.compare(arg0.score, arg1.score);
-					}
-				});
-			}
-		} catch (Exception e) {
-			System.err.println(e.getMessage());
-		}
-	}
-
 	public List<String> searchConceptSynonymsByConceptId(int conceptId) {
 		return searchTermsByConceptId(conceptId, CONCEPT_TERM);
 	}
@@ -448,6 +1349,9 @@ public class UsagiSearchEngine {
 
 	private List<String> searchTermsByConceptId(int conceptId, String termType) {
 		List<String> result = new ArrayList<>();
+		IndexGeneration indexGeneration = acquire();
+		if (indexGeneration == null)
+			return result;
 		try {
 			QueryParser keywordsQueryParser = new QueryParser(Version.LUCENE_4_9, "CONCEPT_ID", new KeywordAnalyzer());
 			Query conceptIdQuery = keywordsQueryParser.parse(String.valueOf(conceptId));
@@ -458,144 +1362,78 @@ public class UsagiSearchEngine {
 			Query termTypeQuery = termTypeQueryParser.parse(termType);
 			booleanQuery.add(termTypeQuery, Occur.MUST);
 
-			TopDocs topDocs = searcher.search(booleanQuery, 100);
+			TopDocs topDocs = indexGeneration.getSearcher().search(booleanQuery, 100);
 			for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
-				Document document = reader.document(scoreDoc.doc);
+				Document document = indexGeneration.getReader().document(scoreDoc.doc, TERM_FIELD);
 				String term = document.get("TERM");
 				result.add(term);
 			}
 		} catch (Exception e) {
 			System.err.println(e.getMessage());
 			e.printStackTrace();
+		} finally {
+			release(indexGeneration);
 		}
 		return result;
 	}
 
-	public static class ScoredConcept {
-		public float	matchScore;
+	private static class Hit {
+		public int		doc;
+		public float	score;
+		public int		conceptId;
 		public Concept	concept;
 		public String	term;
 
-		public ScoredConcept(float matchScore, String term, Concept concept) {
-			this.matchScore = matchScore;
-			this.term = term;
-			this.concept = concept;
+		public Hit(ScoreDoc scoreDoc) {
+			this.doc = scoreDoc.doc;
+			this.score = scoreDoc.score;
 		}
 	}
 
-	private class Term2Tfidf {
-		public TermTfidfPair[]	pairs;
-		public double			l1;
-		public boolean			invalid	= false;
+	private static Comparator<Hit> HIT_DOC_ORDER = new Comparator<Hit>() {
 
-		public Term2Tfidf(int docId, String field) throws IOException {
-			Terms vector = reader.getTermVector(docId, field);
-
-			pairs = new TermTfidfPair[(int) vector.size()];
-			l1 = 0;
-
-			TermsEnum termsEnum = vector.iterator(null);
-			int i = 0;
-			BytesRef text;
-			while ((text = termsEnum.next()) != null) {
-				//double tfidf = termsEnum.totalTermFreq() * idf(reader.docFreq(new Term(field, termsEnum.term())), numDocs);
-				double tfidf = idf(reader.docFreq(new Term(field, termsEnum.term())), numDocs);
-				pairs[i++] = new TermTfidfPair(BytesRef.deepCopyOf(text), tfidf);
-				l1 += sqr(tfidf);
-			}
-
-			l1 = Math.sqrt(l1);
-			sort();
-		}
-
-		public boolean isInvalid() {
-			return invalid;
-		}
-
-		public Term2Tfidf(BooleanQuery query) throws IOException {
-			pairs = new TermTfidfPair[query.clauses().size()];
-			l1 = 0;
-			int i = 0;
-			for (BooleanClause clause : query.clauses()) {
-				if (!(clause.getQuery() instanceof TermQuery))
-					invalid = true;
-				else {
-					TermQuery q = (TermQuery) clause.getQuery();
-					double tfidf = idf(reader.docFreq(q.getTerm()), numDocs);
-					pairs[i++] = new TermTfidfPair(q.getTerm().bytes(), tfidf);
-					l1 += sqr(tfidf);
-				}
-			}
-			if (!invalid) {
-				l1 = Math.sqrt(l1);
-				sort();
-			}
-		}
-
-		public Term2Tfidf(TermQuery query) throws IOException {
-			pairs = new TermTfidfPair[1];
-			l1 = 0;
-			int i = 0;
-			double tfidf = idf(reader.docFreq(query.getTerm()), numDocs);
-			pairs[i++] = new TermTfidfPair(query.getTerm().bytes(), tfidf);
-			l1 += sqr(tfidf);
-			l1 = Math.sqrt(l1);
-			sort();
-		}
-
-		public void sort() {
-			Arrays.sort(pairs, new Comparator<TermTfidfPair>() {
-
-				@Override
-				public int compare(TermTfidfPair o1, TermTfidfPair o2) {
-					return o1.term.compareTo(o2.term);
-				}
-			});
+		@Override
+		public int compare(Hit arg0, Hit arg1) {
+			return Integer.compare(arg0.doc, arg1.doc);
 		}
+	};
 
-		public double cosineSimilarity(Term2Tfidf other) {
-			int cursor1 = 0;
-			int cursor2 = 0;
-			double dotProduct = 0;
-			while (cursor1 < pairs.length && cursor2 < other.pairs.length) {
-				int compare = pairs[cursor1].term.compareTo(other.pairs[cursor2].term);
-				if (compare == 0) {
-					dotProduct += pairs[cursor1].tfidf * other.pairs[cursor2].tfidf;
-					cursor1++;
-					cursor2++;
-				} else if (compare < 0) {
-					cursor1++;
-				} else {
-					cursor2++;
-				}
-			}
-			if (l1 == 0 || other.l1 == 0)
-				return 0;
-			else
-				return dotProduct / (l1 * other.l1);
-		}
-	}
+	public static class ScoredConcept {
+		public float	matchScore;
+		public Concept	concept;
+		public String	term;
 
-	private class TermTfidfPair {
-		public TermTfidfPair(BytesRef term, Double tfidf) {
+		public ScoredConcept(float matchScore, String term, Concept concept) {
+			this.matchScore = matchScore;
 			this.term = term;
-			this.tfidf = tfidf;
+			this.concept = concept;
 		}
+	}
 
-		public BytesRef	term;
-		public double	tfidf;
+	/**
+	 * Specify whether n-gram queries are evaluated with max-score pruning (the default). Pruning returns the same results, but skips documents that cannot
+	 * enter the top results.
+	 */
+	public void setMaxScorePruning(boolean maxScorePruning) {
+		this.maxScorePruning = maxScorePruning;
 	}
 
-	private double sqr(double x) {
-		return x * x;
+	/**
+	 * @return The cache of search results, for instance to report its hit and miss counts
+	 */
+	public QueryResultCache getQueryResultCache() {
+		return queryResultCache;
 	}
 
-	private double idf(int docFreq, int d) {
-		return Math.log(d / (double) docFreq);
+	/**
+	 * Thrown inside the search engine to abandon a search that has been cancelled.
+	 */
+	static class SearchCancelledException extends RuntimeException {
+		private static final long serialVersionUID = 4715396428218417602L;
 	}
 
 	public boolean isOpenForSearching() {
-		return (reader != null);
+		return (generation != null);
 	}
 }
 
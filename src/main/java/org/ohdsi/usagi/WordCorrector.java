@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi;
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.search.FuzzyTermsEnum;
+import org.apache.lucene.util.AttributeSource;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Corrects misspelled words in a search term, using the words of the index terms in the TERM_WORDS field. A short misspelled word such as "diabtes" shares
+ * few n-grams with the correct word, and those it shares are common ones, so the n-gram query alone ranks the intended concepts low. A word of the search
+ * term that does not occur in any index term is replaced by the most frequent index word within one edit (an insertion, deletion, substitution or
+ * transposition), or within two edits for long words. The candidates are found by intersecting a Levenshtein automaton with the term dictionary, so the
+ * dictionary is not scanned.
+ */
+public class WordCorrector {
+
+	/**
+	 * Shorter words are often abbreviations, and are not corrected.
+	 */
+	public static int		MIN_WORD_LENGTH				= 4;
+	public static int		MIN_LENGTH_FOR_TWO_EDITS	= 8;
+	// Misspellings rarely change the first letter, and requiring it to match makes the automaton visit far fewer terms:
+	private static int		PREFIX_LENGTH				= 1;
+	private static String	FIELD						= TermField.WORDS.getFieldName();
+
+	public static class Correction {
+		/**
+		 * The search term with the misspelled words replaced.
+		 */
+		public String	term;
+		public int		edits;
+		/**
+		 * The number of letters in the words of the search term.
+		 */
+		public int		letters;
+
+		/**
+		 * @return The factor by which the scores of the corrected term are lowered: one minus half the share of letters that were edited
+		 */
+		public float getScoreFactor() {
+			return 1f - 0.5f * edits / letters;
+		}
+	}
+
+	/**
+	 * @return The correction, or null if all words occur in the index, no correction was found, or the index has no TERM_WORDS field
+	 */
+	public static Correction correct(IndexReader reader, Analyzer analyzer, String searchTerm) throws IOException {
+		Terms terms = MultiFields.getTerms(reader, FIELD);
+		if (terms == null)
+			return null;
+		StringBuilder correctedTerm = null;
+		int copiedUpTo = 0;
+		int edits = 0;
+		int letters = 0;
+		try (TokenStream tokenStream = analyzer.tokenStream(FIELD, searchTerm)) {
+			CharTermAttribute charTermAttribute = tokenStream.addAttribute(CharTermAttribute.class);
+			OffsetAttribute offsetAttribute = tokenStream.addAttribute(OffsetAttribute.class);
+			tokenStream.reset();
+			while (tokenStream.incrementToken()) {
+				String word = charTermAttribute.toString();
+				letters += word.length();
+				if (word.length() < MIN_WORD_LENGTH || reader.docFreq(new Term(FIELD, word)) > 0)
+					continue;
+				int maxEdits = word.length() < MIN_LENGTH_FOR_TWO_EDITS ? 1 : 2;
+				for (int wordEdits = 1; wordEdits <= maxEdits; wordEdits++) {
+					String correctedWord = findMostFrequentWord(terms, word, wordEdits);
+					if (correctedWord != null) {
+						if (correctedTerm == null)
+							correctedTerm = new StringBuilder(searchTerm.length() + 4);
+						correctedTerm.append(searchTerm, copiedUpTo, offsetAttribute.startOffset()).append(correctedWord);
+						copiedUpTo = offsetAttribute.endOffset();
+						edits += wordEdits;
+						break;
+					}
+				}
+			}
+			tokenStream.end();
+		}
+		if (correctedTerm == null)
+			return null;
+		correctedTerm.append(searchTerm, copiedUpTo, searchTerm.length());
+		Correction correction = new Correction();
+		correction.term = correctedTerm.toString();
+		correction.edits = edits;
+		correction.letters = letters;
+		return correction;
+	}
+
+	/**
+	 * @return The index word within the given number of edits of the word that occurs in the most index terms, or null if there is none
+	 */
+	private static String findMostFrequentWord(Terms terms, String word, int edits) throws IOException {
+		FuzzyTermsEnum termsEnum = new FuzzyTermsEnum(terms, new AttributeSource(), new Term(FIELD, word), edits, PREFIX_LENGTH, true);
+		BytesRef bestWord = null;
+		int bestDocFreq = 0;
+		BytesRef candidate;
+		while ((candidate = termsEnum.next()) != null)
+			if (termsEnum.docFreq() > bestDocFreq) {
+				bestWord = BytesRef.deepCopyOf(candidate);
+				bestDocFreq = termsEnum.docFreq();
+			}
+		return bestWord == null ? null : bestWord.utf8ToString();
+	}
+}
@@ -68,11 +68,18 @@ public class ImportData {
 
 	private void createInitialMapping(List<SourceCode> sourceCodes, ImportSettings settings) {
 		WriteCodeMappingsToFile out = new WriteCodeMappingsToFile(settings.mappingFile);
-		for (SourceCode sourceCode : sourceCodes) {
+		SearchSettings searchSettings = new SearchSettings();
+		searchSettings.filterDomains = settings.filterDomains;
+		searchSettings.filterConceptClasses = settings.filterConceptClasses;
+		searchSettings.filterVocabularies = settings.filterVocabularies;
+		searchSettings.filterStandard = settings.filterStandard;
+		searchSettings.includeSourceConcepts = settings.includeSourceTerms;
+		List<List<ScoredConcept>> sourceCodeConcepts = usagiSearchEngine.searchBatch(sourceCodes, searchSettings, 1);
+		for (int i = 0; i < sourceCodes.size(); i++) {
+			SourceCode sourceCode = sourceCodes.get(i);
 			CodeMapping codeMapping = new CodeMapping(sourceCode);
 
-			List<ScoredConcept> concepts = usagiSearchEngine.search(sourceCode.sourceName, true, sourceCode.sourceAutoAssignedConceptIds,
-					settings.filterDomains, settings.filterConceptClasses, settings.filterVocabularies, settings.filterStandard, settings.includeSourceTerms);
+			List<ScoredConcept> concepts = sourceCodeConcepts.get(i);
 			if (concepts.size() > 0) {
 				codeMapping.getTargetConcepts().add(new MappingTarget(concepts.get(0).concept, "<auto>"));
 				codeMapping.setMatchScore(concepts.get(0).matchScore);
@@ -16,11 +16,13 @@
 package org.ohdsi.usagi.indexBuilding;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
 import org.ohdsi.usagi.BerkeleyDbEngine;
 import org.ohdsi.usagi.Concept;
+import org.ohdsi.usagi.ConceptDescendantIndex;
 import org.ohdsi.usagi.MapsToRelationship;
 import org.ohdsi.usagi.ParentChildRelationShip;
 import org.ohdsi.usagi.indexBuilding.IndexBuildCoordinator.BuildThread;
@@ -83,18 +85,31 @@ public class BerkeleyDbBuilder {
 
 	private void loadAncestors(String conceptAncestorFileName) {
 		File file = new File(conceptAncestorFileName);
+		File descendantsFile = new File(Global.folder + "/" + ConceptDescendantIndex.FILE_NAME);
+		descendantsFile.delete();
 		if (file.exists()) {
 			buildThread.report("Loading parent-child information");
-			int count = 0;
-			for (Row row : new ReadAthenaFile(conceptAncestorFileName)) {
-				if (row.get("min_levels_of_separation").equals("1") && !row.get("ancestor_concept_id").equals(row.get("descendant_concept_id"))
-						&& validConceptIds.contains(row.getInt("ancestor_concept_id")) && validConceptIds.contains(row.getInt("descendant_concept_id"))) {
-					ParentChildRelationShip parentChildRelationship = new ParentChildRelationShip(row);
-					dbEngine.put(parentChildRelationship);
+			// The parent-child relationships are kept in the database, all ancestor-descendant pairs in the descendant index:
+			ConceptDescendantIndex.Builder descendantIndexBuilder = new ConceptDescendantIndex.Builder();
+			try {
+				int count = 0;
+				for (Row row : new ReadAthenaFile(conceptAncestorFileName)) {
+					if (!row.get("ancestor_concept_id").equals(row.get("descendant_concept_id")) && validConceptIds.contains(row.getInt("ancestor_concept_id"))
+							&& validConceptIds.contains(row.getInt("descendant_concept_id"))) {
+						if (row.get("min_levels_of_separation").equals("1")) {
+							ParentChildRelationShip parentChildRelationship = new ParentChildRelationShip(row);
+							dbEngine.put(parentChildRelationship);
+						}
+						descendantIndexBuilder.add(row.getInt("ancestor_concept_id"), row.getInt("descendant_concept_id"));
+					}
+					count++;
+					if (count % 100000 == 0)
+						System.out.println("Processed " + count + " relationships");
 				}
-				count++;
-				if (count % 100000 == 0)
-					System.out.println("Processed " + count + " relationships");
+				buildThread.report("Writing descendant index");
+				descendantIndexBuilder.write(descendantsFile);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
 			}
 		}
 	}
@@ -118,6 +133,7 @@ public class BerkeleyDbBuilder {
 				concept.parentCount = dbEngine.getParentChildRelationshipsByChildConceptId(concept.conceptId).size();
 				concept.childCount = dbEngine.getParentChildRelationshipsByParentConceptId(concept.conceptId).size();
 				dbEngine.put(concept);
+				dbEngine.putConceptCode(concept.vocabularyId, concept.conceptCode, concept.conceptId);
 				count++;
 				if (count % 100000 == 0)
 					System.out.println("Loaded " + count + " concepts");
@@ -90,9 +90,21 @@ public class LuceneIndexBuilder {
 			if (count % 100000 == 0)
 				System.out.println("Processed " + count + " synonyms");
 		}
+		buildThread.report("Building exact match dictionary and suggestions");
 		usagiSearchEngine.close();
 		cursor.close();
 		dbEngine.shutdown();
+		buildThread.report("Computing document norms");
+		usagiSearchEngine.createMainIndexNorms();
+		if (usagiSearchEngine.getIndexSettings().vectorSearch) {
+			buildThread.report("Building n-gram vector index");
+			usagiSearchEngine.createMainIndexVectors();
+		}
+		if (usagiSearchEngine.getIndexSettings().fieldReport) {
+			buildThread.report("Measuring index fields");
+			for (String line : usagiSearchEngine.createMainIndexFieldReport().toLines())
+				System.out.println(line);
+		}
 		saveSorted(vocabularies, Global.folder + "/VocabularyIds.txt");
 		saveSorted(conceptClassIds, Global.folder + "/ConceptClassIds.txt");
 		saveSorted(domainIds, Global.folder + "/DomainIds.txt");
@@ -0,0 +1,822 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.Vector;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Version;
+import org.ohdsi.usagi.BerkeleyDbEngine;
+import org.ohdsi.usagi.CodeMapping;
+import org.ohdsi.usagi.CodeMapping.MappingStatus;
+import org.ohdsi.usagi.DomainShards;
+import org.ohdsi.usagi.HnswGraph;
+import org.ohdsi.usagi.IdfTable;
+import org.ohdsi.usagi.IndexSettings;
+import org.ohdsi.usagi.IndexSettings.DirectoryType;
+import org.ohdsi.usagi.MappingTarget;
+import org.ohdsi.usagi.NgramVectorIndex;
+import org.ohdsi.usagi.ReadCodeMappingsFromFile;
+import org.ohdsi.usagi.SearchSettings;
+import org.ohdsi.usagi.SourceCode;
+import org.ohdsi.usagi.TermField;
+import org.ohdsi.usagi.UsagiAnalyzer;
+import org.ohdsi.usagi.UsagiSearchEngine;
+import org.ohdsi.usagi.UsagiSearchEngine.ScoredConcept;
+import org.ohdsi.usagi.ui.Global;
+import org.ohdsi.utilities.StringUtilities;
+import org.ohdsi.utilities.files.ReadTextFile;
+
+/**
+ * Benchmarks for the Usagi search engine. Run against an existing Usagi folder (containing the main index built from a full Athena vocabulary):
+ *
+ * <pre>
+ * SearchBenchmark &lt;usagi folder&gt; &lt;benchmark&gt; [&lt;number of source codes&gt; | &lt;directory type&gt; | &lt;gold standard file&gt;
+ *                 | &lt;sharded usagi folder&gt;]
+ * </pre>
+ *
+ * Available benchmarks: rescoring, batch, conceptIdFilter, maxScore, directory, allocation, suggest, vectors, fuzzy, fields, shards
+ */
+public class SearchBenchmark {
+
+	private static int		HITS_PER_SEARCH		= 100;
+	private static int		SEARCHES			= 1000;
+	private static int		BATCH_SOURCE_CODES	= 100000;
+	private static int[]	FILTER_SIZES		= { 1, 10, 100, 1000, 10000 };
+	private static int		FILTERED_SEARCHES	= 100;
+	private static int		LONG_NAMES			= 1000;
+	private static int		LONG_NAME_LENGTH	= 60;
+
+	public static void main(String[] args) throws IOException {
+		String folder = args[0];
+		String benchmark = args[1];
+		if (benchmark.equals("rescoring"))
+			benchmarkRescoring(folder);
+		else if (benchmark.equals("batch"))
+			benchmarkBatch(folder, args.length > 2 ? Integer.parseInt(args[2]) : BATCH_SOURCE_CODES);
+		else if (benchmark.equals("conceptIdFilter"))
+			benchmarkConceptIdFilter(folder);
+		else if (benchmark.equals("maxScore"))
+			benchmarkMaxScore(folder);
+		else if (benchmark.equals("allocation"))
+			benchmarkAllocation(folder);
+		else if (benchmark.equals("suggest"))
+			benchmarkSuggest(folder);
+		else if (benchmark.equals("vectors"))
+			benchmarkVectors(folder, args.length > 2 ? args[2] : null);
+		else if (benchmark.equals("fuzzy"))
+			benchmarkFuzzy(folder, args.length > 2 ? args[2] : null);
+		else if (benchmark.equals("fields"))
+			benchmarkFields(folder, args.length > 2 ? args[2] : null);
+		else if (benchmark.equals("shards"))
+			benchmarkShards(folder, args[2]);
+		else if (benchmark.equals("directory"))
+			benchmarkDirectory(folder, args.length > 2 ? DirectoryType.valueOf(args[2]) : null);
+		else
+			System.out.println("Unknown benchmark: " + benchmark);
+	}
+
+	/**
+	 * Compares the cost of computing the TF*IDF vectors of the top hits when looking up each document frequency in the term dictionary, to the cost when using
+	 * the precomputed IdfTable.
+	 */
+	private static void benchmarkRescoring(String folder) throws IOException {
+		IndexReader reader = DomainShards.open(new File(folder + "/" + UsagiSearchEngine.MAIN_INDEX_FOLDER));
+		long start = System.nanoTime();
+		IdfTable idfTable = IdfTable.build(reader, "TERM");
+		System.out.println(String.format("Built IDF table with %d terms in %d ms, using %d KB", idfTable.getTermCount(), (System.nanoTime() - start) / 1000000,
+				idfTable.ramBytesUsed() / 1024));
+
+		int[][] hits = new int[SEARCHES][HITS_PER_SEARCH];
+		Random random = new Random(0);
+		for (int[] searchHits : hits)
+			for (int i = 0; i < searchHits.length; i++)
+				searchHits[i] = random.nextInt(reader.maxDoc());
+
+		// Warm up both code paths before measuring:
+		rescore(reader, null, hits);
+		rescore(reader, idfTable, hits);
+
+		start = System.nanoTime();
+		double checksum1 = rescore(reader, null, hits);
+		long termDictionaryNanos = System.nanoTime() - start;
+		start = System.nanoTime();
+		double checksum2 = rescore(reader, idfTable, hits);
+		long idfTableNanos = System.nanoTime() - start;
+		System.out.println(String.format("Rescoring latency per search using the term dictionary: %.1f us", termDictionaryNanos / 1000d / SEARCHES));
+		System.out.println(String.format("Rescoring latency per search using the IDF table:       %.1f us", idfTableNanos / 1000d / SEARCHES));
+		System.out.println(String.format("Checksums: %.6f, %.6f", checksum1, checksum2));
+		reader.close();
+	}
+
+	/**
+	 * Compares the throughput of searching one source code at a time, as the import used to do, to the throughput of searchBatch. The source names are
+	 * randomly sampled index terms with one character removed.
+	 */
+	private static void benchmarkBatch(String folder, int sourceCodeCount) throws IOException {
+		Global.dbEngine = new BerkeleyDbEngine(folder);
+		Global.dbEngine.openForReading();
+		UsagiSearchEngine usagiSearchEngine = new UsagiSearchEngine(folder);
+		usagiSearchEngine.openIndexForSearching(false);
+
+		List<SourceCode> sourceCodes = createSourceCodes(folder, sourceCodeCount);
+		SearchSettings settings = new SearchSettings();
+		settings.filterStandard = false;
+		settings.includeSourceConcepts = true;
+
+		// Warm up caches before measuring:
+		usagiSearchEngine.searchBatch(sourceCodes.subList(0, Math.min(1000, sourceCodes.size())), settings, 1);
+
+		long start = System.nanoTime();
+		int checksum1 = 0;
+		for (SourceCode sourceCode : sourceCodes) {
+			List<ScoredConcept> concepts = usagiSearchEngine.search(sourceCode.sourceName, true, sourceCode.sourceAutoAssignedConceptIds, settings.filterDomains,
+					settings.filterConceptClasses, settings.filterVocabularies, settings.filterStandard, settings.includeSourceConcepts);
+			if (concepts.size() > 0)
+				checksum1 += concepts.get(0).concept.conceptId;
+		}
+		long perCallNanos = System.nanoTime() - start;
+		System.out.println(String.format("Searching one source code at a time: %.0f source codes per second", sourceCodeCount / (perCallNanos / 1e9)));
+
+		int[] threadCounts = settings.threadCount == 1 ? new int[] { 1 } : new int[] { 1, settings.threadCount };
+		for (int threadCount : threadCounts) {
+			settings.threadCount = threadCount;
+			start = System.nanoTime();
+			int checksum2 = 0;
+			for (List<ScoredConcept> concepts : usagiSearchEngine.searchBatch(sourceCodes, settings, 1))
+				if (concepts.size() > 0)
+					checksum2 += concepts.get(0).concept.conceptId;
+			long batchNanos = System.nanoTime() - start;
+			System.out.println(String.format("searchBatch using %d thread(s):    %.0f source codes per second (checksums: %d, %d)", threadCount,
+					sourceCodeCount / (batchNanos / 1e9), checksum1, checksum2));
+		}
+		usagiSearchEngine.close();
+		Global.dbEngine.shutdown();
+	}
+
+	/**
+	 * Measures filtered search latency against the number of concept IDs the search is restricted to. For each list size, the cost of building and applying
+	 * the concept ID filter is compared to the cost of the parsed query (the concept IDs joined with OR) that was used before, and then the latency of the
+	 * complete search is measured.
+	 */
+	private static void benchmarkConceptIdFilter(String folder) throws IOException {
+		Global.dbEngine = new BerkeleyDbEngine(folder);
+		Global.dbEngine.openForReading();
+		UsagiSearchEngine usagiSearchEngine = new UsagiSearchEngine(folder);
+		usagiSearchEngine.openIndexForSearching(false);
+		IndexReader reader = DomainShards.open(new File(folder + "/" + UsagiSearchEngine.MAIN_INDEX_FOLDER));
+		BooleanQuery.setMaxClauseCount(Integer.MAX_VALUE);
+		Random random = new Random(0);
+		List<SourceCode> sourceCodes = createSourceCodes(folder, FILTERED_SEARCHES);
+
+		List<Integer> allConceptIds = new ArrayList<Integer>();
+		TermsEnum termsEnum = MultiFields.getTerms(reader, "CONCEPT_ID").iterator(null);
+		BytesRef text;
+		while ((text = termsEnum.next()) != null)
+			allConceptIds.add(Integer.parseInt(text.utf8ToString()));
+
+		System.out.println("IDs\tParsed query filter (ms)\tTerms filter (ms)\tSearch (ms)");
+		for (int filterSize : FILTER_SIZES) {
+			if (filterSize > allConceptIds.size())
+				break;
+			List<Set<Integer>> conceptIdSets = new ArrayList<Set<Integer>>(FILTERED_SEARCHES);
+			for (int i = 0; i < FILTERED_SEARCHES; i++) {
+				Collections.shuffle(allConceptIds, random);
+				conceptIdSets.add(new HashSet<Integer>(allConceptIds.subList(0, filterSize)));
+			}
+
+			long start = System.nanoTime();
+			long checksum1 = 0;
+			for (Set<Integer> conceptIds : conceptIdSets) {
+				try {
+					QueryParser conceptIdQueryParser = new QueryParser(Version.LUCENE_4_9, "CONCEPT_ID", new KeywordAnalyzer());
+					Query conceptIdQuery = conceptIdQueryParser.parse(StringUtilities.join(conceptIds, " OR "));
+					checksum1 += countMatches(reader, new QueryWrapperFilter(conceptIdQuery));
+				} catch (ParseException e) {
+					throw new RuntimeException(e);
+				}
+			}
+			long parsedNanos = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			long checksum2 = 0;
+			for (Set<Integer> conceptIds : conceptIdSets)
+				checksum2 += countMatches(reader, UsagiSearchEngine.createConceptIdFilter(conceptIds));
+			long termsNanos = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < FILTERED_SEARCHES; i++)
+				usagiSearchEngine.search(sourceCodes.get(i).sourceName, true, conceptIdSets.get(i), null, null, null, false, true);
+			long searchNanos = System.nanoTime() - start;
+
+			System.out.println(String.format("%d\t%.2f\t%.2f\t%.2f%s", filterSize, parsedNanos / 1e6 / FILTERED_SEARCHES, termsNanos / 1e6 / FILTERED_SEARCHES,
+					searchNanos / 1e6 / FILTERED_SEARCHES, checksum1 == checksum2 ? "" : "\t(matches differ: " + checksum1 + ", " + checksum2 + ")"));
+		}
+		reader.close();
+		usagiSearchEngine.close();
+		Global.dbEngine.shutdown();
+	}
+
+	/**
+	 * Compares the latency of n-gram queries on long source names with and without max-score pruning, both for the top 100 concepts (as shown in the UI) and
+	 * for the top concept (as used for the initial mapping), and checks that both return the same concepts with the same scores. The long source names are
+	 * made by concatenating randomly sampled index terms.
+	 */
+	private static void benchmarkMaxScore(String folder) throws IOException {
+		Global.dbEngine = new BerkeleyDbEngine(folder);
+		Global.dbEngine.openForReading();
+		UsagiSearchEngine usagiSearchEngine = new UsagiSearchEngine(folder);
+		usagiSearchEngine.openIndexForSearching(false);
+
+		IndexReader reader = DomainShards.open(new File(folder + "/" + UsagiSearchEngine.MAIN_INDEX_FOLDER));
+		Random random = new Random(0);
+		List<SourceCode> sourceCodes = new ArrayList<SourceCode>(LONG_NAMES);
+		while (sourceCodes.size() < LONG_NAMES) {
+			StringBuilder name = new StringBuilder();
+			while (name.length() < LONG_NAME_LENGTH) {
+				String term = reader.document(random.nextInt(reader.maxDoc())).get("TERM");
+				if (term != null)
+					name.append(name.length() == 0 ? "" : " ").append(term);
+			}
+			SourceCode sourceCode = new SourceCode();
+			sourceCode.sourceCode = Integer.toString(sourceCodes.size());
+			sourceCode.sourceName = name.toString();
+			sourceCodes.add(sourceCode);
+		}
+		reader.close();
+		SearchSettings settings = new SearchSettings();
+		settings.filterStandard = false;
+		settings.includeSourceConcepts = true;
+		settings.threadCount = 1;
+
+		List<List<List<ScoredConcept>>> top100Results = new ArrayList<List<List<ScoredConcept>>>(Collections.<List<List<ScoredConcept>>>nCopies(2, null));
+		List<List<List<ScoredConcept>>> top1Results = new ArrayList<List<List<ScoredConcept>>>(Collections.<List<List<ScoredConcept>>>nCopies(2, null));
+		long[] top100Nanos = new long[2];
+		long[] top1Nanos = new long[2];
+		for (int run = 0; run < 3; run++) {
+			// The first run warms up both modes:
+			for (int mode = 0; mode < 2; mode++) {
+				usagiSearchEngine.setMaxScorePruning(mode == 1);
+				usagiSearchEngine.getQueryResultCache().clear();
+				long start = System.nanoTime();
+				List<List<ScoredConcept>> results = new ArrayList<List<ScoredConcept>>(sourceCodes.size());
+				for (SourceCode sourceCode : sourceCodes)
+					results.add(usagiSearchEngine.search(sourceCode.sourceName, true, null, settings.filterDomains, settings.filterConceptClasses,
+							settings.filterVocabularies, settings.filterStandard, settings.includeSourceConcepts));
+				top100Nanos[mode] = System.nanoTime() - start;
+				top100Results.set(mode, results);
+
+				usagiSearchEngine.getQueryResultCache().clear();
+				start = System.nanoTime();
+				top1Results.set(mode, usagiSearchEngine.searchBatch(sourceCodes, settings, 1));
+				top1Nanos[mode] = System.nanoTime() - start;
+			}
+		}
+		System.out.println(String.format("Average source name length: %.0f characters", averageLength(sourceCodes)));
+		System.out.println(String.format("Top 100 without pruning: %.2f ms per search", top100Nanos[0] / 1e6 / sourceCodes.size()));
+		System.out.println(String.format("Top 100 with pruning:    %.2f ms per search", top100Nanos[1] / 1e6 / sourceCodes.size()));
+		System.out.println(String.format("Top 1 without pruning:   %.2f ms per search", top1Nanos[0] / 1e6 / sourceCodes.size()));
+		System.out.println(String.format("Top 1 with pruning:      %.2f ms per search", top1Nanos[1] / 1e6 / sourceCodes.size()));
+		System.out.println(String.format("Searches with different results: top 100: %d, top 1: %d",
+				countDifferences(top100Results.get(0), top100Results.get(1)), countDifferences(top1Results.get(0), top1Results.get(1))));
+		usagiSearchEngine.close();
+		Global.dbEngine.shutdown();
+	}
+
+	/**
+	 * Measures the number of bytes allocated per search by the calling thread, which is the same metric as the normalized allocation rate reported by the JMH
+	 * GC profiler. The query result cache is cleared before every pass, so every search runs the query.
+	 */
+	private static void benchmarkAllocation(String folder) throws IOException {
+		Global.dbEngine = new BerkeleyDbEngine(folder);
+		Global.dbEngine.openForReading();
+		UsagiSearchEngine usagiSearchEngine = new UsagiSearchEngine(folder);
+		usagiSearchEngine.openIndexForSearching(false);
+		List<SourceCode> sourceCodes = createSourceCodes(folder, SEARCHES);
+		com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+
+		for (int run = 0; run < 3; run++) {
+			// The first run warms up:
+			usagiSearchEngine.getQueryResultCache().clear();
+			long allocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId);
+			long start = System.nanoTime();
+			for (SourceCode sourceCode : sourceCodes)
+				usagiSearchEngine.search(sourceCode.sourceName, true, null, null, null, null, true, true);
+			long nanos = System.nanoTime() - start;
+			allocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBytes;
+			if (run > 0)
+				System.out.println(String.format("Run %d: %.1f KB allocated per search, %.2f ms per search", run, allocatedBytes / 1024d / sourceCodes.size(),
+						nanos / 1e6 / sourceCodes.size()));
+		}
+		usagiSearchEngine.close();
+		Global.dbEngine.shutdown();
+	}
+
+	/**
+	 * Compares the latency of completing a prefix with the suggester to the latency of a full search on the same prefix, which is what every key stroke in the
+	 * query field used to cost. The prefixes are the first 1 to 12 characters of sampled index terms, as if the terms were being typed.
+	 */
+	private static void benchmarkSuggest(String folder) throws IOException {
+		Global.dbEngine = new BerkeleyDbEngine(folder);
+		Global.dbEngine.openForReading();
+		UsagiSearchEngine usagiSearchEngine = new UsagiSearchEngine(folder);
+		usagiSearchEngine.openIndexForSearching(false);
+		File suggestionsFile = new File(folder + "/" + UsagiSearchEngine.MAIN_INDEX_FOLDER + UsagiSearchEngine.SUGGESTIONS_FILE_SUFFIX);
+		if (!suggestionsFile.exists()) {
+			System.out.println("The index was built without suggestions. Please rebuild the index");
+			return;
+		}
+		System.out.println(String.format("Suggestions file: %d KB", suggestionsFile.length() / 1024));
+		List<String> prefixes = new ArrayList<String>();
+		for (SourceCode sourceCode : createSourceCodes(folder, SEARCHES))
+			for (int length = 1; length <= Math.min(12, sourceCode.sourceName.length()); length++)
+				prefixes.add(sourceCode.sourceName.substring(0, length));
+
+		for (int run = 0; run < 3; run++) {
+			// The first run warms up:
+			long[] nanos = new long[prefixes.size()];
+			int suggestionCount = 0;
+			for (int i = 0; i < prefixes.size(); i++) {
+				long start = System.nanoTime();
+				suggestionCount += usagiSearchEngine.suggest(prefixes.get(i), 10).size();
+				nanos[i] = System.nanoTime() - start;
+			}
+			if (run > 0) {
+				long[] sortedNanos = nanos.clone();
+				Arrays.sort(sortedNanos);
+				long total = 0;
+				for (long n : nanos)
+					total += n;
+				System.out.println(String.format("Run %d: %d prefixes, suggest mean %.1f us, p99 %.1f us, %.1f suggestions per prefix", run, prefixes.size(),
+						total / 1000d / prefixes.size(), sortedNanos[(int) (sortedNanos.length * 0.99)] / 1000d, suggestionCount / (double) prefixes.size()));
+			}
+		}
+		usagiSearchEngine.getQueryResultCache().clear();
+		List<String> searchPrefixes = prefixes.subList(0, Math.min(prefixes.size(), SEARCHES));
+		long start = System.nanoTime();
+		for (String prefix : searchPrefixes)
+			usagiSearchEngine.search(prefix, true, null, null, null, null, true, true);
+		System.out.println(String.format("Full search on the same prefixes: mean %.1f us", (System.nanoTime() - start) / 1000d / searchPrefixes.size()));
+		usagiSearchEngine.close();
+		Global.dbEngine.shutdown();
+	}
+
+	/**
+	 * Compares vector search to the n-gram query on a gold standard: a Usagi mapping file, of which the approved mappings are used. Without a mapping file,
+	 * the gold standard consists of sampled index terms of standard concepts with one character removed, each mapping to the concept of the term. Reports
+	 * recall@10 (the fraction of source terms with a correct concept in the top 10) and latency of both modes, and the fraction of the exact 10 nearest
+	 * neighbours found by the graph search. The vector index is built first if it does not exist.
+	 */
+	private static void benchmarkVectors(String folder, String goldStandardFile) throws IOException {
+		Global.dbEngine = new BerkeleyDbEngine(folder);
+		Global.dbEngine.openForReading();
+		UsagiSearchEngine usagiSearchEngine = new UsagiSearchEngine(folder);
+		usagiSearchEngine.getIndexSettings().vectorSearch = true;
+		File vectorsFile = new File(folder + "/" + UsagiSearchEngine.MAIN_INDEX_FOLDER + UsagiSearchEngine.VECTORS_FILE_SUFFIX);
+		if (!vectorsFile.exists()) {
+			long start = System.nanoTime();
+			usagiSearchEngine.createMainIndexVectors();
+			System.out.println(String.format("Built vector index in %d s", (System.nanoTime() - start) / 1000000000));
+		}
+		System.out.println(String.format("Vector index file: %d MB", vectorsFile.length() / 1024 / 1024));
+
+		List<String> sourceNames = new ArrayList<String>();
+		List<Set<Integer>> goldConceptIds = new ArrayList<Set<Integer>>();
+		if (goldStandardFile == null)
+			createGoldStandard(folder, SEARCHES, false, sourceNames, goldConceptIds);
+		else
+			readGoldStandard(goldStandardFile, sourceNames, goldConceptIds);
+		System.out.println(String.format("Gold standard: %d source terms", sourceNames.size()));
+
+		usagiSearchEngine.openIndexForSearching(false);
+		for (boolean vectorSearch : new boolean[] { false, true, false, true }) {
+			// Each mode is run twice, the first run warms up:
+			usagiSearchEngine.getIndexSettings().vectorSearch = vectorSearch;
+			measureRecall(usagiSearchEngine, sourceNames, goldConceptIds, vectorSearch ? "Vectors:" : "N-gram query:");
+		}
+		usagiSearchEngine.close();
+
+		// Quality of the graph: the fraction of the exact nearest neighbours the graph search finds, without filters:
+		IndexReader reader = DomainShards.open(new File(folder + "/" + UsagiSearchEngine.MAIN_INDEX_FOLDER));
+		IdfTable idfTable = IdfTable.build(reader, "TERM");
+		NgramVectorIndex vectorIndex = NgramVectorIndex.load(vectorsFile, reader.maxDoc(), DomainShards.getVersion(reader));
+		int[] allDocs = new int[reader.maxDoc()];
+		for (int doc = 0; doc < allDocs.length; doc++)
+			allDocs[doc] = doc;
+		int beamWidth = usagiSearchEngine.getIndexSettings().vectorBeamWidth;
+		int foundNeighbours = 0;
+		int exactNeighbours = 0;
+		for (String sourceName : sourceNames) {
+			float[] queryVector = NgramVectorIndex.createQueryVector(sourceName, new UsagiAnalyzer(), idfTable);
+			if (queryVector == null)
+				continue;
+			ScoreDoc[] exact = vectorIndex.searchExact(queryVector, 10, allDocs, allDocs.length);
+			ScoreDoc[] approximate = vectorIndex.search(queryVector, beamWidth, null, Integer.MAX_VALUE, new HnswGraph.SearchState());
+			Set<Integer> approximateDocs = new HashSet<Integer>();
+			for (int i = 0; i < Math.min(10, approximate.length); i++)
+				approximateDocs.add(approximate[i].doc);
+			for (ScoreDoc scoreDoc : exact)
+				if (approximateDocs.contains(scoreDoc.doc))
+					foundNeighbours++;
+			exactNeighbours += exact.length;
+		}
+		System.out.println(String.format("Graph search recall@10 of the exact nearest neighbours (beam width %d): %.3f", beamWidth,
+				foundNeighbours / (double) exactNeighbours));
+		reader.close();
+		Global.dbEngine.shutdown();
+	}
+
+	/**
+	 * Compares the search with and without correction of misspelled words (the fuzzyWordSearch index setting) on a gold standard: the approved mappings of a
+	 * Usagi mapping file, or sampled index terms of standard concepts with a typo in one word (a letter deleted, inserted, replaced, or swapped with the next).
+	 * Reports recall@10 and latency of both modes. The index must have been built with the TERM_WORDS field.
+	 */
+	private static void benchmarkFuzzy(String folder, String goldStandardFile) throws IOException {
+		Global.dbEngine = new BerkeleyDbEngine(folder);
+		Global.dbEngine.openForReading();
+		UsagiSearchEngine usagiSearchEngine = new UsagiSearchEngine(folder);
+		List<String> sourceNames = new ArrayList<String>();
+		List<Set<Integer>> goldConceptIds = new ArrayList<Set<Integer>>();
+		if (goldStandardFile == null)
+			createGoldStandard(folder, SEARCHES, true, sourceNames, goldConceptIds);
+		else
+			readGoldStandard(goldStandardFile, sourceNames, goldConceptIds);
+		System.out.println(String.format("Gold standard: %d source terms", sourceNames.size()));
+
+		usagiSearchEngine.openIndexForSearching(false);
+		for (boolean fuzzyWordSearch : new boolean[] { false, true, false, true }) {
+			// Each mode is run twice, the first run warms up:
+			usagiSearchEngine.getIndexSettings().fuzzyWordSearch = fuzzyWordSearch;
+			measureRecall(usagiSearchEngine, sourceNames, goldConceptIds, fuzzyWordSearch ? "Corrected:" : "N-gram only:");
+		}
+		usagiSearchEngine.close();
+		Global.dbEngine.shutdown();
+	}
+
+	/**
+	 * Compares searching the term fields of the index (the searchFields index setting) on a gold standard: the approved mappings of a Usagi mapping file, or
+	 * sampled index terms of standard concepts with one character removed. Every field in the index is searched alone, and every field other than the n-gram
+	 * field together with the n-gram field. Reports recall@10 and latency of each combination. Word correction is switched off, so only the fields are
+	 * compared.
+	 */
+	private static void benchmarkFields(String folder, String goldStandardFile) throws IOException {
+		Global.dbEngine = new BerkeleyDbEngine(folder);
+		Global.dbEngine.openForReading();
+		UsagiSearchEngine usagiSearchEngine = new UsagiSearchEngine(folder);
+		List<String> sourceNames = new ArrayList<String>();
+		List<Set<Integer>> goldConceptIds = new ArrayList<Set<Integer>>();
+		if (goldStandardFile == null)
+			createGoldStandard(folder, SEARCHES, false, sourceNames, goldConceptIds);
+		else
+			readGoldStandard(goldStandardFile, sourceNames, goldConceptIds);
+		System.out.println(String.format("Gold standard: %d source terms", sourceNames.size()));
+
+		IndexReader reader = DomainShards.open(new File(folder + "/" + UsagiSearchEngine.MAIN_INDEX_FOLDER));
+		List<Set<TermField>> combinations = new ArrayList<Set<TermField>>();
+		for (TermField field : TermField.values())
+			if (MultiFields.getTerms(reader, field.getFieldName()) != null) {
+				combinations.add(EnumSet.of(field));
+				if (field != TermField.NGRAM)
+					combinations.add(EnumSet.of(TermField.NGRAM, field));
+			}
+		reader.close();
+
+		IndexSettings indexSettings = usagiSearchEngine.getIndexSettings();
+		indexSettings.fuzzyWordSearch = false;
+		for (Set<TermField> searchFields : combinations) {
+			indexSettings.searchFields = searchFields;
+			usagiSearchEngine.openIndexForSearching(false);
+			String label = searchFields.toString();
+			// Each combination is run twice, the first run warms up:
+			measureRecall(usagiSearchEngine, sourceNames, goldConceptIds, label);
+			measureRecall(usagiSearchEngine, sourceNames, goldConceptIds, label);
+		}
+		usagiSearchEngine.close();
+		Global.dbEngine.shutdown();
+	}
+
+	/**
+	 * Compares the latency of searches restricted to domains, and of unrestricted searches, on the index in the Usagi folder and on the same vocabulary
+	 * indexed with domain shards in a second folder (built with domainShards = true in its index settings). Also counts the searches with different results;
+	 * the scores are the same in both indexes, but concepts with tied scores can come in a different order.
+	 */
+	private static void benchmarkShards(String folder, String shardedFolder) throws IOException {
+		Global.dbEngine = new BerkeleyDbEngine(folder);
+		Global.dbEngine.openForReading();
+		List<SourceCode> sourceCodes = createSourceCodes(folder, SEARCHES);
+		List<Vector<String>> domainFilters = new ArrayList<Vector<String>>();
+		domainFilters.add(null);
+		for (String domain : new String[] { "Condition", "Drug", "Measurement" })
+			domainFilters.add(new Vector<String>(Collections.singleton(domain)));
+		domainFilters.add(new Vector<String>(Arrays.asList("Condition", "Drug", "Measurement")));
+
+		UsagiSearchEngine[] usagiSearchEngines = { new UsagiSearchEngine(folder), new UsagiSearchEngine(shardedFolder) };
+		for (UsagiSearchEngine usagiSearchEngine : usagiSearchEngines)
+			usagiSearchEngine.openIndexForSearching(false);
+		System.out.println("Domains\tUnsharded (ms per search)\tSharded (ms per search)\tDifferent results");
+		for (Vector<String> domainFilter : domainFilters) {
+			List<List<List<ScoredConcept>>> results = new ArrayList<List<List<ScoredConcept>>>();
+			double[] msPerSearch = new double[usagiSearchEngines.length];
+			for (int i = 0; i < usagiSearchEngines.length; i++) {
+				// Each index is searched twice, the first run warms up:
+				List<List<ScoredConcept>> engineResults = null;
+				for (int run = 0; run < 2; run++) {
+					usagiSearchEngines[i].getQueryResultCache().clear();
+					engineResults = new ArrayList<List<ScoredConcept>>(sourceCodes.size());
+					long start = System.nanoTime();
+					for (SourceCode sourceCode : sourceCodes)
+						engineResults.add(usagiSearchEngines[i].search(sourceCode.sourceName, true, null, domainFilter, null, null, true, true));
+					msPerSearch[i] = (System.nanoTime() - start) / 1e6 / sourceCodes.size();
+				}
+				results.add(engineResults);
+			}
+			System.out.println(String.format("%s\t%.2f\t%.2f\t%d", domainFilter == null ? "All" : domainFilter, msPerSearch[0], msPerSearch[1],
+					countDifferences(results.get(0), results.get(1))));
+		}
+		for (UsagiSearchEngine usagiSearchEngine : usagiSearchEngines)
+			usagiSearchEngine.close();
+		Global.dbEngine.shutdown();
+	}
+
+	/**
+	 * Searches the source terms, and prints recall@1 and recall@10 (the fraction of source terms with a correct concept first, and in the top 10) and the
+	 * latency.
+	 */
+	private static void measureRecall(UsagiSearchEngine usagiSearchEngine, List<String> sourceNames, List<Set<Integer>> goldConceptIds, String label) {
+		usagiSearchEngine.getQueryResultCache().clear();
+		long[] nanos = new long[sourceNames.size()];
+		int foundFirst = 0;
+		int found = 0;
+		for (int i = 0; i < sourceNames.size(); i++) {
+			long start = System.nanoTime();
+			List<ScoredConcept> results = usagiSearchEngine.search(sourceNames.get(i), true, null, null, null, null, true, true);
+			nanos[i] = System.nanoTime() - start;
+			if (results.size() > 0 && goldConceptIds.get(i).contains(results.get(0).concept.conceptId))
+				foundFirst++;
+			for (ScoredConcept result : results.subList(0, Math.min(10, results.size())))
+				if (goldConceptIds.get(i).contains(result.concept.conceptId)) {
+					found++;
+					break;
+				}
+		}
+		Arrays.sort(nanos);
+		long total = 0;
+		for (long n : nanos)
+			total += n;
+		System.out.println(String.format("%-14s recall@1 %.3f, recall@10 %.3f, mean latency %.2f ms, p99 %.2f ms", label,
+				foundFirst / (double) sourceNames.size(), found / (double) sourceNames.size(), total / 1e6 / sourceNames.size(),
+				nanos[(int) (nanos.length * 0.99)] / 1e6));
+	}
+
+	/**
+	 * Reads the approved mappings of a Usagi mapping file.
+	 */
+	private static void readGoldStandard(String goldStandardFile, List<String> sourceNames, List<Set<Integer>> goldConceptIds) {
+		for (CodeMapping codeMapping : new ReadCodeMappingsFromFile(goldStandardFile))
+			if (codeMapping.getMappingStatus() == MappingStatus.APPROVED && codeMapping.getTargetConcepts().size() > 0) {
+				Set<Integer> conceptIds = new HashSet<Integer>();
+				for (MappingTarget mappingTarget : codeMapping.getTargetConcepts())
+					conceptIds.add(mappingTarget.getConcept().conceptId);
+				sourceNames.add(codeMapping.getSourceCode().sourceName);
+				goldConceptIds.add(conceptIds);
+			}
+	}
+
+	/**
+	 * Samples index terms of standard concepts, and removes one character from each.
+	 *
+	 * @param misspell
+	 *            If true, a typo is made in one word of at least five letters instead, and terms without such a word are skipped
+	 */
+	private static void createGoldStandard(String folder, int count, boolean misspell, List<String> sourceNames, List<Set<Integer>> goldConceptIds)
+			throws IOException {
+		IndexReader reader = DomainShards.open(new File(folder + "/" + UsagiSearchEngine.MAIN_INDEX_FOLDER));
+		Random random = new Random(0);
+		for (int attempt = 0; sourceNames.size() < count && attempt < count * 100; attempt++) {
+			Document document = reader.document(random.nextInt(reader.maxDoc()));
+			String term = document.get("TERM");
+			if (term == null || term.length() < 2 || !"S".equals(document.get("STANDARD_CONCEPT")))
+				continue;
+			String sourceName;
+			if (misspell) {
+				sourceName = misspell(term, random);
+				if (sourceName == null)
+					continue;
+			} else {
+				int drop = random.nextInt(term.length());
+				sourceName = term.substring(0, drop) + term.substring(drop + 1);
+			}
+			sourceNames.add(sourceName);
+			goldConceptIds.add(Collections.singleton(Integer.parseInt(document.get("CONCEPT_ID"))));
+		}
+		reader.close();
+	}
+
+	/**
+	 * @return The term with a typo in a random word of at least five letters, or null if the term has no such word
+	 */
+	private static String misspell(String term, Random random) {
+		Matcher matcher = Pattern.compile("\\p{L}{5,}").matcher(term);
+		List<int[]> words = new ArrayList<int[]>();
+		while (matcher.find())
+			words.add(new int[] { matcher.start(), matcher.end() });
+		if (words.isEmpty())
+			return null;
+		int[] word = words.get(random.nextInt(words.size()));
+		int position = word[0] + random.nextInt(word[1] - word[0] - 1);
+		char letter = (char) ('a' + random.nextInt(26));
+		switch (random.nextInt(4)) {
+			case 0:
+				return term.substring(0, position) + term.substring(position + 1);
+			case 1:
+				return term.substring(0, position) + letter + term.substring(position);
+			case 2:
+				return term.substring(0, position) + letter + term.substring(position + 1);
+			default:
+				return term.substring(0, position) + term.charAt(position + 1) + term.charAt(position) + term.substring(position + 2);
+		}
+	}
+
+	/**
+	 * Measures the time to open the index, the latency of the first and of later searches, and the resident memory of the process for each index directory
+	 * type, with and without preloading. The operating system cache is shared between the modes, so to measure cold starts, drop the cache and run each
+	 * directory type in a separate JVM by specifying it as the third argument.
+	 */
+	private static void benchmarkDirectory(String folder, DirectoryType directoryType) throws IOException {
+		Global.dbEngine = new BerkeleyDbEngine(folder);
+		Global.dbEngine.openForReading();
+		List<SourceCode> sourceCodes = createSourceCodes(folder, SEARCHES);
+		DirectoryType[] directoryTypes = directoryType == null ? DirectoryType.values() : new DirectoryType[] { directoryType };
+
+		System.out.println("Directory\tPreload\tOpen (ms)\tFirst 100 searches (ms per search)\tLater searches (ms per search)\tResident memory (MB)\tHeap (MB)");
+		for (DirectoryType type : directoryTypes) {
+			for (boolean preload : new boolean[] { false, true }) {
+				// The RAM directory reads the whole index anyway:
+				if (type == DirectoryType.RAM && preload)
+					continue;
+				IndexSettings indexSettings = new IndexSettings();
+				indexSettings.directoryType = type;
+				indexSettings.preload = preload;
+				UsagiSearchEngine usagiSearchEngine = new UsagiSearchEngine(folder);
+				usagiSearchEngine.setIndexSettings(indexSettings);
+
+				long start = System.nanoTime();
+				usagiSearchEngine.openIndexForSearching(false);
+				long openNanos = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				for (int i = 0; i < 100; i++)
+					usagiSearchEngine.search(sourceCodes.get(i).sourceName, true, null, null, null, null, true, true);
+				long firstNanos = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				for (int i = 100; i < sourceCodes.size(); i++)
+					usagiSearchEngine.search(sourceCodes.get(i).sourceName, true, null, null, null, null, true, true);
+				long laterNanos = System.nanoTime() - start;
+
+				System.gc();
+				Runtime runtime = Runtime.getRuntime();
+				System.out.println(String.format("%s\t%s\t%d\t%.2f\t%.2f\t%d\t%d", type, preload, openNanos / 1000000, firstNanos / 1e6 / 100,
+						laterNanos / 1e6 / (sourceCodes.size() - 100), getResidentMemory() / 1024 / 1024, (runtime.totalMemory() - runtime.freeMemory()) / 1024 / 1024));
+				usagiSearchEngine.close();
+			}
+		}
+		Global.dbEngine.shutdown();
+	}
+
+	/**
+	 * @return The resident set size of the process in bytes, or -1 if it cannot be determined (only supported on Linux)
+	 */
+	private static long getResidentMemory() {
+		File status = new File("/proc/self/status");
+		if (!status.exists())
+			return -1;
+		for (String line : new ReadTextFile(status.getAbsolutePath()))
+			if (line.startsWith("VmRSS:"))
+				return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+		return -1;
+	}
+
+	private static double averageLength(List<SourceCode> sourceCodes) {
+		double sum = 0;
+		for (SourceCode sourceCode : sourceCodes)
+			sum += sourceCode.sourceName.length();
+		return sum / sourceCodes.size();
+	}
+
+	private static int countDifferences(List<List<ScoredConcept>> results1, List<List<ScoredConcept>> results2) {
+		int count = 0;
+		for (int i = 0; i < results1.size(); i++) {
+			List<ScoredConcept> concepts1 = results1.get(i);
+			List<ScoredConcept> concepts2 = results2.get(i);
+			boolean same = concepts1.size() == concepts2.size();
+			for (int j = 0; same && j < concepts1.size(); j++)
+				same = concepts1.get(j).concept.conceptId == concepts2.get(j).concept.conceptId
+						&& concepts1.get(j).matchScore == concepts2.get(j).matchScore;
+			if (!same)
+				count++;
+		}
+		return count;
+	}
+
+	private static long countMatches(IndexReader reader, Filter filter) throws IOException {
+		long count = 0;
+		for (AtomicReaderContext context : reader.leaves()) {
+			DocIdSet docIdSet = filter.getDocIdSet(context, context.reader().getLiveDocs());
+			if (docIdSet == null)
+				continue;
+			DocIdSetIterator iterator = docIdSet.iterator();
+			if (iterator == null)
+				continue;
+			while (iterator.nextDoc() != DocIdSetIterator.NO_MORE_DOCS)
+				count++;
+		}
+		return count;
+	}
+
+	private static List<SourceCode> createSourceCodes(String folder, int sourceCodeCount) throws IOException {
+		IndexReader reader = DomainShards.open(new File(folder + "/" + UsagiSearchEngine.MAIN_INDEX_FOLDER));
+		Random random = new Random(0);
+		List<SourceCode> sourceCodes = new ArrayList<SourceCode>(sourceCodeCount);
+		while (sourceCodes.size() < sourceCodeCount) {
+			String term = reader.document(random.nextInt(reader.maxDoc())).get("TERM");
+			if (term == null || term.length() < 2)
+				continue;
+			int drop = random.nextInt(term.length());
+			SourceCode sourceCode = new SourceCode();
+			sourceCode.sourceCode = Integer.toString(sourceCodes.size());
+			sourceCode.sourceName = term.substring(0, drop) + term.substring(drop + 1);
+			sourceCodes.add(sourceCode);
+		}
+		reader.close();
+		return sourceCodes;
+	}
+
+	private static double rescore(IndexReader reader, IdfTable idfTable, int[][] hits) throws IOException {
+		double checksum = 0;
+		int numDocs = reader.numDocs();
+		for (int[] searchHits : hits)
+			for (int doc : searchHits) {
+				Terms vector = reader.getTermVector(doc, "TERM");
+				if (vector == null)
+					continue;
+				TermsEnum termsEnum = vector.iterator(null);
+				BytesRef text;
+				double l2 = 0;
+				while ((text = termsEnum.next()) != null) {
+					double idf;
+					if (idfTable == null)
+						idf = Math.log(numDocs / (double) reader.docFreq(new Term("TERM", text)));
+					else
+						idf = idfTable.idf(text);
+					l2 += idf * idf;
+				}
+				checksum += Math.sqrt(l2);
+			}
+		return checksum;
+	}
+}
@@ -17,17 +17,26 @@ package org.ohdsi.usagi.ui;
 
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
+import java.awt.event.FocusAdapter;
+import java.awt.event.FocusEvent;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.Vector;
 
 import javax.swing.BorderFactory;
 import javax.swing.JCheckBox;
 import javax.swing.JPanel;
+import javax.swing.JTextField;
+
+import org.ohdsi.usagi.Concept;
 
 public class FilterPanel extends JPanel {
 
 	private static final long serialVersionUID = 1378433878412231259L;
+	private static final String ANCESTOR_FIELD_TOOL_TIP = "One or more concept IDs, separated by commas. Press enter to apply";
 	private JCheckBox filterByAutoCheckBox;
 	private JCheckBox filterStandardCheckBox;
 	private JCheckBox filterByConceptClassCheckBox;
@@ -37,7 +46,10 @@ public class FilterPanel extends JPanel {
 	private CheckedComboBox filterConceptClassComboBox;
 	private CheckedComboBox filterVocabularyComboBox;
 	private CheckedComboBox filterDomainComboBox;
+	private JCheckBox filterByAncestorCheckBox;
+	private JTextField filterAncestorField;
 	private List<FilterChangeListener> listeners = new ArrayList<>();
+	private Set<Integer> appliedAncestorConceptIds = Collections.emptySet();
 
 	public FilterPanel() {
 		setBorder(BorderFactory.createTitledBorder("Filters"));
@@ -133,6 +145,46 @@ public class FilterPanel extends JPanel {
 		includeSourceTermsCheckbox.addActionListener(actionEvent -> notifyListeners());
 		add(includeSourceTermsCheckbox, c);
 
+		c.gridx = 2;
+		c.gridy = 3;
+		c.weightx = 0.1;
+		c.gridwidth = 1;
+		filterByAncestorCheckBox = new JCheckBox("Filter by ancestor concept IDs:", false);
+		filterByAncestorCheckBox.setToolTipText("Limit the search to descendants of these concepts, for instance a disease group or an ATC class");
+		filterByAncestorCheckBox.addActionListener(actionEvent -> notifyListeners());
+		add(filterByAncestorCheckBox, c);
+
+		c.gridx = 3;
+		c.gridy = 3;
+		c.weightx = 1;
+		c.gridwidth = 1;
+		c.fill = GridBagConstraints.HORIZONTAL;
+		filterAncestorField = new JTextField();
+		filterAncestorField.setToolTipText(ANCESTOR_FIELD_TOOL_TIP);
+		filterAncestorField.addActionListener(actionEvent -> ancestorsChanged());
+		filterAncestorField.addFocusListener(new FocusAdapter() {
+			@Override
+			public void focusLost(FocusEvent e) {
+				ancestorsChanged();
+			}
+		});
+		add(filterAncestorField, c);
+	}
+
+	private void ancestorsChanged() {
+		Set<Integer> ancestorConceptIds = getAncestorConceptIds();
+		if (ancestorConceptIds.equals(appliedAncestorConceptIds))
+			return;
+		appliedAncestorConceptIds = ancestorConceptIds;
+		// Show the names of the ancestors, so the user can check the IDs:
+		StringBuilder toolTip = new StringBuilder("<html>");
+		for (int conceptId : ancestorConceptIds) {
+			Concept concept = Global.dbEngine == null ? null : Global.dbEngine.getConcept(conceptId);
+			toolTip.append(conceptId).append(": ").append(concept == null ? "unknown concept" : concept.conceptName).append("<br>");
+		}
+		filterAncestorField.setToolTipText(ancestorConceptIds.size() == 0 ? ANCESTOR_FIELD_TOOL_TIP : toolTip.append("</html>").toString());
+		if (filterByAncestorCheckBox.isSelected())
+			notifyListeners();
 	}
 
 	private void notifyListeners() {
@@ -183,4 +235,23 @@ public class FilterPanel extends JPanel {
 	public Vector<String> getDomain() {
 		return filterDomainComboBox.getSelectedItems();
 	}
+
+	public boolean getFilterByAncestors() {
+		return filterByAncestorCheckBox.isSelected();
+	}
+
+	/**
+	 * @return The concept IDs typed in the ancestor field. Anything that is not a number is ignored
+	 */
+	public Set<Integer> getAncestorConceptIds() {
+		Set<Integer> conceptIds = new TreeSet<>();
+		for (String value : filterAncestorField.getText().split("[^0-9]+"))
+			if (value.length() > 0)
+				try {
+					conceptIds.add(Integer.parseInt(value));
+				} catch (NumberFormatException e) {
+					// Too large to be a concept ID
+				}
+		return conceptIds;
+	}
 }
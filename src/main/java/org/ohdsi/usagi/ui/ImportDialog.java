@@ -21,12 +21,12 @@ import java.awt.event.ActionListener;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.Vector;
-import java.util.concurrent.ForkJoinPool;
 
 import javax.swing.BorderFactory;
 import javax.swing.Box;
@@ -46,6 +46,8 @@ import javax.swing.table.TableModel;
 import org.ohdsi.usagi.CodeMapping;
 import org.ohdsi.usagi.CodeMapping.MappingStatus;
 import org.ohdsi.usagi.MappingTarget;
+import org.ohdsi.usagi.MapsToRelationship;
+import org.ohdsi.usagi.SearchSettings;
 import org.ohdsi.usagi.SourceCode;
 import org.ohdsi.usagi.UsagiSearchEngine.ScoredConcept;
 import org.ohdsi.utilities.ReadXlsxFile;
@@ -60,6 +62,9 @@ public class ImportDialog extends JDialog {
 	private static final long		serialVersionUID		= 8119661833870381094L;
 	private static String			CONCEPT_IDS				= "Auto concept ID column";
 	private static String			ATC						= "ATC column";
+	private static String			CONCEPT_CODES			= "Concept code column";
+	private static String			ANY_VOCABULARY			= "Any vocabulary";
+	private static int				SEARCH_BLOCK_SIZE		= 1000;
 	private List<String>			columnNames				= new ArrayList<String>();
 	private String[]				comboBoxOptions;
 	private List<List<String>>		data					= new ArrayList<List<String>>();
@@ -71,6 +76,7 @@ public class ImportDialog extends JDialog {
 	private JComboBox<String>		sourceNameColumn;
 	private JComboBox<String>		sourceFrequencyColumn;
 	private JComboBox<String>		autoConceptIdColumn;
+	private JComboBox<String>		conceptCodeVocabulary;
 	private List<JComboBox<String>>	additionalInfoColumns	= new ArrayList<JComboBox<String>>();
 	private int						gridY;
 
@@ -227,10 +233,10 @@ public class ImportDialog extends JDialog {
 
 		cLabel.gridy++;
 		cBox.gridy++;
-		conceptIdsOrAtc = new JComboBox<>(new String[] { CONCEPT_IDS, ATC });
+		conceptIdsOrAtc = new JComboBox<>(new String[] { CONCEPT_IDS, ATC, CONCEPT_CODES });
 		columnMappingPanel.add(conceptIdsOrAtc, cLabel);
 		autoConceptIdColumn = new JComboBox<>(comboBoxOptions);
-		autoConceptIdColumn.setToolTipText("The column containing a (semicolon-delimited) list of concept IDs to which the search will be restricted");
+		autoConceptIdColumn.setToolTipText("The column containing a (semicolon-delimited) list of concept IDs or codes to which the search will be restricted");
 		columnMappingPanel.add(autoConceptIdColumn, cBox);
 		autoConceptIdColumn.addActionListener(e -> {
 			if (!autoConceptIdColumn.getSelectedItem().toString().isEmpty()) {
@@ -238,6 +244,19 @@ public class ImportDialog extends JDialog {
 			}
 		});
 
+		cLabel.gridy++;
+		cBox.gridy++;
+		columnMappingPanel.add(new JLabel("Concept code vocabulary"), cLabel);
+		conceptCodeVocabulary = new JComboBox<>();
+		conceptCodeVocabulary.addItem(ANY_VOCABULARY);
+		if (Global.vocabularyIds != null)
+			for (String vocabularyId : Global.vocabularyIds)
+				conceptCodeVocabulary.addItem(vocabularyId);
+		conceptCodeVocabulary.setToolTipText("The vocabulary of the codes in the concept code column");
+		conceptCodeVocabulary.setEnabled(false);
+		columnMappingPanel.add(conceptCodeVocabulary, cBox);
+		conceptIdsOrAtc.addActionListener(e -> conceptCodeVocabulary.setEnabled(conceptIdsOrAtc.getSelectedItem().toString().equals(CONCEPT_CODES)));
+
 		gridY = cLabel.gridy + 1;
 		addExtraColumnMapping();
 
@@ -288,7 +307,7 @@ public class ImportDialog extends JDialog {
 			}
 			if (filterPanel.getFilterByAuto() && autoConceptIdColumn.getSelectedItem().toString().equals("")) {
 				JOptionPane.showMessageDialog(this,
-						"Must select an auto concept ID column / ATC column when filtering by automatically selected concept IDs / ATC code",
+						"Must select an auto concept ID column / ATC column / concept code column when filtering by automatically selected concept IDs / ATC codes / concept codes",
 						"Cannot complete import", JOptionPane.ERROR_MESSAGE);
 				return;
 			}
@@ -307,6 +326,12 @@ public class ImportDialog extends JDialog {
 					return;
 				}
 			}
+			if (conceptIdsOrAtc.getSelectedItem().toString().equals(CONCEPT_CODES) && !Global.dbEngine.hasConceptCodes()) {
+				JOptionPane.showMessageDialog(this,
+						"A concept code column is selected, but the index was built by an older version of Usagi and does not contain the concept codes. Please rebuild the index.",
+						"Concept codes missing", JOptionPane.ERROR_MESSAGE);
+				return;
+			}
 
 			List<SourceCode> sourceCodes = createSourceCodes();
 
@@ -353,6 +378,9 @@ public class ImportDialog extends JDialog {
 			if (index != -1)
 				additionalInfoIndexes.add(index);
 		}
+		Map<String, Set<Integer>> codeToConceptIds = null;
+		if (sourceAutoIndex != -1 && conceptIdsOrAtc.getSelectedItem().toString().equals(CONCEPT_CODES))
+			codeToConceptIds = resolveConceptCodes(sourceAutoIndex);
 		List<SourceCode> sourceCodes = new ArrayList<SourceCode>();
 		for (List<String> row : data) {
 			SourceCode sourceCode = new SourceCode();
@@ -372,6 +400,9 @@ public class ImportDialog extends JDialog {
 					for (String conceptId : row.get(sourceAutoIndex).split(";"))
 						if (!conceptId.equals(""))
 							sourceCode.sourceAutoAssignedConceptIds.add(Integer.parseInt(conceptId));
+				} else if (codeToConceptIds != null) {
+					for (String conceptCode : row.get(sourceAutoIndex).split(";"))
+						sourceCode.sourceAutoAssignedConceptIds.addAll(codeToConceptIds.getOrDefault(conceptCode, Collections.emptySet()));
 				} else {
 					Set<Integer> conceptIds = Global.dbEngine.getRxNormConceptIds(row.get(sourceAutoIndex));
 					sourceCode.sourceAutoAssignedConceptIds.addAll(conceptIds);
@@ -383,6 +414,33 @@ public class ImportDialog extends JDialog {
 		return sourceCodes;
 	}
 
+	/**
+	 * Resolves all codes in the concept code column at once. Concepts that map to a standard concept are replaced by that concept, so the search is
+	 * restricted to concepts that can be mapped to.
+	 *
+	 * @return A map from code to the concept IDs of that code. Codes that are not found are not in the map
+	 */
+	private Map<String, Set<Integer>> resolveConceptCodes(int conceptCodeIndex) {
+		Set<String> conceptCodes = new HashSet<String>();
+		for (List<String> row : data)
+			for (String conceptCode : row.get(conceptCodeIndex).split(";"))
+				conceptCodes.add(conceptCode);
+		String vocabularyId = conceptCodeVocabulary.getSelectedItem().toString();
+		Map<String, Set<Integer>> codeToConceptIds = Global.dbEngine.getConceptIdsByCodes(vocabularyId.equals(ANY_VOCABULARY) ? null : vocabularyId,
+				conceptCodes);
+		Map<Integer, Integer> conceptIdToStandard = new HashMap<Integer, Integer>();
+		for (Map.Entry<String, Set<Integer>> entry : codeToConceptIds.entrySet()) {
+			Set<Integer> standardConceptIds = new HashSet<Integer>();
+			for (int conceptId : entry.getValue())
+				standardConceptIds.add(conceptIdToStandard.computeIfAbsent(conceptId, id -> {
+					MapsToRelationship mapsToRelationship = Global.dbEngine.getMapsToRelationship(id);
+					return mapsToRelationship == null ? id : mapsToRelationship.conceptId2;
+				}));
+			entry.setValue(standardConceptIds);
+		}
+		return codeToConceptIds;
+	}
+
 	private class ImportCodesThread extends Thread {
 		private JProgressBar		progressBar;
 		private List<SourceCode>	sourceCodes;
@@ -398,39 +456,29 @@ public class ImportDialog extends JDialog {
 			try {
 				Global.usagiSearchEngine.createDerivedIndex(sourceCodes, null);
 
-				boolean filterStandard = filterPanel.getFilterStandard();
-				Vector<String> filterConceptClasses = null;
+				SearchSettings settings = new SearchSettings();
+				settings.filterByAutoConceptIds = filterPanel.getFilterByAuto();
+				settings.filterStandard = filterPanel.getFilterStandard();
 				if (filterPanel.getFilterByConceptClasses())
-					filterConceptClasses = filterPanel.getConceptClass();
-				Vector<String> filterVocabularies = null;
+					settings.filterConceptClasses = filterPanel.getConceptClass();
 				if (filterPanel.getFilterByVocabularies())
-					filterVocabularies = filterPanel.getVocabulary();
-				Vector<String> filterDomains = null;
+					settings.filterVocabularies = filterPanel.getVocabulary();
 				if (filterPanel.getFilterByDomains())
-					filterDomains = filterPanel.getDomain();
-				boolean includeSourceConcepts = filterPanel.getIncludeSourceTerms();
-				final Vector<String> filterConceptClassesFinal = filterConceptClasses;
-				final Vector<String> filterVocabulariesFinal = filterVocabularies;
-				final Vector<String> filterDomainsFinal = filterDomains;
+					settings.filterDomains = filterPanel.getDomain();
+				settings.includeSourceConcepts = filterPanel.getIncludeSourceTerms();
+				if (filterPanel.getFilterByAncestors())
+					settings.filterAncestorConceptIds = filterPanel.getAncestorConceptIds();
 
 				Global.mapping.clear();
 
-				List<CodeMapping> globalMappingList = Collections.synchronizedList(Global.mapping);
-				Integer threadCount = Runtime.getRuntime().availableProcessors();
-				if (threadCount <= 0) {
-					threadCount = 1;
-				}
-
-				// Note: Lucene's and BerkeleyDB's search objects are thread safe, so do not need to be recreated for each thread.
-				ForkJoinPool forkJoinPool = new ForkJoinPool(threadCount);
-				forkJoinPool.submit(() -> sourceCodes.parallelStream().forEach(sourceCode -> {
-					Set<Integer> filterConceptIds = null;
-					if (filterPanel.getFilterByAuto())
-						filterConceptIds = sourceCode.sourceAutoAssignedConceptIds;
-					try {
+				// Search in blocks, so the progress bar can be updated in between:
+				for (int start = 0; start < sourceCodes.size(); start += SEARCH_BLOCK_SIZE) {
+					List<SourceCode> block = sourceCodes.subList(start, Math.min(start + SEARCH_BLOCK_SIZE, sourceCodes.size()));
+					List<List<ScoredConcept>> blockConcepts = Global.usagiSearchEngine.searchBatch(block, settings, 1);
+					for (int i = 0; i < block.size(); i++) {
+						SourceCode sourceCode = block.get(i);
+						List<ScoredConcept> concepts = blockConcepts.get(i);
 						CodeMapping codeMapping = new CodeMapping(sourceCode);
-						List<ScoredConcept> concepts = Global.usagiSearchEngine.search(sourceCode.sourceName, true, filterConceptIds, filterDomainsFinal,
-								filterConceptClassesFinal, filterVocabulariesFinal, filterStandard, includeSourceConcepts);
 						if (concepts.size() > 0) {
 							codeMapping.getTargetConcepts().add(new MappingTarget(concepts.get(0).concept, "<auto>"));
 							codeMapping.setMatchScore(concepts.get(0).matchScore);
@@ -445,15 +493,10 @@ public class ImportDialog extends JDialog {
 							codeMapping.setMappingStatus(MappingStatus.AUTO_MAPPED);
 						}
 						codeMapping.setEquivalence(CodeMapping.Equivalence.UNREVIEWED);
-						synchronized (globalMappingList) {
-							globalMappingList.add(codeMapping);
-							progressBar.setValue(Math.round(100 * globalMappingList.size() / sourceCodes.size()));
-						}
-					} catch (Exception e) {
-						System.out.println(e.toString());
+						Global.mapping.add(codeMapping);
 					}
-				})).get();
-				forkJoinPool.shutdown();
+					progressBar.setValue(Math.round(100 * Global.mapping.size() / sourceCodes.size()));
+				}
 				dialog.setVisible(false);
 				Global.applyPreviousMappingAction.setEnabled(true);
 				Global.saveAction.setEnabled(true);
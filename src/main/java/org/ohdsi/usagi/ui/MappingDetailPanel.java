@@ -23,6 +23,7 @@ import java.awt.GridBagLayout;
 import java.awt.Rectangle;
 import java.util.*;
 import java.util.Timer;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.swing.*;
 import javax.swing.event.DocumentEvent;
@@ -64,6 +65,7 @@ public class MappingDetailPanel extends JPanel implements CodeSelectedListener,
 	private List<CodeMapping> 					codeMappingsFromMulti;
 	private FilterPanel							filterPanel;
 	private Timer								timer;
+	private AtomicLong							searchGeneration	= new AtomicLong();
 
 	public MappingDetailPanel() {
 		super();
@@ -159,6 +161,7 @@ public class MappingDetailPanel extends JPanel implements CodeSelectedListener,
 				doSearch();
 			}
 		});
+		new QuerySuggestionPopup(manualQueryField, prefix -> Global.usagiSearchEngine == null ? null : Global.usagiSearchEngine.suggest(prefix, 10));
 		panel.add(manualQueryField, c);
 		return panel;
 	}
@@ -529,7 +532,20 @@ public class MappingDetailPanel extends JPanel implements CodeSelectedListener,
 		Global.mapping.fireDataChanged(SIMPLE_UPDATE_EVENT);
 	}
 
+	/**
+	 * Searches in the background. Each search carries the search generation at the time it was requested. When a newer search is requested, the running search
+	 * is cancelled, and its results are never shown.
+	 */
 	private class SearchTask extends TimerTask {
+		private long generation;
+
+		public SearchTask(long generation) {
+			this.generation = generation;
+		}
+
+		private boolean isSuperseded() {
+			return searchGeneration.get() != generation;
+		}
 
 		@Override
 		public void run() {
@@ -556,24 +572,37 @@ public class MappingDetailPanel extends JPanel implements CodeSelectedListener,
 			}
 
 			boolean includeSourceConcepts = filterPanel.getIncludeSourceTerms();
+			Set<Integer> filterAncestorConceptIds = null;
+			if (filterPanel.getFilterByAncestors())
+				filterAncestorConceptIds = filterPanel.getAncestorConceptIds();
 
+			List<ScoredConcept> searchResults = null;
 			if (Global.usagiSearchEngine.isOpenForSearching()) {
-				List<ScoredConcept> searchResults = Global.usagiSearchEngine.search(query, true, filterConceptIds, filterDomains, filterConceptClasses,
-						filterVocabularies, filterStandard, includeSourceConcepts);
-
-				searchTableModel.setScoredConcepts(searchResults);
-				searchTable.scrollRectToVisible(new Rectangle(searchTable.getCellRect(0, 0, true)));
+				searchResults = Global.usagiSearchEngine.search(query, true, filterConceptIds, filterDomains, filterConceptClasses, filterVocabularies,
+						filterStandard, includeSourceConcepts, filterAncestorConceptIds, this::isSuperseded);
+				if (searchResults == null)
+					return;
 			}
-			Global.statusBar.setSearching(false);
+			List<ScoredConcept> finalSearchResults = searchResults;
+			SwingUtilities.invokeLater(() -> {
+				if (isSuperseded())
+					return;
+				if (finalSearchResults != null) {
+					searchTableModel.setScoredConcepts(finalSearchResults);
+					searchTable.scrollRectToVisible(new Rectangle(searchTable.getCellRect(0, 0, true)));
+				}
+				Global.statusBar.setSearching(false);
+			});
 		}
 	}
 
 	public void doSearch() {
 		Global.statusBar.setSearching(true);
+		long generation = searchGeneration.incrementAndGet();
 		if (timer != null)
 			timer.cancel();
 		timer = new Timer();
-		timer.schedule(new SearchTask(), 500);
+		timer.schedule(new SearchTask(generation), 500);
 	}
 
 	class SourceCodeTableModel extends AbstractTableModel {
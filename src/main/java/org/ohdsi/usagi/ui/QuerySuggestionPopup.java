@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi.ui;
+
+import java.awt.Dimension;
+import java.awt.Insets;
+import java.awt.event.ActionEvent;
+import java.awt.event.FocusAdapter;
+import java.awt.event.FocusEvent;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.List;
+import java.util.function.Function;
+
+import javax.swing.AbstractAction;
+import javax.swing.DefaultListModel;
+import javax.swing.JComponent;
+import javax.swing.JList;
+import javax.swing.JPopupMenu;
+import javax.swing.JTextField;
+import javax.swing.KeyStroke;
+import javax.swing.ListSelectionModel;
+import javax.swing.SwingUtilities;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+
+/**
+ * Shows completions of the text typed in a text field in a list below the field. The list is updated on every key stroke. The arrow keys move through the
+ * list, and enter or a mouse click replaces the text with the selected completion. The text field keeps the focus while the list is shown.
+ */
+public class QuerySuggestionPopup {
+
+	private JTextField						textField;
+	private Function<String, List<String>>	suggester;
+	private JPopupMenu						popup		= new JPopupMenu();
+	private DefaultListModel<String>		listModel	= new DefaultListModel<String>();
+	private JList<String>					list		= new JList<String>(listModel);
+	private boolean							accepting	= false;
+
+	/**
+	 * @param suggester
+	 *            Returns the completions of the text, best first
+	 */
+	public QuerySuggestionPopup(JTextField textField, Function<String, List<String>> suggester) {
+		this.textField = textField;
+		this.suggester = suggester;
+		popup.setFocusable(false);
+		list.setFocusable(false);
+		list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		list.addMouseListener(new MouseAdapter() {
+
+			@Override
+			public void mouseClicked(MouseEvent event) {
+				int index = list.locationToIndex(event.getPoint());
+				if (index != -1)
+					accept(listModel.get(index));
+			}
+		});
+		popup.add(list);
+
+		textField.getDocument().addDocumentListener(new DocumentListener() {
+
+			@Override
+			public void removeUpdate(DocumentEvent event) {
+				textChanged();
+			}
+
+			@Override
+			public void insertUpdate(DocumentEvent event) {
+				textChanged();
+			}
+
+			@Override
+			public void changedUpdate(DocumentEvent event) {
+			}
+		});
+		textField.addFocusListener(new FocusAdapter() {
+
+			@Override
+			public void focusLost(FocusEvent event) {
+				popup.setVisible(false);
+			}
+		});
+		addKeyAction(KeyEvent.VK_DOWN, "suggestion-next", () -> moveSelection(1));
+		addKeyAction(KeyEvent.VK_UP, "suggestion-previous", () -> moveSelection(-1));
+		addKeyAction(KeyEvent.VK_ENTER, "suggestion-accept", () -> {
+			if (list.getSelectedIndex() != -1)
+				accept(list.getSelectedValue());
+		});
+		addKeyAction(KeyEvent.VK_ESCAPE, "suggestion-hide", () -> popup.setVisible(false));
+	}
+
+	/**
+	 * Binds a key to an action that is only performed while the list is shown.
+	 */
+	private void addKeyAction(int keyCode, String name, Runnable action) {
+		textField.getInputMap(JComponent.WHEN_FOCUSED).put(KeyStroke.getKeyStroke(keyCode, 0), name);
+		textField.getActionMap().put(name, new AbstractAction() {
+			private static final long serialVersionUID = 3592284417318652903L;
+
+			@Override
+			public void actionPerformed(ActionEvent event) {
+				if (popup.isVisible())
+					action.run();
+			}
+		});
+	}
+
+	private void textChanged() {
+		// The document must not be read while it is notifying its listeners:
+		if (!accepting)
+			SwingUtilities.invokeLater(this::updateSuggestions);
+	}
+
+	private void updateSuggestions() {
+		String text = textField.getText();
+		List<String> suggestions = textField.isFocusOwner() ? suggester.apply(text) : null;
+		if (suggestions == null || suggestions.isEmpty() || (suggestions.size() == 1 && suggestions.get(0).equalsIgnoreCase(text.trim()))) {
+			popup.setVisible(false);
+			return;
+		}
+		listModel.clear();
+		for (String suggestion : suggestions)
+			listModel.addElement(suggestion);
+		list.setVisibleRowCount(listModel.size());
+		Dimension listSize = list.getPreferredSize();
+		Insets insets = popup.getInsets();
+		popup.setPopupSize(Math.max(textField.getWidth(), listSize.width + insets.left + insets.right), listSize.height + insets.top + insets.bottom);
+		if (popup.isVisible())
+			popup.pack();
+		else
+			popup.show(textField, 0, textField.getHeight());
+	}
+
+	private void moveSelection(int step) {
+		int index = list.getSelectedIndex() + step;
+		if (index < 0 || index >= listModel.size())
+			index = -1;
+		if (index == -1)
+			list.clearSelection();
+		else {
+			list.setSelectedIndex(index);
+			list.ensureIndexIsVisible(index);
+		}
+	}
+
+	private void accept(String suggestion) {
+		popup.setVisible(false);
+		accepting = true;
+		try {
+			textField.setText(suggestion);
+		} finally {
+			accepting = false;
+		}
+		textField.requestFocusInWindow();
+	}
+}
@@ -31,6 +31,7 @@ import javax.swing.JLabel;
 import javax.swing.JPanel;
 
 import org.ohdsi.usagi.BerkeleyDbEngine.BerkeleyDbStats;
+import org.ohdsi.usagi.QueryResultCache;
 import org.ohdsi.utilities.files.ReadTextFile;
 
 public class ShowStatsDialog extends JDialog {
@@ -40,6 +41,7 @@ public class ShowStatsDialog extends JDialog {
 	public ShowStatsDialog() {
 		int termCount = Global.usagiSearchEngine.getTermCount();
 		BerkeleyDbStats berkeleyDbStats = Global.dbEngine.getStats();
+		QueryResultCache queryResultCache = Global.usagiSearchEngine.getQueryResultCache();
 		NumberFormat numberFormat = NumberFormat.getNumberInstance(Locale.US);
 		
 		setTitle("Index statistics");
@@ -92,6 +94,14 @@ public class ShowStatsDialog extends JDialog {
 
 		g.gridx = 0;
 		g.gridy = 5;
+		add(new JLabel("Search result cache:"), g);
+		
+		g.gridx = 1;
+		g.gridy = 5;
+		add(new JLabel(numberFormat.format(queryResultCache.getHitCount()) + " hits, " + numberFormat.format(queryResultCache.getMissCount()) + " misses"), g);
+
+		g.gridx = 0;
+		g.gridy = 6;
 		g.gridwidth = 2;
 
 		JPanel buttonPanel = new JPanel();
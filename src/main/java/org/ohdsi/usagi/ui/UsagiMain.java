@@ -151,6 +151,9 @@ public class UsagiMain implements ActionListener {
 		frame.pack();
 		frame.setVisible(true);
 
+		if (Global.usagiSearchEngine.mainIndexExists() && Global.usagiSearchEngine.getIndexSettings().warmUp)
+			startWarmUp();
+
 		if (!Global.usagiSearchEngine.mainIndexExists()) {
 			if (!skipRebuildIndexAction) {
 				Global.rebuildIndexAction.actionPerformed(null);
@@ -162,6 +165,35 @@ public class UsagiMain implements ActionListener {
 		}
 	}
 
+	/**
+	 * Warms up the search index and the concept database on a background thread, so the first search is as fast as later ones. The index takes about two
+	 * thirds of the warm-up time.
+	 */
+	private void startWarmUp() {
+		Global.statusBar.setWarmUpProgress(0);
+		Thread thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					Global.usagiSearchEngine.warmUp(percent -> showWarmUpProgress((2 * percent) / 3));
+					Global.dbEngine.warmUp(percent -> showWarmUpProgress(66 + percent / 3));
+				} catch (Exception e) {
+					System.err.println("Error warming up: " + e.getMessage());
+				} finally {
+					showWarmUpProgress(100);
+				}
+			}
+		}, "Index warm-up");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	private static void showWarmUpProgress(int percent) {
+		SwingUtilities.invokeLater(() -> Global.statusBar.setWarmUpProgress(percent));
+	}
+
 	private void loadVocabularyVersion(String folder) {
 		String versionFileName = folder + "/vocabularyVersion.txt";
 		Global.vocabularyVersion = "Unknown";
@@ -34,6 +34,7 @@ public class UsagiStatusBar extends JPanel implements DataChangeListener {
 	private JLabel				percentLabel;
 	private JLabel				authorLabel;
 	private JLabel				searchLabel;
+	private JLabel				warmUpLabel;
 	private DecimalFormat		percentFormatter	= new DecimalFormat("##0.0");
 
 	public UsagiStatusBar() {
@@ -65,6 +66,12 @@ public class UsagiStatusBar extends JPanel implements DataChangeListener {
 		searchLabel.setVisible(false);
 		add(searchLabel);
 
+		warmUpLabel = new JLabel();
+		warmUpLabel.setForeground(Color.gray);
+		warmUpLabel.setToolTipText("The search index is being loaded into memory. Searches are slower until this has finished");
+		warmUpLabel.setVisible(false);
+		add(warmUpLabel);
+
 		add(Box.createHorizontalGlue());
 
 		authorLabel = new JLabel("Author: " + (Global.author == null ? "" : Global.author));
@@ -81,6 +88,14 @@ public class UsagiStatusBar extends JPanel implements DataChangeListener {
 		searchLabel.setVisible(value);
 	}
 
+	/**
+	 * Shows the progress of the index warm-up. The progress is hidden once it reaches 100 percent.
+	 */
+	public void setWarmUpProgress(int percent) {
+		warmUpLabel.setText("Warming up index: " + percent + "%");
+		warmUpLabel.setVisible(percent < 100);
+	}
+
 	private void update() {
 		int approved = 0;
 		long totalFreq = 0;
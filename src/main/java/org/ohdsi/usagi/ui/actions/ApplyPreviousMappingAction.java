@@ -100,7 +100,6 @@ public class ApplyPreviousMappingAction extends AbstractAction {
 			Global.mappingDetailPanel.updateUI();
 			Global.mapping.fireDataChanged(APPROVE_EVENT); // To update the footer
 			if (mappingsAdded > 0) {
-				Global.usagiSearchEngine.close();
 				Global.usagiSearchEngine.createDerivedIndex(Global.mapping.getSourceCodes(), Global.frame);
 				Global.mappingDetailPanel.doSearch();
 			}
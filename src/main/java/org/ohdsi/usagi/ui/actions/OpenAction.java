@@ -61,7 +61,6 @@ public class OpenAction extends AbstractAction {
 		Global.filename = file.getAbsolutePath();
 		Global.folder = file.getParentFile().getAbsolutePath();
 		Global.mapping.loadFromFile(Global.filename);
-		Global.usagiSearchEngine.close();
 		Global.usagiSearchEngine.createDerivedIndex(Global.mapping.getSourceCodes(), Global.frame);
 		Global.mappingDetailPanel.doSearch();
 		Global.applyPreviousMappingAction.setEnabled(true);
@@ -0,0 +1,96 @@
+package org.ohdsi.usagi;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.ohdsi.utilities.DirectoryUtilities;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BerkeleyDbEngineTest {
+
+	@Test
+	public void testConceptCodesWithDifferentPunctuationOnlyMatchInIcd() throws IOException {
+		File folder = Files.createTempDirectory("usagi").toFile();
+		BerkeleyDbEngine dbEngine = new BerkeleyDbEngine(folder.getAbsolutePath());
+		try {
+			dbEngine.createDatabase();
+			// NDC codes in 4-4-2 and 5-3-2 format that only differ in the position of the hyphens:
+			dbEngine.putConceptCode("NDC", "1234-5678-90", 1);
+			dbEngine.putConceptCode("NDC", "12345-678-90", 2);
+			dbEngine.putConceptCode("ICD10CM", "E11.9", 3);
+			dbEngine.putConceptCode("ICD9CM", "250.00", 4);
+			// A code without dots in a vocabulary where it is not an ICD code:
+			dbEngine.putConceptCode("Read", "E119", 5);
+
+			Map<String, Set<Integer>> codeToConceptIds = dbEngine.getConceptIdsByCodes("NDC", Arrays.asList("1234-5678-90", "12345-678-90", "1234567890"));
+			assertEquals(Collections.singleton(1), codeToConceptIds.get("1234-5678-90"));
+			assertEquals(Collections.singleton(2), codeToConceptIds.get("12345-678-90"));
+			assertFalse(codeToConceptIds.containsKey("1234567890"));
+
+			codeToConceptIds = dbEngine.getConceptIdsByCodes("ICD10CM", Arrays.asList("E11.9", "e119", " E11.9"));
+			assertEquals(Collections.singleton(3), codeToConceptIds.get("E11.9"));
+			assertEquals(Collections.singleton(3), codeToConceptIds.get("e119"));
+			assertEquals(Collections.singleton(3), codeToConceptIds.get(" E11.9"));
+			assertEquals(Collections.singleton(4), dbEngine.getConceptIdsByCodes("ICD9CM", Arrays.asList("25000")).get("25000"));
+
+			// In all vocabularies, the code with dots only matches the ICD code, the code without dots matches both:
+			codeToConceptIds = dbEngine.getConceptIdsByCodes(null, Arrays.asList("E11.9", "E119", "1234-5678-90", "12345678-90"));
+			assertEquals(Collections.singleton(3), codeToConceptIds.get("E11.9"));
+			assertEquals(new HashSet<Integer>(Arrays.asList(3, 5)), codeToConceptIds.get("E119"));
+			assertEquals(Collections.singleton(1), codeToConceptIds.get("1234-5678-90"));
+			assertFalse(codeToConceptIds.containsKey("12345678-90"));
+			assertEquals(Collections.singleton(3), dbEngine.getConceptIdsByCode("ICD10CM", "E119"));
+			assertTrue(dbEngine.getConceptIdsByCode("NDC", "1234567890").isEmpty());
+		} finally {
+			dbEngine.shutdown();
+			DirectoryUtilities.deleteDir(folder);
+		}
+	}
+
+	@Test
+	public void testConceptCodePrefixesAreScopedByVocabulary() throws IOException {
+		File folder = Files.createTempDirectory("usagi").toFile();
+		BerkeleyDbEngine dbEngine = new BerkeleyDbEngine(folder.getAbsolutePath());
+		try {
+			dbEngine.createDatabase();
+			dbEngine.putConceptCode("NDC", "1234-5678-90", 1);
+			dbEngine.putConceptCode("NDC", "12345-678-90", 2);
+			dbEngine.putConceptCode("ICD10CM", "E11.9", 3);
+			dbEngine.putConceptCode("ICD10CM", "E11.65", 4);
+			dbEngine.putConceptCode("ICD10CM", "E10.9", 5);
+			dbEngine.putConceptCode("Read", "E119", 6);
+
+			// NDC prefixes match exactly, hyphens included:
+			assertEquals(Arrays.asList("1234-5678-90", "12345-678-90"), codesOf(dbEngine.getConceptCodesByPrefix("NDC", "1234", 10)));
+			assertEquals(Arrays.asList("1234-5678-90"), codesOf(dbEngine.getConceptCodesByPrefix("NDC", "1234-", 10)));
+			assertEquals(Arrays.asList("1234-5678-90"), codesOf(dbEngine.getConceptCodesByPrefix("NDC", "1234", 1)));
+
+			// ICD prefixes match with or without dots, in the order of the normalized codes, and skip codes of other vocabularies:
+			assertEquals(Arrays.asList("E11.65", "E11.9"), codesOf(dbEngine.getConceptCodesByPrefix("ICD10CM", "e11.", 10)));
+			assertEquals(Arrays.asList("E11.9"), codesOf(dbEngine.getConceptCodesByPrefix("ICD10CM", "E119", 10)));
+			assertEquals(Arrays.asList("E10.9", "E11.65", "E11.9"), codesOf(dbEngine.getConceptCodesByPrefix("ICD10CM", "E", 10)));
+			assertEquals(Arrays.asList("E119"), codesOf(dbEngine.getConceptCodesByPrefix("Read", "E1", 10)));
+			assertEquals(Collections.singleton(4), dbEngine.getConceptCodesByPrefix("ICD10CM", "E1165", 10).get(0).conceptIds);
+		} finally {
+			dbEngine.shutdown();
+			DirectoryUtilities.deleteDir(folder);
+		}
+	}
+
+	private static List<String> codesOf(List<ConceptCode> conceptCodes) {
+		List<String> codes = new ArrayList<String>();
+		for (ConceptCode conceptCode : conceptCodes)
+			codes.add(conceptCode.conceptCode);
+		return codes;
+	}
+}
@@ -0,0 +1,21 @@
+package org.ohdsi.usagi;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConceptCollapsingCollectorTest {
+
+	@Test
+	public void testRejectsCollectingNoConcepts() {
+		assertThrows(IllegalArgumentException.class, () -> new ConceptCollapsingCollector(0));
+		assertThrows(IllegalArgumentException.class, () -> new ConceptCollapsingCollector(-1, null));
+		ConceptCollapsingCollector collector = new ConceptCollapsingCollector(1);
+		assertThrows(IllegalArgumentException.class, () -> collector.reset(0, null));
+
+		collector.add(1, 0.5f, 0);
+		collector.add(2, 0.8f, 1);
+		assertEquals(1, collector.getScoreDocs().length);
+		assertEquals(1, collector.getScoreDocs()[0].doc);
+	}
+}
@@ -0,0 +1,58 @@
+package org.ohdsi.usagi;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConceptDescendantIndexTest {
+
+	@Test
+	public void testDescendantsMatchPairsAcrossSpilledRuns() throws IOException {
+		int runSize = ConceptDescendantIndex.Builder.RUN_SIZE;
+		// Small runs, so the pairs are spilled to several temporary files and merged:
+		ConceptDescendantIndex.Builder.RUN_SIZE = 1000;
+		File file = Files.createTempFile("descendants", ".bin").toFile();
+		try {
+			TreeMap<Integer, TreeSet<Integer>> expected = new TreeMap<Integer, TreeSet<Integer>>();
+			ConceptDescendantIndex.Builder builder = new ConceptDescendantIndex.Builder();
+			Random random = new Random(0);
+			for (int i = 0; i < 10000; i++) {
+				int ancestorId = 1 + random.nextInt(200);
+				int descendantId = 1 + random.nextInt(2000000000);
+				builder.add(ancestorId, descendantId);
+				// Duplicate pairs are stored once:
+				builder.add(ancestorId, descendantId);
+				expected.computeIfAbsent(ancestorId, k -> new TreeSet<Integer>()).add(descendantId);
+			}
+			builder.add(5000, 5000);
+			builder.write(file);
+
+			try (ConceptDescendantIndex index = ConceptDescendantIndex.open(file)) {
+				assertNotNull(index);
+				assertEquals(expected.size(), index.getAncestorCount());
+				for (int ancestorId : expected.keySet()) {
+					int[] descendants = expected.get(ancestorId).stream().mapToInt(Integer::intValue).toArray();
+					assertArrayEquals(descendants, index.getDescendants(ancestorId));
+				}
+				assertEquals(0, index.getDescendants(5000).length);
+
+				int[] descendantsAndSelf = index.getDescendantsAndSelf(Arrays.asList(1, 2, 5000));
+				TreeSet<Integer> expectedSet = new TreeSet<Integer>(expected.get(1));
+				expectedSet.addAll(expected.get(2));
+				expectedSet.addAll(Arrays.asList(1, 2, 5000));
+				assertArrayEquals(expectedSet.stream().mapToInt(Integer::intValue).toArray(), descendantsAndSelf);
+			}
+		} finally {
+			ConceptDescendantIndex.Builder.RUN_SIZE = runSize;
+			file.delete();
+		}
+	}
+}
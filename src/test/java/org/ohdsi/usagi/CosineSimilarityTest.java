@@ -0,0 +1,243 @@
+package org.ohdsi.usagi;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.FilteredQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Version;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CosineSimilarityTest {
+
+	private static String[]			TERMS	= { "Type 2 diabetes mellitus", "Type 1 diabetes mellitus", "Diabetes mellitus", "Essential hypertension",
+			"Hypertensive heart disease", "Acute renal failure", "Chronic kidney disease stage 3", "Aspirin 500 MG Oral Tablet", "Aspirin",
+			"Paracetamol 500 MG Oral Tablet", "Systolic blood pressure", "Diastolic blood pressure", "Malignant neoplasm of breast", "Breast carcinoma",
+			"Fracture of neck of femur", "Asthma", "Acute bronchitis", "Viral pneumonia", "Bacterial pneumonia", "Glucose [Mass/volume] in Serum or Plasma" };
+	private static String[]			QUERIES	= { "diabetes type 2", "hypertension", "aspirin 500mg tablets", "blood pressure", "breast cancer", "pneumonia",
+			"xyz" };
+
+	private static IndexReader		reader;
+	private static IndexSearcher	searcher;
+	private static IdfTable			idfTable;
+
+	@BeforeAll
+	public static void createIndex() throws IOException {
+		FieldType textVectorField = new FieldType();
+		textVectorField.setIndexed(true);
+		textVectorField.setTokenized(true);
+		textVectorField.setStoreTermVectors(true);
+		textVectorField.setStored(true);
+		textVectorField.freeze();
+
+		RAMDirectory directory = new RAMDirectory();
+		IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(Version.LUCENE_4_9, new UsagiAnalyzer()));
+		for (String term : TERMS) {
+			Document document = new Document();
+			document.add(new Field("TERM", term, textVectorField));
+			document.add(new StringField("CONCEPT_ID", Integer.toString(writer.numDocs()), Store.NO));
+			document.add(new NumericDocValuesField("CONCEPT_ID", writer.numDocs()));
+			writer.addDocument(document);
+			// Spread documents over several segments:
+			if (writer.numDocs() % 7 == 0)
+				writer.commit();
+		}
+		writer.close();
+
+		reader = DirectoryReader.open(directory);
+		idfTable = IdfTable.build(reader, "TERM");
+		searcher = new IndexSearcher(reader);
+		searcher.setSimilarity(new CosineSimilarity(idfTable, DocumentNorms.compute(reader, "TERM", idfTable, -1)));
+	}
+
+	@AfterAll
+	public static void closeIndex() throws IOException {
+		reader.close();
+	}
+
+	@Test
+	public void scoresEqualTfIdfCosine() throws IOException {
+		for (String queryString : QUERIES) {
+			BooleanQuery query = UsagiSearchEngine.createNgramQuery(idfTable, new UsagiAnalyzer(), queryString);
+			TopDocs topDocs = searcher.search(query, TERMS.length);
+			for (ScoreDoc scoreDoc : topDocs.scoreDocs)
+				assertEquals(referenceCosine(query, scoreDoc.doc), scoreDoc.score, 1e-5, "Score of '" + TERMS[scoreDoc.doc] + "' for '" + queryString + "'");
+		}
+	}
+
+	@Test
+	public void topDocsEqualBestTfIdfCosine() throws IOException {
+		int k = 5;
+		for (String queryString : QUERIES) {
+			BooleanQuery query = UsagiSearchEngine.createNgramQuery(idfTable, new UsagiAnalyzer(), queryString);
+			List<Double> expected = new ArrayList<Double>();
+			for (int doc = 0; doc < reader.maxDoc(); doc++) {
+				double cosine = referenceCosine(query, doc);
+				if (cosine > 0)
+					expected.add(cosine);
+			}
+			Collections.sort(expected, Collections.reverseOrder());
+			TopDocs topDocs = searcher.search(query, k);
+			assertEquals(Math.min(k, expected.size()), topDocs.scoreDocs.length);
+			for (int i = 0; i < topDocs.scoreDocs.length; i++)
+				assertEquals(expected.get(i), topDocs.scoreDocs[i].score, 1e-5);
+		}
+	}
+
+	@Test
+	public void identicalTermScoresOne() throws IOException {
+		BooleanQuery query = UsagiSearchEngine.createNgramQuery(idfTable, new UsagiAnalyzer(), "Essential hypertension");
+		TopDocs topDocs = searcher.search(query, 1);
+		assertEquals(Arrays.asList(TERMS).indexOf("Essential hypertension"), topDocs.scoreDocs[0].doc);
+		assertEquals(1.0, topDocs.scoreDocs[0].score, 1e-5);
+	}
+
+	@Test
+	public void maxScoreQueryFindsSameTopConcepts() throws IOException {
+		for (String queryString : QUERIES)
+			for (int k : new int[] { 1, 3, 10 }) {
+				BooleanQuery query = UsagiSearchEngine.createNgramQuery(idfTable, new UsagiAnalyzer(), queryString);
+				ConceptCollapsingCollector expected = new ConceptCollapsingCollector(k);
+				searcher.search(query, expected);
+				ConceptCollapsingCollector actual = new ConceptCollapsingCollector(k);
+				searcher.search(new MaxScoreQuery(query, idfTable), actual);
+				ScoreDoc[] expectedScoreDocs = expected.getScoreDocs();
+				ScoreDoc[] actualScoreDocs = actual.getScoreDocs();
+				assertEquals(expectedScoreDocs.length, actualScoreDocs.length, "Number of concepts for '" + queryString + "', k = " + k);
+				for (int i = 0; i < expectedScoreDocs.length; i++) {
+					assertEquals(expectedScoreDocs[i].doc, actualScoreDocs[i].doc);
+					assertEquals(expectedScoreDocs[i].score, actualScoreDocs[i].score, 1e-6);
+				}
+			}
+	}
+
+	@Test
+	public void conceptIdRestrictionFindsConceptsSharingNoNgrams() throws IOException {
+		int conceptId = Arrays.asList(TERMS).indexOf("Viral pneumonia");
+		for (String queryString : new String[] { "Asthma", "xyz" }) {
+			BooleanQuery query = UsagiSearchEngine.createNgramQuery(idfTable, new UsagiAnalyzer(), queryString);
+			// The concept shares no n-grams with the query:
+			assertEquals(0, searcher.search(new FilteredQuery(query, UsagiSearchEngine.createConceptIdFilter(Arrays.asList(conceptId))), 1).totalHits);
+			for (Query restrictedQuery : new Query[] { UsagiSearchEngine.restrictToConceptIds(query, Arrays.asList(conceptId)),
+					UsagiSearchEngine.restrictToConceptIds(new MaxScoreQuery(query, idfTable), Arrays.asList(conceptId)) }) {
+				ConceptCollapsingCollector collector = new ConceptCollapsingCollector(10);
+				searcher.search(restrictedQuery, collector);
+				ScoreDoc[] scoreDocs = collector.getScoreDocs();
+				assertEquals(1, scoreDocs.length, "Concepts for '" + queryString + "'");
+				assertEquals(conceptId, scoreDocs[0].doc);
+				assertEquals(0, scoreDocs[0].score, 0);
+			}
+		}
+		// Concepts that do share n-grams keep their scores:
+		BooleanQuery query = UsagiSearchEngine.createNgramQuery(idfTable, new UsagiAnalyzer(), "Asthma");
+		ConceptCollapsingCollector collector = new ConceptCollapsingCollector(10);
+		searcher.search(UsagiSearchEngine.restrictToConceptIds(query, Arrays.asList(Arrays.asList(TERMS).indexOf("Asthma"), conceptId)), collector);
+		ScoreDoc[] scoreDocs = collector.getScoreDocs();
+		assertEquals(2, scoreDocs.length);
+		assertEquals(1.0, scoreDocs[0].score, 1e-5);
+		assertEquals(0, scoreDocs[1].score, 0);
+	}
+
+	@Test
+	public void overlaidIdfTableAndNormsEqualThoseComputedOverBoth() throws IOException {
+		RAMDirectory directory = new RAMDirectory();
+		IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(Version.LUCENE_4_9, new UsagiAnalyzer()));
+		for (String term : new String[] { "Diabetes type II", "High blood pressure", "Asthma", "Kidney failure, acute", "Zyxw 42" }) {
+			Document document = new Document();
+			document.add(new TextField("TERM", term, Store.NO));
+			writer.addDocument(document);
+		}
+		writer.close();
+		File statisticsFile = Files.createTempFile("normStatistics", ".bin").toFile();
+		try (IndexReader sourceTermReader = DirectoryReader.open(directory)) {
+			DocumentNorms.compute(reader, "TERM", idfTable, 1, statisticsFile);
+			IdfTable overlaidIdfTable = IdfTable.overlay(idfTable, sourceTermReader, "TERM");
+			DocumentNorms overlaidNorms = DocumentNorms.overlay(statisticsFile, 1, reader, idfTable, sourceTermReader, overlaidIdfTable, "TERM");
+			assertNull(DocumentNorms.overlay(statisticsFile, 2, reader, idfTable, sourceTermReader, overlaidIdfTable, "TERM"));
+
+			IndexReader bothReader = new MultiReader(new IndexReader[] { reader, sourceTermReader }, false);
+			IdfTable expectedIdfTable = IdfTable.build(bothReader, "TERM");
+			DocumentNorms expectedNorms = DocumentNorms.compute(bothReader, "TERM", expectedIdfTable, -1);
+			assertEquals(expectedIdfTable.getTermCount(), overlaidIdfTable.getTermCount());
+			BytesRef term = new BytesRef();
+			for (int ordinal = 0; ordinal < expectedIdfTable.getTermCount(); ordinal++) {
+				expectedIdfTable.term(ordinal, term);
+				assertEquals(expectedIdfTable.docFreq(term), overlaidIdfTable.docFreq(term), term.utf8ToString());
+				assertEquals(expectedIdfTable.idf(term), overlaidIdfTable.idf(term), 0, term.utf8ToString());
+			}
+			assertEquals(expectedNorms.size(), overlaidNorms.size());
+			for (int doc = 0; doc < expectedNorms.size(); doc++)
+				assertEquals(expectedNorms.get(doc), overlaidNorms.get(doc), 1e-6 * expectedNorms.get(doc));
+		} finally {
+			statisticsFile.delete();
+		}
+	}
+
+	/**
+	 * The TF*IDF cosine as it was computed by the rescoring pass over term vectors before the cosine was computed by Lucene itself.
+	 */
+	private static double referenceCosine(BooleanQuery query, int doc) throws IOException {
+		int numDocs = reader.numDocs();
+		Map<BytesRef, Double> queryVector = new TreeMap<BytesRef, Double>();
+		for (BooleanClause clause : query.clauses()) {
+			Term term = ((TermQuery) clause.getQuery()).getTerm();
+			queryVector.put(term.bytes(), Math.log(numDocs / (double) reader.docFreq(term)));
+		}
+		Map<BytesRef, Double> docVector = new TreeMap<BytesRef, Double>();
+		TermsEnum termsEnum = reader.getTermVector(doc, "TERM").iterator(null);
+		BytesRef text;
+		while ((text = termsEnum.next()) != null)
+			docVector.put(BytesRef.deepCopyOf(text), Math.log(numDocs / (double) reader.docFreq(new Term("TERM", text))));
+
+		double dotProduct = 0;
+		for (Map.Entry<BytesRef, Double> entry : queryVector.entrySet())
+			if (docVector.containsKey(entry.getKey()))
+				dotProduct += entry.getValue() * docVector.get(entry.getKey());
+		double queryLength = length(queryVector);
+		double docLength = length(docVector);
+		if (queryLength == 0 || docLength == 0)
+			return 0;
+		else
+			return dotProduct / (queryLength * docLength);
+	}
+
+	private static double length(Map<BytesRef, Double> vector) {
+		double sum = 0;
+		for (double value : vector.values())
+			sum += value * value;
+		return Math.sqrt(sum);
+	}
+}
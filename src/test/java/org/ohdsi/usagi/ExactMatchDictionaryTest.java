@@ -0,0 +1,44 @@
+package org.ohdsi.usagi;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExactMatchDictionaryTest {
+
+	@Test
+	public void testMatchesReportIndexedTerm() throws IOException {
+		ExactMatchDictionary.Builder builder = new ExactMatchDictionary.Builder();
+		builder.add("Asthma", 1, UsagiSearchEngine.CONCEPT_TERM);
+		builder.add("Bronchial  Asthma", 1, UsagiSearchEngine.CONCEPT_TERM);
+		builder.add("bronchial asthma", 2, UsagiSearchEngine.SOURCE_TERM);
+		builder.add("Viral pneumonia", 3, UsagiSearchEngine.CONCEPT_TERM);
+		File file = Files.createTempFile("exactMatches", ".bin").toFile();
+		try {
+			builder.build().save(file);
+			ExactMatchDictionary dictionary = ExactMatchDictionary.load(file);
+			assertNotNull(dictionary);
+			assertEquals(3, dictionary.getTermCount());
+
+			// The search term differs in case and whitespace, the matches report the terms as they were indexed:
+			List<ExactMatchDictionary.Match> matches = dictionary.lookup(" BRONCHIAL ASTHMA ");
+			assertEquals(2, matches.size());
+			assertEquals(1, matches.get(0).conceptId);
+			assertEquals(UsagiSearchEngine.CONCEPT_TERM, matches.get(0).termType);
+			assertEquals("Bronchial  Asthma", matches.get(0).term);
+			assertEquals(2, matches.get(1).conceptId);
+			assertEquals(UsagiSearchEngine.SOURCE_TERM, matches.get(1).termType);
+			assertEquals("bronchial asthma", matches.get(1).term);
+
+			assertEquals("Viral pneumonia", dictionary.lookup("viral pneumonia").get(0).term);
+			assertTrue(dictionary.lookup("pneumonia").isEmpty());
+		} finally {
+			file.delete();
+		}
+	}
+}